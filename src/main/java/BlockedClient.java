@@ -0,0 +1,207 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+// A client waiting in BLPOP or BRPOP. It is queued on each of its keys, in the
+// keyspace that owns the key, behind the clients that started waiting earlier; a push
+// to any of those keys pops an element on behalf of the longest-waiting one. Nothing
+// polls: pushes hand elements over directly and timeouts run on one timer thread.
+//
+// A push, the timeout and the connection closing may race to finish a wait. Whoever
+// claims the client first does it, so a client gets exactly one reply and no element
+// is popped for a client that already timed out.
+final class BlockedClient {
+    private static final byte[] LPOP = {'L', 'P', 'O', 'P'};
+    private static final byte[] RPOP = {'R', 'P', 'O', 'P'};
+
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "blocking-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private final boolean left;
+    private final ByteKey[] keys;
+    // 0 waits forever
+    private final long timeoutMillis;
+    // The timeout's null reply is the connection's protocol's
+    private final boolean resp3;
+    private final Consumer<byte[]> onReply;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private volatile ScheduledFuture<?> timeout;
+
+    private BlockedClient(boolean left, ByteKey[] keys, long timeoutMillis, boolean resp3, Consumer<byte[]> onReply) {
+        this.left = left;
+        this.keys = keys;
+        this.timeoutMillis = timeoutMillis;
+        this.resp3 = resp3;
+        this.onReply = onReply;
+    }
+
+    static boolean isBlocking(String command) {
+        return command.equals("BLPOP") || command.equals("BRPOP");
+    }
+
+    // Runs BLPOP or BRPOP. `onReply` is called exactly once with the encoded reply, on
+    // whichever thread produced it, possibly before this returns. `args` must be a copy
+    // the caller no longer reuses, and `out` the connection's writer, whose protocol the
+    // reply follows. Null if the command was answered right away.
+    static BlockedClient start(RespRequest args, RespWriter out, Consumer<byte[]> onReply) {
+        String command = args.commandName();
+        if (args.size() < 3) {
+            onReply.accept(error("ERR wrong number of arguments for '" + command.toLowerCase() + "' command"));
+            return null;
+        }
+
+        double seconds;
+        try {
+            seconds = Double.parseDouble(args.getString(args.size() - 1));
+        } catch (NumberFormatException e) {
+            seconds = Double.NaN;
+        }
+        if (!Double.isFinite(seconds)) {
+            onReply.accept(error("ERR timeout is not a float or out of range"));
+            return null;
+        }
+        if (seconds < 0) {
+            onReply.accept(error("ERR timeout is negative"));
+            return null;
+        }
+
+        ByteKey[] keys = new ByteKey[args.size() - 2];
+        for (int i = 0; i < keys.length; i++) keys[i] = args.getKey(i + 1);
+        // A timeout below a millisecond still times out rather than meaning forever
+        long timeoutMillis = seconds == 0 ? 0 : Math.max(1, (long) Math.ceil(seconds * 1000));
+        BlockedClient client = new BlockedClient(command.equals("BLPOP"), keys, timeoutMillis, out.isResp3(), onReply);
+        client.register(0);
+        return client;
+    }
+
+    boolean claim() {
+        return done.compareAndSet(false, true);
+    }
+
+    // The connection went away; no reply is sent
+    void cancel() {
+        if (claim()) finish(null);
+    }
+
+    // Tries the keys in order on the threads owning them; the first non-empty list
+    // answers the command right away, otherwise the client is left queued on all of them
+    private void register(int i) {
+        if (i == keys.length) {
+            if (timeoutMillis > 0) {
+                timeout = timer.schedule(this::expire, timeoutMillis, TimeUnit.MILLISECONDS);
+                // Served while the timer was being set up
+                if (done.get()) timeout.cancel(false);
+            }
+            return;
+        }
+        ByteKey key = keys[i];
+        ClientHandler.executeForKey(key, () -> {
+            if (!done.get() && popOrWait(key)) register(i + 1);
+        });
+    }
+
+    // False once the wait is over
+    private boolean popOrWait(ByteKey key) {
+        Keyspace keyspace = ClientHandler.keyspace();
+        byte[][] popped = new byte[1][];
+        try {
+            keyspace.update(key, current -> {
+                if (current == null) {
+                    keyspace.addBlocked(key, this);
+                    return null;
+                }
+                QuickList list = current.list();
+                if (!claim()) return current;
+                popped[0] = left ? list.popFirst() : list.popLast();
+                return list.isEmpty() ? null : current;
+            });
+        } catch (WrongTypeException e) {
+            if (claim()) finish(RespWriter.ERR_WRONGTYPE);
+            return false;
+        }
+        if (popped[0] != null) {
+            served(key, popped[0]);
+            return false;
+        }
+        if (done.get()) {
+            // Finished elsewhere after its cleanup ran past this key: undo the add
+            keyspace.removeBlocked(key, this);
+            return false;
+        }
+        return true;
+    }
+
+    private void expire() {
+        if (claim()) finish(resp3 ? RespWriter.NULL : RespWriter.NULL_ARRAY);
+    }
+
+    // Replies [key, element]. Replicas get the pop the wait turned into.
+    private void served(ByteKey key, byte[] element) {
+        ReplicationHandler.propagate(null, left ? LPOP : RPOP, key.bytes());
+        RespWriter reply = new RespWriter();
+        try {
+            reply.writeArrayHeader(2);
+            reply.writeBulkString(key.bytes());
+            reply.writeBulkString(element);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // no sink, nothing to fail
+        }
+        finish(reply.toByteArray());
+    }
+
+    // Only by whoever claimed the client
+    private void finish(byte[] reply) {
+        ScheduledFuture<?> pending = timeout;
+        if (pending != null) pending.cancel(false);
+        for (ByteKey key : keys) {
+            ClientHandler.executeForKey(key, () -> ClientHandler.keyspace().removeBlocked(key, this));
+        }
+        if (reply != null) onReply.accept(reply);
+    }
+
+    // After a push to `key`, on the thread owning it: pops elements for the clients
+    // waiting on it, longest-waiting first, for as long as the list has any
+    static void serve(ByteKey key) {
+        Keyspace keyspace = ClientHandler.keyspace();
+        if (!keyspace.hasBlocked(key)) return;
+
+        List<BlockedClient> clients = new ArrayList<>();
+        List<byte[]> elements = new ArrayList<>();
+        keyspace.update(key, current -> {
+            if (current == null || !current.isList()) return current;
+            QuickList list = current.list();
+            while (!list.isEmpty()) {
+                BlockedClient client = keyspace.claimBlocked(key);
+                if (client == null) break;
+                clients.add(client);
+                elements.add(client.left ? list.popFirst() : list.popLast());
+            }
+            return list.isEmpty() ? null : current;
+        });
+        for (int i = 0; i < clients.size(); i++) {
+            clients.get(i).served(key, elements.get(i));
+        }
+    }
+
+    private static byte[] error(String message) {
+        RespWriter reply = new RespWriter();
+        try {
+            reply.writeError(message);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return reply.toByteArray();
+    }
+}
@@ -0,0 +1,53 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// A key as the raw bytes the client sent. The hash is computed once, when the key
+// is built, so map lookups and shard routing never walk the bytes again.
+final class ByteKey {
+    private final byte[] bytes;
+    private final int hash;
+
+    // Takes ownership of `bytes`; callers pass a fresh copy
+    ByteKey(byte[] bytes) {
+        this.bytes = bytes;
+        this.hash = hash(bytes, 0, bytes.length);
+    }
+
+    static ByteKey of(String key) {
+        return new ByteKey(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Same function as hashCode(), over a slice, so a command can be routed to its
+    // shard straight from the request buffer
+    static int hash(byte[] bytes, int off, int len) {
+        int h = 1;
+        for (int i = off; i < off + len; i++) {
+            h = 31 * h + bytes[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    int length() {
+        return bytes.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        return o instanceof ByteKey other && hash == other.hash && Arrays.equals(bytes, other.bytes);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
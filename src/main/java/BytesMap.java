@@ -0,0 +1,186 @@
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+// Hash table keyed by byte strings, for the large encodings of hashes, sets and
+// sorted sets. Unlike a HashMap<ByteKey, V> there is no wrapper object per key:
+// a member costs one chain node plus its own byte array, and lookups hash the
+// request buffer slice directly without copying it into a key first.
+//
+// Chained, with a power-of-two table that doubles above a load factor of 1 and
+// halves below 1/8, like Redis' dict.
+//
+// Not thread safe: values are only changed under the keyspace's per-key lock.
+final class BytesMap<V> {
+    private static final int MIN_CAPACITY = 8;
+    // Object sizes, as in Keyspace
+    private static final int MAP_BYTES = 32;
+    private static final int NODE_BYTES = 32;
+
+    private static final class Node<V> {
+        final byte[] key;
+        final int hash;
+        V value;
+        Node<V> next;
+
+        Node(byte[] key, int hash, V value, Node<V> next) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    private Node<V>[] table = newTable(MIN_CAPACITY);
+    private int size;
+    // Nodes and key arrays; values are the owner's to account for
+    private long keyBytes;
+
+    @SuppressWarnings("unchecked")
+    private static <V> Node<V>[] newTable(int capacity) {
+        return (Node<V>[]) new Node<?>[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Heap taken by the table, its nodes and their keys
+    long footprint() {
+        return MAP_BYTES + Keyspace.arrayFootprint(table.length * 4) + keyBytes;
+    }
+
+    V get(byte[] b, int off, int len) {
+        Node<V> node = find(b, off, len, ByteKey.hash(b, off, len));
+        return node == null ? null : node.value;
+    }
+
+    V get(byte[] key) {
+        return get(key, 0, key.length);
+    }
+
+    boolean containsKey(byte[] b, int off, int len) {
+        return find(b, off, len, ByteKey.hash(b, off, len)) != null;
+    }
+
+    // The previous value, null if the key is new. The key array is copied only then.
+    V put(byte[] b, int off, int len, V value) {
+        int hash = ByteKey.hash(b, off, len);
+        Node<V> node = find(b, off, len, hash);
+        if (node != null) {
+            V previous = node.value;
+            node.value = value;
+            return previous;
+        }
+        addNode(Arrays.copyOfRange(b, off, off + len), hash, value);
+        return null;
+    }
+
+    V put(byte[] key, V value) {
+        return put(key, 0, key.length, value);
+    }
+
+    // Adds a key that isn't there yet, keeping the array itself rather than a copy,
+    // so the value can share it. Nobody may change the array afterwards.
+    void putNew(byte[] key, V value) {
+        addNode(key, ByteKey.hash(key, 0, key.length), value);
+    }
+
+    private void addNode(byte[] key, int hash, V value) {
+        int slot = hash & (table.length - 1);
+        table[slot] = new Node<>(key, hash, value, table[slot]);
+        keyBytes += NODE_BYTES + Keyspace.arrayFootprint(key.length);
+        if (++size > table.length) resize(table.length * 2);
+    }
+
+    // The removed value, null if the key wasn't there
+    V remove(byte[] b, int off, int len) {
+        int hash = ByteKey.hash(b, off, len);
+        int slot = hash & (table.length - 1);
+        Node<V> prev = null;
+        for (Node<V> node = table[slot]; node != null; prev = node, node = node.next) {
+            if (node.hash == hash && Arrays.equals(node.key, 0, node.key.length, b, off, off + len)) {
+                if (prev == null) {
+                    table[slot] = node.next;
+                } else {
+                    prev.next = node.next;
+                }
+                keyBytes -= NODE_BYTES + Keyspace.arrayFootprint(len);
+                if (--size < table.length / 8 && table.length > MIN_CAPACITY) resize(table.length / 2);
+                return node.value;
+            }
+        }
+        return null;
+    }
+
+    void forEach(BiConsumer<byte[], V> action) {
+        for (Node<V> head : table) {
+            for (Node<V> node = head; node != null; node = node.next) {
+                action.accept(node.key, node.value);
+            }
+        }
+    }
+
+    // One HSCAN, SSCAN or ZSCAN step: visits whole buckets from `cursor` on until at
+    // least `count` keys, or ten times as many buckets when they are mostly empty, and
+    // returns the cursor to go on from, 0 at the end (see Keyspace.nextScanCursor)
+    long scan(long cursor, int count, BiConsumer<byte[], V> action) {
+        int mask = table.length - 1;
+        int next = (int) cursor;
+        long buckets = count * 10L;
+        int visited = 0;
+        do {
+            for (Node<V> node = table[next & mask]; node != null; node = node.next) {
+                action.accept(node.key, node.value);
+                visited++;
+            }
+            next = Keyspace.nextScanCursor(next, mask);
+        } while (next != 0 && visited < count && --buckets > 0);
+        return Integer.toUnsignedLong(next);
+    }
+
+    // Removes every key the filter accepts; the table shrinks afterwards if it should
+    void removeIf(Predicate<byte[]> filter) {
+        for (int slot = 0; slot < table.length; slot++) {
+            Node<V> prev = null;
+            for (Node<V> node = table[slot]; node != null; node = node.next) {
+                if (!filter.test(node.key)) {
+                    prev = node;
+                    continue;
+                }
+                if (prev == null) {
+                    table[slot] = node.next;
+                } else {
+                    prev.next = node.next;
+                }
+                keyBytes -= NODE_BYTES + Keyspace.arrayFootprint(node.key.length);
+                size--;
+            }
+        }
+        int capacity = table.length;
+        while (size < capacity / 8 && capacity > MIN_CAPACITY) capacity /= 2;
+        if (capacity != table.length) resize(capacity);
+    }
+
+    private Node<V> find(byte[] b, int off, int len, int hash) {
+        for (Node<V> node = table[hash & (table.length - 1)]; node != null; node = node.next) {
+            if (node.hash == hash && Arrays.equals(node.key, 0, node.key.length, b, off, off + len)) return node;
+        }
+        return null;
+    }
+
+    private void resize(int capacity) {
+        Node<V>[] resized = newTable(capacity);
+        for (Node<V> head : table) {
+            Node<V> node = head;
+            while (node != null) {
+                Node<V> next = node.next;
+                int slot = node.hash & (capacity - 1);
+                node.next = resized[slot];
+                resized[slot] = node;
+                node = next;
+            }
+        }
+        table = resized;
+    }
+}
@@ -1,16 +1,25 @@
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
 class ClientHandler extends Thread {
@@ -270,11 +279,16 @@ class ClientHandler extends Thread {
     }
     */
     
-class ClientHandler extends Thread {
+class ClientHandler implements Runnable {
     private Socket clientSocket;
-    private OutputStream out;
-    private static final Map<String, KeyValue> keyValueStore = new ConcurrentHashMap<>();
-    private static final List<OutputStream> replicaOutputs = new CopyOnWriteArrayList<>();
+    private static final Keyspace globalKeyspace = new Keyspace(new ConcurrentHashMap<>());
+    // Set in nio mode with I/O threads or shards; null means commands run on the calling thread
+    static volatile CommandExecutor commandExecutor;
+    private static final byte[] MSET = {'M', 'S', 'E', 'T'};
+    private static final byte[] PEXPIREAT = {'P', 'E', 'X', 'P', 'I', 'R', 'E', 'A', 'T'};
+    private static final byte[] PERSIST = {'P', 'E', 'R', 'S', 'I', 'S', 'T'};
+    private static final byte[] LPOP = {'L', 'P', 'O', 'P'};
+    private static final byte[] RPOP = {'R', 'P', 'O', 'P'};
     private static final byte[] EMPTY_RDB_FILE = new byte[] {
         0x52, 0x45, 0x44, 0x49, // REDI
         0x53, 0x30, 0x30, 0x30, 0x39, // S0009
@@ -284,159 +298,2168 @@ class ClientHandler extends Thread {
         0x00, 0x00
     };
 
-    private boolean isReplicaConnection = false;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    static final String SERVER_VERSION = "1.0";
+    private static final AtomicLong clientIds = new AtomicLong();
+
+    private boolean isReplicaConnection = false;
+    private final long clientId = nextClientId();
+    private final Transaction transaction = new Transaction();
+    // Created by the first SUBSCRIBE or PSUBSCRIBE
+    private SocketSubscriber subscriber;
+    // Held while this thread runs a batch of commands and writes their replies, so
+    // pub/sub messages written by another thread never land in the middle of one
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    public ClientHandler(Socket clientSocket) {
+        this.clientSocket = clientSocket;
+    }
+
+    // Connection ids as HELLO reports them, unique for the life of the server
+    static long nextClientId() {
+        return clientIds.incrementAndGet();
+    }
+
+    // The keyspace commands on this thread operate on: the shard's own in sharded mode,
+    // otherwise the shared one
+    static Keyspace keyspace() {
+        return Thread.currentThread() instanceof ShardedCommandExecutor.Shard shard
+                ? shard.current
+                : globalKeyspace;
+    }
+
+    // The keyspace holding `key`, for commands over several keys: in sharded mode a
+    // shard may only use another's while that one waits for it (see executeForKeys)
+    static Keyspace keyspace(ByteKey key) {
+        return commandExecutor instanceof ShardedCommandExecutor sharded
+                ? sharded.keyspaceFor(key)
+                : globalKeyspace;
+    }
+
+    public static void putKeyWithExpiry(byte[] key, byte[] value, long expirationUnixMs) {
+        ByteKey k = new ByteKey(key);
+        executeForKey(k, () -> keyspace().put(k, KeyValue.of(value, expirationUnixMs)));
+    }
+
+    // For values other than strings, e.g. lists loaded from an RDB file
+    public static void putKey(byte[] key, KeyValue value) {
+        ByteKey k = new ByteKey(key);
+        executeForKey(k, () -> keyspace().put(k, value));
+    }
+
+    // Background expiry for the shared keyspace
+    static void startActiveExpire() {
+        Keyspace.startActiveExpire(globalKeyspace);
+    }
+
+    // Write commands our master propagates to us
+    static boolean isReplicatedWrite(String command) {
+        switch (command) {
+            case "SET":
+            case "MSET":
+            case "DEL":
+            case "UNLINK":
+            case "PEXPIREAT":
+            case "PERSIST":
+            case "INCR":
+            case "DECR":
+            case "INCRBY":
+            case "DECRBY":
+            case "INCRBYFLOAT":
+            case "LPUSH":
+            case "RPUSH":
+            case "LPOP":
+            case "RPOP":
+            case "LTRIM":
+            case "HSET":
+            case "HDEL":
+            case "HINCRBY":
+            case "ZADD":
+            case "ZINCRBY":
+            case "ZREM":
+            case "SADD":
+            case "SREM":
+            case "SINTERSTORE":
+            case "SUNIONSTORE":
+            case "SDIFFSTORE":
+            case "PUBLISH":
+            case "MULTI":
+            case "EXEC":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // The writes of a MULTI/EXEC block from our master, gathered until its EXEC and then
+    // applied as one transaction. Only the master link's thread touches it.
+    private static Transaction replicatedTransaction;
+
+    // Applies a write received from our master, on whichever thread owns the key
+    public static void applyReplicated(RespRequest args) {
+        String command = args.commandName();
+        if (command.equals("MULTI")) {
+            replicatedTransaction = new Transaction();
+            return;
+        }
+        if (replicatedTransaction != null) {
+            if (!command.equals("EXEC")) {
+                replicatedTransaction.queue(args.copy());
+                return;
+            }
+            Transaction transaction = replicatedTransaction;
+            replicatedTransaction = null;
+            ByteKey[] keys = transaction.keys();
+            executeForKeys(keys, () -> keyspace().withKeysLocked(keys, () -> {
+                for (RespRequest write : transaction.commands()) {
+                    asOwner(write, () -> applyReplicatedNow(write));
+                }
+            }));
+            return;
+        }
+        if (!isReplicatedWrite(command)) {
+            Log.warn("Unhandled replication command: " + command);
+            return;
+        }
+        Runnable apply = () -> applyReplicatedNow(args);
+        ByteKey[] keys = multiKeys(args);
+        if (keys != null) {
+            executeForKeys(keys, apply);
+        } else {
+            executeForKey(args.size() > 1 ? args.getKey(1) : new ByteKey(new byte[0]), apply);
+        }
+    }
+
+    // On the thread that owns the key
+    private static void applyReplicatedNow(RespRequest args) {
+        String command = args.commandName();
+        if (!isReplicatedWrite(command)) {
+            Log.warn("Unhandled replication command: " + command);
+            return;
+        }
+        try {
+            // null writer => no reply
+            switch (command) {
+                case "SET": handleSet(args, null); break;
+                case "MSET": handleMset(args, null, false); break;
+                case "DEL":
+                case "UNLINK": handleDel(args, null); break;
+                case "PEXPIREAT": handleExpire(args, null, 1, true); break;
+                case "PERSIST": handlePersist(args, null); break;
+                case "INCR": handleIncr(args, null, 1, false); break;
+                case "DECR": handleIncr(args, null, -1, false); break;
+                case "INCRBY": handleIncr(args, null, 1, true); break;
+                case "DECRBY": handleIncr(args, null, -1, true); break;
+                case "INCRBYFLOAT": handleIncrByFloat(args, null); break;
+                case "LPUSH": handlePush(args, null, true); break;
+                case "RPUSH": handlePush(args, null, false); break;
+                case "LPOP": handlePop(args, null, true); break;
+                case "RPOP": handlePop(args, null, false); break;
+                case "LTRIM": handleLtrim(args, null); break;
+                case "HSET": handleHset(args, null); break;
+                case "HDEL": handleHdel(args, null); break;
+                case "HINCRBY": handleHincrby(args, null); break;
+                case "ZADD": handleZadd(args, null); break;
+                case "ZINCRBY": handleZincrby(args, null); break;
+                case "ZREM": handleZrem(args, null); break;
+                case "SADD": handleSadd(args, null); break;
+                case "SREM": handleSrem(args, null); break;
+                case "SINTERSTORE": handleSetAlgebra(args, null, SetOp.INTER, true); break;
+                case "SUNIONSTORE": handleSetAlgebra(args, null, SetOp.UNION, true); break;
+                case "SDIFFSTORE": handleSetAlgebra(args, null, SetOp.DIFF, true); break;
+                case "PUBLISH": handlePublish(args, null); break;
+            }
+        } catch (IOException | WrongTypeException e) {
+            Log.warn("Error handling replicated " + command + " command: " + e.getMessage());
+        }
+    }
+
+    static void executeForKey(ByteKey key, Runnable task) {
+        CommandExecutor executor = commandExecutor;
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.executeForKey(key, task);
+        }
+    }
+
+    static void executeForKeys(ByteKey[] keys, Runnable task) {
+        CommandExecutor executor = commandExecutor;
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.executeForKeys(keys, task);
+        }
+    }
+
+    // Every key of a command that touches more than one, null for any other command.
+    // Those run through CommandExecutor.executeForKeys rather than on one key's thread.
+    static ByteKey[] multiKeys(RespRequest args) {
+        switch (args.commandName()) {
+            case "MGET":
+            case "DEL":
+            case "UNLINK":
+            case "EXISTS":
+            case "SINTER":
+            case "SUNION":
+            case "SDIFF":
+            case "SINTERSTORE":
+            case "SUNIONSTORE":
+            case "SDIFFSTORE":
+                return args.size() < 3 ? null : keyArgs(args, 1, 1);
+            case "MSET":
+            case "MSETNX":
+                return args.size() < 5 ? null : keyArgs(args, 1, 2);
+            case "WATCH":
+                return args.size() < 3 ? null : keyArgs(args, 1, 1);
+            case "EXEC":
+                return args.transaction == null ? null : args.transaction.keys();
+            default:
+                return null;
+        }
+    }
+
+    // The keys at `from`, `from + step`, ... up to the last argument
+    private static ByteKey[] keyArgs(RespRequest args, int from, int step) {
+        ByteKey[] keys = new ByteKey[(args.size() - from + step - 1) / step];
+        for (int i = 0; i < keys.length; i++) keys[i] = args.getKey(from + i * step);
+        return keys;
+    }
+
+    @Override
+    public void run() {
+        try (
+            InputStream in = clientSocket.getInputStream();
+            OutputStream socketOut = clientSocket.getOutputStream()
+        ) {
+            if (Config.isReplica && !isReplicaConnection) {
+                processMasterHandshake(in, socketOut);
+                isReplicaConnection = true;
+            }
+
+            // Replies are gathered here and written once per batch of pipelined commands
+            RespWriter out = new RespWriter(socketOut);
+
+            RespDecoder decoder = new RespDecoder();
+            RespRequest args = new RespRequest();
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+            int n;
+            while ((n = in.read(buffer.array())) != -1) {
+                buffer.position(0).limit(n);
+                writeLock.lock();
+                try {
+                    // Run every command that is already buffered before flushing or blocking again
+                    while (decoder.decode(buffer, args)) {
+                        String command = args.commandName();
+
+                        if (isReplicaConnection && isReplicatedWrite(command)) {
+                            applyReplicated(args);
+                            continue;
+                        }
+                        if (isReplicaConnection && (command.equals("PING") || command.equals("ECHO"))) {
+                            switch (command) {
+                                case "PING": out.writeRaw(RespWriter.PONG); break;
+                                case "ECHO":
+                                    if (args.size() >= 2) {
+                                        out.writeBulkString(args.array(), args.offset(1), args.length(1));
+                                    }
+                                    break;
+                            }
+                            continue;
+                        }
+                        if (subscriber != null && subscriber.isRestricted()
+                                || !transaction.handlesLocally(command) && PubSub.isSubscription(command)) {
+                            if (subscriber == null) subscriber = new SocketSubscriber(socketOut);
+                            PubSub.handleLocally(subscriber, args, out);
+                            continue;
+                        }
+                        if (transaction.handlesLocally(command)) {
+                            transaction.handleLocally(args, out);
+                            continue;
+                        }
+                        if (command.equals("HELLO")) {
+                            handleHello(args, out, clientId, subscriber);
+                            continue;
+                        }
+                        if (command.equals("CLIENT")) {
+                            if (subscriber == null) subscriber = new SocketSubscriber(socketOut);
+                            Tracking.handleClient(subscriber, args, out);
+                            continue;
+                        }
+                        if (BlockedClient.isBlocking(command)) {
+                            out.flush();
+                            awaitBlockingPop(args.copy(), out, in, socketOut, buffer);
+                            continue;
+                        }
+
+                        transaction.attach(args);
+                        args.tracking = Tracking.readsTracked(subscriber);
+                        dispatch(args, out);
+                    }
+                    out.flush();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            if (Log.isDebugEnabled()) Log.debug("Connection closed: " + e.getMessage());
+        } finally {
+            PubSub.closed(subscriber);
+            try {
+                ReplicationHandler.removeReplica(clientSocket.getOutputStream());
+                clientSocket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    // Pub/sub messages and tracking invalidations for a thread-per-connection client.
+    // The sender only queues them; a virtual thread started when the queue was empty
+    // writes them out, taking the connection's write lock, and is the one that waits
+    // if the client is slow.
+    private final class SocketSubscriber extends PubSub.Subscriber {
+        private final OutputStream socketOut;
+        private final Queue<byte[]> messages = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        SocketSubscriber(OutputStream socketOut) {
+            super(clientId);
+            this.socketOut = socketOut;
+        }
+
+        @Override
+        long queue(byte[] message) {
+            long queued = queuedBytes.addAndGet(message.length);
+            messages.add(message);
+            if (draining.compareAndSet(false, true)) Thread.startVirtualThread(this::drain);
+            return queued;
+        }
+
+        // A reset rather than a close, so what the kernel still holds for the client
+        // is dropped too instead of trickling out to it
+        @Override
+        void disconnect() {
+            try {
+                clientSocket.setSoLinger(true, 0);
+                clientSocket.close();
+            } catch (IOException ignored) {}
+        }
+
+        private void drain() {
+            RespWriter batch = new RespWriter();
+            do {
+                writeLock.lock();
+                try {
+                    byte[] message;
+                    while ((message = messages.poll()) != null) {
+                        batch.writeRaw(message);
+                        if (batch.size() >= READ_BUFFER_SIZE) {
+                            writeBatch(batch);
+                        }
+                    }
+                    writeBatch(batch);
+                    socketOut.flush();
+                } catch (IOException e) {
+                    // The client thread notices the closed connection and cleans up
+                    if (Log.isDebugEnabled()) Log.debug("Failed to send pub/sub message: " + e.getMessage());
+                    disconnect();
+                    return;
+                } finally {
+                    writeLock.unlock();
+                }
+                draining.set(false);
+            } while (!messages.isEmpty() && draining.compareAndSet(false, true));
+        }
+
+        private void writeBatch(RespWriter batch) throws IOException {
+            batch.writeTo(socketOut);
+            queuedBytes.addAndGet(-batch.size());
+            batch.reset();
+        }
+    }
+
+    // BLPOP and BRPOP on a thread of their own. The reply goes straight to the socket
+    // from whichever thread produces it. Unless more commands are already buffered,
+    // this thread reads on while it waits, into `buffer`, so a client that disconnects
+    // stops waiting instead of being handed an element nobody will receive. Once
+    // something is read, it waits for the reply before running that.
+    private static void awaitBlockingPop(RespRequest command, RespWriter out, InputStream in, OutputStream socketOut, ByteBuffer buffer) throws IOException {
+        CompletableFuture<Void> replied = new CompletableFuture<>();
+        BlockedClient client = BlockedClient.start(command, out, reply -> {
+            try {
+                socketOut.write(reply);
+                socketOut.flush();
+            } catch (IOException e) {
+                if (Log.isDebugEnabled()) Log.debug("Failed to send blocking pop reply: " + e.getMessage());
+            }
+            replied.complete(null);
+        });
+        if (buffer.hasRemaining()) {
+            replied.join();
+            return;
+        }
+
+        // Whatever the client sends next is only read here, and run after the reply
+        int filled = 0;
+        while (!replied.isDone() && filled == 0) {
+            filled = in.read(buffer.array());
+            if (filled == -1) {
+                if (client != null) client.cancel();
+                throw new EOFException("Connection closed while blocked");
+            }
+        }
+        replied.join();
+        buffer.position(0).limit(filled);
+    }
+
+    // Shared by the thread-per-connection handler and the NIO event loop. BLPOP and
+    // BRPOP are normally taken over by the connection before they get here (see
+    // BlockedClient); here they only pop what is already there.
+    public static void dispatch(RespRequest args, RespWriter out) throws IOException {
+        String command = args.commandName();
+        if (args.tracking != null && isTrackedRead(command)) rememberReads(args);
+
+        try {
+            dispatchCommand(command, args, out);
+        } catch (WrongTypeException e) {
+            out.writeRaw(RespWriter.ERR_WRONGTYPE);
+        }
+    }
+
+    private static void dispatchCommand(String command, RespRequest args, RespWriter out) throws IOException {
+        switch (command) {
+            case "PING": out.writeRaw(RespWriter.PONG); break;
+            case "REPLCONF": out.writeOk(); break;
+            case "PSYNC": handlePsync(args, out); break;
+            case "ECHO":
+                if (args.size() >= 2) {
+                    out.writeBulkString(args.array(), args.offset(1), args.length(1));
+                }
+                break;
+            case "SET": handleSet(args, out); break;
+            case "GET": handleGet(args, out); break;
+            case "MGET": handleMget(args, out); break;
+            case "MSET": handleMset(args, out, false); break;
+            case "MSETNX": handleMset(args, out, true); break;
+            case "DEL":
+            case "UNLINK": handleDel(args, out); break;
+            case "EXISTS": handleExists(args, out); break;
+            case "WATCH": handleWatch(args, out); break;
+            case "EXEC": handleExec(args, out); break;
+            // Queued after MULTI; EXEC drops the watches anyway
+            case "UNWATCH": out.writeOk(); break;
+            case "PUBLISH": handlePublish(args, out); break;
+            case "PUBSUB": handlePubsub(args, out); break;
+            case "EXPIRE": handleExpire(args, out, 1000, false); break;
+            case "PEXPIRE": handleExpire(args, out, 1, false); break;
+            case "PEXPIREAT": handleExpire(args, out, 1, true); break;
+            case "TTL": handleTtl(args, out, 1000); break;
+            case "PTTL": handleTtl(args, out, 1); break;
+            case "PERSIST": handlePersist(args, out); break;
+            case "INCR": handleIncr(args, out, 1, false); break;
+            case "DECR": handleIncr(args, out, -1, false); break;
+            case "INCRBY": handleIncr(args, out, 1, true); break;
+            case "DECRBY": handleIncr(args, out, -1, true); break;
+            case "INCRBYFLOAT": handleIncrByFloat(args, out); break;
+            case "LPUSH": handlePush(args, out, true); break;
+            case "RPUSH": handlePush(args, out, false); break;
+            case "LPOP": handlePop(args, out, true); break;
+            case "RPOP": handlePop(args, out, false); break;
+            case "LRANGE": handleLrange(args, out); break;
+            case "LLEN": handleLlen(args, out); break;
+            case "LINDEX": handleLindex(args, out); break;
+            case "LTRIM": handleLtrim(args, out); break;
+            case "BLPOP": handleBlockingPopNow(args, out, true); break;
+            case "BRPOP": handleBlockingPopNow(args, out, false); break;
+            case "HSET": handleHset(args, out); break;
+            case "HGET": handleHget(args, out); break;
+            case "HMGET": handleHmget(args, out); break;
+            case "HDEL": handleHdel(args, out); break;
+            case "HGETALL": handleHgetall(args, out); break;
+            case "HLEN": handleHlen(args, out); break;
+            case "HINCRBY": handleHincrby(args, out); break;
+            case "ZADD": handleZadd(args, out); break;
+            case "ZINCRBY": handleZincrby(args, out); break;
+            case "ZREM": handleZrem(args, out); break;
+            case "ZSCORE": handleZscore(args, out); break;
+            case "ZCARD": handleZcard(args, out); break;
+            case "ZRANK": handleZrank(args, out, false); break;
+            case "ZREVRANK": handleZrank(args, out, true); break;
+            case "ZCOUNT": handleZcount(args, out); break;
+            case "ZRANGE": handleZrange(args, out); break;
+            case "SADD": handleSadd(args, out); break;
+            case "SREM": handleSrem(args, out); break;
+            case "SISMEMBER": handleSismember(args, out); break;
+            case "SMEMBERS": handleSmembers(args, out); break;
+            case "SCARD": handleScard(args, out); break;
+            case "SINTER": handleSetAlgebra(args, out, SetOp.INTER, false); break;
+            case "SUNION": handleSetAlgebra(args, out, SetOp.UNION, false); break;
+            case "SDIFF": handleSetAlgebra(args, out, SetOp.DIFF, false); break;
+            case "SINTERSTORE": handleSetAlgebra(args, out, SetOp.INTER, true); break;
+            case "SUNIONSTORE": handleSetAlgebra(args, out, SetOp.UNION, true); break;
+            case "SDIFFSTORE": handleSetAlgebra(args, out, SetOp.DIFF, true); break;
+            case "CONFIG": handleConfig(args, out); break;
+            case "KEYS": handleKeys(args, out); break;
+            case "SCAN": handleScan(args, out); break;
+            case "HSCAN": handleHscan(args, out); break;
+            case "SSCAN": handleSscan(args, out); break;
+            case "ZSCAN": handleZscan(args, out); break;
+            case "INFO": handleInfo(args, out); break;
+            case "MEMORY": handleMemory(args, out); break;
+            default: out.writeRaw(RespWriter.ERR_UNKNOWN_COMMAND); break;
+        }
+    }
+
+    // Position of the (first) key argument, 0 for commands that don't take one.
+    // Used to route commands to the shard that owns the key.
+    static int firstKeyIndex(RespRequest args) {
+        switch (args.commandName()) {
+            case "GET":
+            case "SET":
+            case "MGET":
+            case "MSET":
+            case "MSETNX":
+            case "DEL":
+            case "UNLINK":
+            case "EXISTS":
+            case "WATCH":
+            case "EXPIRE":
+            case "PEXPIRE":
+            case "PEXPIREAT":
+            case "TTL":
+            case "PTTL":
+            case "PERSIST":
+            case "INCR":
+            case "DECR":
+            case "INCRBY":
+            case "DECRBY":
+            case "INCRBYFLOAT":
+            case "LPUSH":
+            case "RPUSH":
+            case "LPOP":
+            case "RPOP":
+            case "LRANGE":
+            case "LLEN":
+            case "LINDEX":
+            case "LTRIM":
+            case "BLPOP":
+            case "BRPOP":
+            case "HSET":
+            case "HGET":
+            case "HMGET":
+            case "HDEL":
+            case "HGETALL":
+            case "HLEN":
+            case "HINCRBY":
+            case "ZADD":
+            case "ZINCRBY":
+            case "ZREM":
+            case "ZSCORE":
+            case "ZCARD":
+            case "ZRANK":
+            case "ZREVRANK":
+            case "ZCOUNT":
+            case "ZRANGE":
+            case "SADD":
+            case "SREM":
+            case "SISMEMBER":
+            case "SMEMBERS":
+            case "SCARD":
+            case "SINTER":
+            case "SUNION":
+            case "SDIFF":
+            case "SINTERSTORE":
+            case "SUNIONSTORE":
+            case "SDIFFSTORE":
+            case "HSCAN":
+            case "SSCAN":
+            case "ZSCAN":
+                return 1;
+            case "MEMORY":
+                return args.size() > 2 && args.equalsIgnoreCase(1, "usage") ? 2 : 0;
+            default:
+                return 0;
+        }
+    }
+
+    // Reads whose keys a client with CLIENT TRACKING on may cache
+    static boolean isTrackedRead(String command) {
+        switch (command) {
+            case "GET":
+            case "MGET":
+            case "EXISTS":
+            case "TTL":
+            case "PTTL":
+            case "LRANGE":
+            case "LLEN":
+            case "LINDEX":
+            case "HGET":
+            case "HMGET":
+            case "HGETALL":
+            case "HLEN":
+            case "ZSCORE":
+            case "ZCARD":
+            case "ZRANK":
+            case "ZREVRANK":
+            case "ZCOUNT":
+            case "ZRANGE":
+            case "SISMEMBER":
+            case "SMEMBERS":
+            case "SCARD":
+            case "SINTER":
+            case "SUNION":
+            case "SDIFF":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Before the read runs (see Tracking.remember)
+    private static void rememberReads(RespRequest args) {
+        ByteKey[] keys = multiKeys(args);
+        if (keys != null) {
+            for (ByteKey key : keys) Tracking.remember(key, args.tracking);
+        } else if (args.size() > 1) {
+            Tracking.remember(args.getKey(1), args.tracking);
+        }
+    }
+
+    // Commands that read every key and have to visit all shards
+    static boolean isKeyspaceWide(String command) {
+        return command.equals("KEYS");
+    }
+
+    // Whether MULTI may queue the command. In sharded mode a transaction runs on the
+    // shards of its keys, which KEYS and SCAN, going by all keys or the cursor, don't have.
+    static boolean isAllowedInTransaction(String command) {
+        if (isConnectionBound(command) || PubSub.isSubscription(command)
+                || command.equals("HELLO") || command.equals("CLIENT")) return false;
+        return !(commandExecutor instanceof ShardedCommandExecutor) || !(isKeyspaceWide(command) || command.equals("SCAN"));
+    }
+
+    // Commands that act on the connection itself rather than on a reply buffer,
+    // such as PSYNC turning it into a replica link
+    static boolean isConnectionBound(String command) {
+        return command.equals("PSYNC");
+    }
+
+    public static void handleSet(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() < 3) {
+            if (out != null) out.writeError("ERR wrong number of arguments for 'SET'");
+            return;
+        }
+
+        ByteKey key = args.getKey(1);
+        byte[] value = args.getBytes(2);
+        // PX is a TTL; PXAT a Unix time in milliseconds, which is how replicas get either
+        long expirationTimestamp = 0;
+        boolean px = args.size() >= 5 && args.equalsIgnoreCase(3, "px");
+        if (px || (args.size() >= 5 && args.equalsIgnoreCase(3, "pxat"))) {
+            try {
+                long when = args.getLong(4);
+                if (when > 0) expirationTimestamp = px ? System.currentTimeMillis() + when : when;
+            } catch (NumberFormatException e) {
+                if (out != null) out.writeError("ERR PX value is not a number");
+                return;
+            }
+        }
+
+        // Like Redis replicas, we apply our master's writes whatever our own maxmemory says
+        if (out != null && !keyspace().freeMemoryIfNeeded()) {
+            out.writeRaw(RespWriter.ERR_OOM);
+            return;
+        }
+
+        keyspace().put(key, KeyValue.of(value, expirationTimestamp));
+
+        if (out != null) {
+            out.writeOk();
+            ReplicationHandler.propagateSetToReplicas(key.bytes(), value, expirationTimestamp, out.sink());
+        }
+    }
+
+    public static void handleGet(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 2) {
+            out.writeError("ERR wrong number of arguments for 'GET'");
+            return;
+        }
+
+        ByteKey key = args.getKey(1);
+        while (true) {
+            KeyValue kv = keyspace().get(key);
+            if (kv == null) {
+                out.writeNullBulk();
+                return;
+            }
+            // False only if another thread replaced the value mid-copy; read the new one
+            if (kv.writeValue(out)) return;
+        }
+    }
+
+    // MGET key [key ...]: a null for each key that is missing or not a string. The reply
+    // is encoded holding the stripes of all the keys (see Keyspace.withKeysLocked), so it
+    // never shows half of an MSET, into a scratch buffer copied out once they are released.
+    public static void handleMget(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() < 2) {
+            out.writeError("ERR wrong number of arguments for 'mget' command");
+            return;
+        }
+
+        ByteKey[] keys = keyArgs(args, 1, 1);
+        RespWriter reply = out.scratch();
+        reply.writeArrayHeader(keys.length);
+        keyspace().withKeysLocked(keys, () -> {
+            try {
+                for (ByteKey key : keys) writeStringOrNull(keyspace(key), key, reply);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // no sink, nothing to fail
+            }
+        });
+        reply.writeTo(out);
+    }
+
+    private static void writeStringOrNull(Keyspace keyspace, ByteKey key, RespWriter out) throws IOException {
+        while (true) {
+            KeyValue kv = keyspace.get(key);
+            if (kv == null || !kv.isString()) {
+                out.writeNullBulk();
+                return;
+            }
+            // False only if the value was released mid-copy; read the new one
+            if (kv.writeValue(out)) return;
+        }
+    }
+
+    // MSET and MSETNX key value [key value ...]. The keys are checked and set holding all
+    // their stripes, so no other write of them comes in between and no MGET sees some set
+    // and others not; in sharded mode the command runs alone on the shards involved. An
+    // MSETNX that set its keys goes to replicas as the MSET it amounts to.
+    public static void handleMset(RespRequest args, RespWriter out, boolean nx) throws IOException {
+        if (args.size() < 3 || args.size() % 2 == 0) {
+            if (out != null) out.writeError("ERR wrong number of arguments for '" + args.getString(0).toLowerCase() + "' command");
+            return;
+        }
+
+        if (out != null && !keyspace().freeMemoryIfNeeded()) {
+            out.writeRaw(RespWriter.ERR_OOM);
+            return;
+        }
+
+        ByteKey[] keys = keyArgs(args, 1, 2);
+        boolean[] set = new boolean[1];
+        keyspace().withKeysLocked(keys, () -> {
+            if (nx) {
+                for (ByteKey key : keys) {
+                    if (keyspace(key).get(key) != null) return;
+                }
+            }
+            // In order, so the last of repeated keys wins; SET drops any TTL, and so does MSET
+            for (int i = 0; i < keys.length; i++) {
+                keyspace(keys[i]).put(keys[i], KeyValue.of(args.getBytes(2 + 2 * i), 0));
+            }
+            set[0] = true;
+        });
+
+        if (out == null) return;
+        if (nx) {
+            out.writeInteger(set[0] ? 1 : 0);
+        } else {
+            out.writeOk();
+        }
+        if (set[0]) ReplicationHandler.propagateAs(out.sink(), MSET, args);
+    }
+
+    // DEL and UNLINK key [key ...]: how many of the keys there were. Every key is removed
+    // holding all their stripes, like MSET. A removed value is the garbage collector's to
+    // free either way, so UNLINK is DEL.
+    public static void handleDel(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() < 2) {
+            if (out != null) out.writeError("ERR wrong number of arguments for '" + args.getString(0).toLowerCase() + "' command");
+            return;
+        }
+
+        ByteKey[] keys = keyArgs(args, 1, 1);
+        int[] deleted = new int[1];
+        keyspace().withKeysLocked(keys, () -> {
+            for (ByteKey key : keys) {
+                Keyspace keyspace = keyspace(key);
+                // get() first, as an expired key isn't there to delete
+                if (keyspace.get(key) != null && keyspace.remove(key) != null) deleted[0]++;
+            }
+        });
+
+        if (out == null) return;
+        out.writeInteger(deleted[0]);
+        if (deleted[0] > 0) ReplicationHandler.propagate(out.sink(), args);
+    }
+
+    // EXISTS key [key ...]: how many of the keys exist, a key named twice counting twice
+    public static void handleExists(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() < 2) {
+            out.writeError("ERR wrong number of arguments for 'exists' command");
+            return;
+        }
+
+        ByteKey[] keys = keyArgs(args, 1, 1);
+        int[] found = new int[1];
+        keyspace().withKeysLocked(keys, () -> {
+            for (ByteKey key : keys) {
+                if (keyspace(key).get(key) != null) found[0]++;
+            }
+        });
+        out.writeInteger(found[0]);
+    }
+
+    // PUBLISH channel message. Replies with the number of clients it went to, which
+    // on a replica, where it comes from the master, is nobody's business.
+    public static void handlePublish(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 3) {
+            if (out != null) out.writeError("ERR wrong number of arguments for 'publish' command");
+            return;
+        }
+
+        int receivers = PubSub.publish(args.getKey(1).bytes(), args.getKey(2).bytes());
+        if (out != null) {
+            out.writeInteger(receivers);
+            ReplicationHandler.propagate(out.sink(), args);
+        }
+    }
+
+    // HELLO [protover [AUTH username password] [SETNAME clientname]], on the connection's
+    // thread: switches its replies to RESP2 or RESP3 and describes the server, as a map
+    // in RESP3. There are no passwords or client names to set, so AUTH and SETNAME are
+    // only checked for their arguments. A RESP3 client stays on RESP3 while subscribed,
+    // where a RESP2 one could not tell messages from replies.
+    static void handleHello(RespRequest args, RespWriter out, long clientId, PubSub.Subscriber subscriber) throws IOException {
+        int protocol = out.protocol();
+        if (args.size() >= 2) {
+            long version;
+            try {
+                version = args.getLong(1);
+            } catch (NumberFormatException e) {
+                out.writeError("ERR Protocol version is not an integer or out of range");
+                return;
+            }
+            if (version != 2 && version != 3) {
+                out.writeError("NOPROTO unsupported protocol version");
+                return;
+            }
+            protocol = (int) version;
+        }
+        for (int i = 2; i < args.size(); i++) {
+            if (args.equalsIgnoreCase(i, "AUTH") && i + 2 < args.size()) {
+                i += 2;
+            } else if (args.equalsIgnoreCase(i, "SETNAME") && i + 1 < args.size()) {
+                i++;
+            } else {
+                out.writeError("ERR Syntax error in HELLO option '" + RespWriter.quoted(args.getString(i)) + "'");
+                return;
+            }
+        }
+        if (protocol == 2 && subscriber != null && subscriber.isSubscribed()) {
+            out.writeError("ERR Can't switch to RESP2 while subscribed");
+            return;
+        }
+
+        out.setProtocol(protocol);
+        if (subscriber != null) subscriber.setResp3(protocol == 3);
+        out.writeMapHeader(7);
+        out.writeBulkString("server");
+        out.writeBulkString("redis");
+        out.writeBulkString("version");
+        out.writeBulkString(SERVER_VERSION);
+        out.writeBulkString("proto");
+        out.writeInteger(protocol);
+        out.writeBulkString("id");
+        out.writeInteger(clientId);
+        out.writeBulkString("mode");
+        out.writeBulkString("standalone");
+        out.writeBulkString("role");
+        out.writeBulkString(Config.isReplica ? "replica" : "master");
+        out.writeBulkString("modules");
+        out.writeArrayHeader(0);
+    }
+
+    // PUBSUB CHANNELS [pattern], PUBSUB NUMSUB [channel ...] and PUBSUB NUMPAT
+    public static void handlePubsub(RespRequest args, RespWriter out) throws IOException {
+        String subcommand = args.size() >= 2 ? args.getString(1).toUpperCase() : "";
+        switch (subcommand) {
+            case "CHANNELS":
+                if (args.size() > 3) break;
+                Glob pattern = args.size() == 3 ? Glob.compile(args.array(), args.offset(2), args.length(2)) : null;
+                List<byte[]> channels = PubSub.activeChannels(pattern);
+                out.writeArrayHeader(channels.size());
+                for (byte[] channel : channels) out.writeBulkString(channel);
+                return;
+            case "NUMSUB":
+                out.writeMapHeader(args.size() - 2);
+                for (int i = 2; i < args.size(); i++) {
+                    out.writeBulkString(args.array(), args.offset(i), args.length(i));
+                    out.writeInteger(PubSub.subscriberCount(args.getKey(i)));
+                }
+                return;
+            case "NUMPAT":
+                if (args.size() != 2) break;
+                out.writeInteger(PubSub.patternCount());
+                return;
+            default:
+                out.writeError("ERR unknown subcommand or wrong number of arguments for 'pubsub' command");
+                return;
+        }
+        out.writeError("ERR wrong number of arguments for 'pubsub|" + subcommand.toLowerCase() + "' command");
+    }
+
+    // WATCH key [key ...]: notes the entry of each key for the connection's next EXEC,
+    // reading them on the threads that own them
+    public static void handleWatch(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() < 2) {
+            out.writeError("ERR wrong number of arguments for 'watch' command");
+            return;
+        }
+        Transaction transaction = args.transaction;
+        if (transaction == null) {
+            out.writeError("ERR WATCH is only allowed on a client connection");
+            return;
+        }
+
+        for (int i = 1; i < args.size(); i++) {
+            ByteKey key = args.getKey(i);
+            transaction.watch(key, keyspace(key).read(key, kv -> kv));
+        }
+        out.writeOk();
+    }
+
+    // EXEC, with the transaction the connection attached. Its commands run one after the
+    // other holding the stripes of every key they or the watched keys name, so nothing
+    // else reads or writes any of those keys in between; in sharded mode this runs alone
+    // on every shard involved, each command as if on the shard that owns its key. Nothing
+    // runs if a watched key changed. The replies are gathered in a scratch buffer while
+    // the keys are held, and the writes reach replicas as one MULTI/EXEC block.
+    public static void handleExec(RespRequest args, RespWriter out) throws IOException {
+        Transaction transaction = args.transaction;
+        if (transaction == null) {
+            out.writeError("ERR EXEC without MULTI");
+            return;
+        }
+        if (transaction.isAborted()) {
+            Transaction.writeExecAbort(out);
+            return;
+        }
+
+        RespWriter reply = out.scratch();
+        ReplicationHandler.beginBlock();
+        try {
+            keyspace().withKeysLocked(transaction.keys(), () -> {
+                try {
+                    if (!transaction.watchesHold()) {
+                        reply.writeNullArray();
+                        return;
+                    }
+                    reply.writeArrayHeader(transaction.commands().size());
+                    for (RespRequest command : transaction.commands()) {
+                        command.tracking = args.tracking;
+                        asOwner(command, () -> {
+                            try {
+                                dispatch(command, reply);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e); // no sink, nothing to fail
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e); // no sink, nothing to fail
+                }
+            });
+        } finally {
+            ReplicationHandler.endBlock(out.sink());
+        }
+        reply.writeTo(out);
+    }
+
+    // Runs a command of a transaction. In sharded mode that is on the thread of one of
+    // the shards involved, so keyspace() is switched to the shard owning the command's
+    // key while it runs; commands over several keys look each one up themselves.
+    private static void asOwner(RespRequest command, Runnable task) {
+        int keyIndex = firstKeyIndex(command);
+        if (!(Thread.currentThread() instanceof ShardedCommandExecutor.Shard shard)
+                || keyIndex == 0 || keyIndex >= command.size() || multiKeys(command) != null) {
+            task.run();
+            return;
+        }
+        shard.current = keyspace(command.getKey(keyIndex));
+        try {
+            task.run();
+        } finally {
+            shard.current = shard.keyspace;
+        }
+    }
+
+    // EXPIRE, PEXPIRE and PEXPIREAT: `unitMillis` scales the argument to milliseconds,
+    // `absolute` means it is a Unix time rather than a TTL. Replicas are sent PEXPIREAT
+    // so they expire the key at the same moment as we do.
+    public static void handleExpire(RespRequest args, RespWriter out, long unitMillis, boolean absolute) throws IOException {
+        if (args.size() != 3) {
+            if (out != null) out.writeError("ERR wrong number of arguments for '" + args.getString(0).toLowerCase() + "' command");
+            return;
+        }
+
+        long expirationTimestamp;
+        long now = System.currentTimeMillis();
+        try {
+            long when = Math.multiplyExact(args.getLong(2), unitMillis);
+            expirationTimestamp = absolute ? when : Math.addExact(now, when);
+        } catch (NumberFormatException e) {
+            if (out != null) out.writeRaw(RespWriter.ERR_NOT_INTEGER);
+            return;
+        } catch (ArithmeticException e) {
+            if (out != null) out.writeError("ERR invalid expire time in '" + args.getString(0).toLowerCase() + "' command");
+            return;
+        }
+
+        // A time already in the past makes the key go away right now
+        ByteKey key = args.getKey(1);
+        if (!keyspace().setExpiry(key, Math.max(expirationTimestamp, 1))) {
+            if (out != null) out.writeInteger(0);
+            return;
+        }
+
+        if (out != null) {
+            out.writeInteger(1);
+            ReplicationHandler.propagate(out.sink(), PEXPIREAT, key.bytes(),
+                    Long.toString(expirationTimestamp).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    // TTL and PTTL: -2 for a missing key, -1 for a key without a TTL
+    public static void handleTtl(RespRequest args, RespWriter out, long unitMillis) throws IOException {
+        if (args.size() != 2) {
+            out.writeError("ERR wrong number of arguments for '" + args.getString(0).toLowerCase() + "' command");
+            return;
+        }
+
+        KeyValue kv = keyspace().get(args.getKey(1));
+        if (kv == null) {
+            out.writeInteger(-2);
+        } else if (kv.expirationTimestamp <= 0) {
+            out.writeInteger(-1);
+        } else {
+            long remaining = Math.max(0, kv.expirationTimestamp - System.currentTimeMillis());
+            out.writeInteger((remaining + unitMillis / 2) / unitMillis);
+        }
+    }
+
+    public static void handlePersist(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 2) {
+            if (out != null) out.writeError("ERR wrong number of arguments for 'persist' command");
+            return;
+        }
+
+        ByteKey key = args.getKey(1);
+        if (!keyspace().setExpiry(key, 0)) {
+            if (out != null) out.writeInteger(0);
+            return;
+        }
+
+        if (out != null) {
+            out.writeInteger(1);
+            ReplicationHandler.propagate(out.sink(), PERSIST, key.bytes());
+        }
+    }
+
+    // INCR, DECR, INCRBY and DECRBY. A missing key counts as 0 and the key keeps its TTL.
+    // The update runs atomically under the keyspace's per-key lock, on the long itself.
+    public static void handleIncr(RespRequest args, RespWriter out, int sign, boolean withIncrement) throws IOException {
+        if (args.size() != (withIncrement ? 3 : 2)) {
+            if (out != null) out.writeError("ERR wrong number of arguments for '" + args.getString(0).toLowerCase() + "' command");
+            return;
+        }
+
+        long increment = 1;
+        if (withIncrement) {
+            try {
+                increment = args.getLong(2);
+            } catch (NumberFormatException e) {
+                if (out != null) out.writeRaw(RespWriter.ERR_NOT_INTEGER);
+                return;
+            }
+            if (sign < 0 && increment == Long.MIN_VALUE) {
+                if (out != null) out.writeError("ERR decrement would overflow");
+                return;
+            }
+        }
+        long delta = sign * increment;
+
+        if (out != null && !keyspace().freeMemoryIfNeeded()) {
+            out.writeRaw(RespWriter.ERR_OOM);
+            return;
+        }
+
+        // The reply is taken inside the update: once it returns, another INCR may
+        // already have moved the counter on
+        long[] result = new long[1];
+        try {
+            keyspace().update(args.getKey(1), current -> {
+                if (current == null) {
+                    result[0] = delta;
+                    return KeyValue.ofLong(delta, 0);
+                }
+                if (!current.isString()) throw WrongTypeException.INSTANCE;
+                // Anything that reads as an integer was stored as one
+                if (!current.isLong()) throw new NumberFormatException("value is not an integer");
+                result[0] = Math.addExact(current.longValue(), delta);
+                current.setLong(result[0]);
+                return current;
+            });
+        } catch (NumberFormatException e) {
+            if (out != null) out.writeRaw(RespWriter.ERR_NOT_INTEGER);
+            return;
+        } catch (ArithmeticException e) {
+            if (out != null) out.writeError("ERR increment or decrement would overflow");
+            return;
+        }
+
+        if (out != null) {
+            out.writeInteger(result[0]);
+            ReplicationHandler.propagate(out.sink(), args);
+        }
+    }
+
+    // The sum is exact decimal arithmetic rounded to 17 decimals and printed without an
+    // exponent, which matches what Redis gets from long double: 10.1 + 0.2 is 10.3
+    public static void handleIncrByFloat(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 3) {
+            if (out != null) out.writeError("ERR wrong number of arguments for 'incrbyfloat' command");
+            return;
+        }
+
+        BigDecimal increment;
+        try {
+            increment = parseDecimal(args.getBytes(2));
+        } catch (NumberFormatException e) {
+            if (out != null) out.writeError("ERR value is not a valid float");
+            return;
+        }
+
+        if (out != null && !keyspace().freeMemoryIfNeeded()) {
+            out.writeRaw(RespWriter.ERR_OOM);
+            return;
+        }
+
+        byte[][] result = new byte[1][];
+        try {
+            keyspace().update(args.getKey(1), current -> {
+                BigDecimal value = current == null ? BigDecimal.ZERO : parseDecimal(current.valueBytes());
+                BigDecimal sum = value.add(increment).setScale(17, RoundingMode.HALF_EVEN).stripTrailingZeros();
+                if (Double.isInfinite(sum.doubleValue())) throw new ArithmeticException("overflow");
+                result[0] = sum.toPlainString().getBytes(StandardCharsets.US_ASCII);
+                return KeyValue.of(result[0], current == null ? 0 : current.expirationTimestamp);
+            });
+        } catch (NumberFormatException e) {
+            if (out != null) out.writeError("ERR value is not a valid float");
+            return;
+        } catch (ArithmeticException e) {
+            if (out != null) out.writeError("ERR increment would produce NaN or Infinity");
+            return;
+        }
+
+        if (out != null) {
+            out.writeBulkString(result[0]);
+            ReplicationHandler.propagate(out.sink(), args);
+        }
+    }
+
+    // A float in decimal or exponent notation, within the range of a double and at
+    // most 5 KB of text like in Redis. Magnitudes too small to survive rounding to 17
+    // decimals become zero, which also keeps the exact arithmetic cheap.
+    private static BigDecimal parseDecimal(byte[] text) {
+        if (text.length == 0 || text.length > 5 * 1024) throw new NumberFormatException("not a valid float");
+        BigDecimal value = new BigDecimal(new String(text, StandardCharsets.US_ASCII));
+        if (Double.isInfinite(value.doubleValue())) throw new NumberFormatException("out of range");
+        if (value.precision() - value.scale() < -17) return BigDecimal.ZERO;
+        return value;
+    }
+
+    // LPUSH and RPUSH. Elements go in one at a time, so LPUSH a b c leaves c first.
+    // Clients blocked on the key are served from the new elements before anyone else
+    // can pop them.
+    public static void handlePush(RespRequest args, RespWriter out, boolean left) throws IOException {
+        if (args.size() < 3) {
+            if (out != null) out.writeError("ERR wrong number of arguments for '" + args.getString(0).toLowerCase() + "' command");
+            return;
+        }
+
+        if (out != null && !keyspace().freeMemoryIfNeeded()) {
+            out.writeRaw(RespWriter.ERR_OOM);
+            return;
+        }
+
+        ByteKey key = args.getKey(1);
+        long[] length = new long[1];
+        keyspace().update(key, current -> {
+            KeyValue kv = current != null ? current : KeyValue.ofList(new QuickList());
+            QuickList list = kv.list();
+            for (int i = 2; i < args.size(); i++) {
+                if (left) {
+                    list.pushFirst(args.array(), args.offset(i), args.length(i));
+                } else {
+                    list.pushLast(args.array(), args.offset(i), args.length(i));
+                }
+            }
+            length[0] = list.size();
+            return kv;
+        });
+
+        // Replicas serve nobody: our master sends them the pops its own waiters made
+        if (out != null) {
+            out.writeInteger(length[0]);
+            ReplicationHandler.propagate(out.sink(), args);
+            BlockedClient.serve(key);
+        }
+    }
+
+    // LPOP and RPOP, with an optional count that turns the reply into an array
+    public static void handlePop(RespRequest args, RespWriter out, boolean left) throws IOException {
+        if (args.size() != 2 && args.size() != 3) {
+            if (out != null) out.writeError("ERR wrong number of arguments for '" + args.getString(0).toLowerCase() + "' command");
+            return;
+        }
+
+        boolean withCount = args.size() == 3;
+        long count = 1;
+        if (withCount) {
+            try {
+                count = args.getLong(2);
+            } catch (NumberFormatException e) {
+                count = -1;
+            }
+            if (count < 0) {
+                if (out != null) out.writeError("ERR value is out of range, must be positive");
+                return;
+            }
+        }
+
+        long wanted = count;
+        List<byte[]> popped = new ArrayList<>();
+        KeyValue[] found = new KeyValue[1];
+        keyspace().update(args.getKey(1), current -> {
+            if (current == null) return null;
+            found[0] = current;
+            QuickList list = current.list();
+            for (long i = 0; i < wanted && !list.isEmpty(); i++) {
+                popped.add(left ? list.popFirst() : list.popLast());
+            }
+            return list.isEmpty() ? null : current;
+        });
+
+        if (out == null) return;
+        if (!withCount) {
+            if (popped.isEmpty()) {
+                out.writeNullBulk();
+            } else {
+                out.writeBulkString(popped.get(0));
+            }
+        } else if (found[0] == null) {
+            out.writeNullArray();
+        } else {
+            out.writeArrayHeader(popped.size());
+            for (byte[] element : popped) out.writeBulkString(element);
+        }
+        if (!popped.isEmpty()) ReplicationHandler.propagate(out.sink(), args);
+    }
+
+    // LRANGE: the reply is encoded under the key's lock, straight from the list's
+    // nodes, and copied out once the lock is released
+    public static void handleLrange(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 4) {
+            out.writeError("ERR wrong number of arguments for 'lrange' command");
+            return;
+        }
+
+        long start, stop;
+        try {
+            start = args.getLong(2);
+            stop = args.getLong(3);
+        } catch (NumberFormatException e) {
+            out.writeRaw(RespWriter.ERR_NOT_INTEGER);
+            return;
+        }
+
+        RespWriter reply = out.scratch();
+        keyspace().read(args.getKey(1), current -> {
+            if (current == null) return null;
+            QuickList list = current.list();
+            long[] range = listRange(start, stop, list.size());
+            try {
+                reply.writeArrayHeader((int) (range[1] - range[0]));
+                list.writeRange(range[0], range[1] - range[0], reply);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // no sink, nothing to fail
+            }
+            return null;
+        });
+        if (reply.size() == 0) {
+            out.writeRaw(RespWriter.EMPTY_ARRAY);
+        } else {
+            reply.writeTo(out);
+        }
+    }
+
+    public static void handleLlen(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 2) {
+            out.writeError("ERR wrong number of arguments for 'llen' command");
+            return;
+        }
+
+        Long length = keyspace().read(args.getKey(1), current -> current == null ? 0L : current.list().size());
+        out.writeInteger(length);
+    }
+
+    public static void handleLindex(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 3) {
+            out.writeError("ERR wrong number of arguments for 'lindex' command");
+            return;
+        }
+
+        long index;
+        try {
+            index = args.getLong(2);
+        } catch (NumberFormatException e) {
+            out.writeRaw(RespWriter.ERR_NOT_INTEGER);
+            return;
+        }
+
+        byte[] element = keyspace().read(args.getKey(1), current -> {
+            if (current == null) return null;
+            QuickList list = current.list();
+            long i = index < 0 ? list.size() + index : index;
+            return i < 0 || i >= list.size() ? null : list.get(i);
+        });
+        if (element == null) {
+            out.writeNullBulk();
+        } else {
+            out.writeBulkString(element);
+        }
+    }
+
+    // LTRIM drops whole nodes from both ends where it can; a range that leaves nothing
+    // deletes the key
+    public static void handleLtrim(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 4) {
+            if (out != null) out.writeError("ERR wrong number of arguments for 'ltrim' command");
+            return;
+        }
+
+        long start, stop;
+        try {
+            start = args.getLong(2);
+            stop = args.getLong(3);
+        } catch (NumberFormatException e) {
+            if (out != null) out.writeRaw(RespWriter.ERR_NOT_INTEGER);
+            return;
+        }
+
+        keyspace().update(args.getKey(1), current -> {
+            if (current == null) return null;
+            QuickList list = current.list();
+            long[] range = listRange(start, stop, list.size());
+            if (range[0] == range[1]) return null;
+            list.removeLast(list.size() - range[1]);
+            list.removeFirst(range[0]);
+            return current;
+        });
+
+        if (out != null) {
+            out.writeOk();
+            ReplicationHandler.propagate(out.sink(), args);
+        }
+    }
+
+    // BLPOP and BRPOP where waiting is not an option: the first non-empty list is
+    // popped, otherwise it is as if the timeout had passed. Only inside EXEC, which holds
+    // every key named.
+    private static void handleBlockingPopNow(RespRequest args, RespWriter out, boolean left) throws IOException {
+        if (args.size() < 3) {
+            out.writeError("ERR wrong number of arguments for '" + args.getString(0).toLowerCase() + "' command");
+            return;
+        }
+
+        for (int i = 1; i < args.size() - 1; i++) {
+            ByteKey key = args.getKey(i);
+            byte[][] popped = new byte[1][];
+            keyspace(key).update(key, current -> {
+                if (current == null) return null;
+                QuickList list = current.list();
+                popped[0] = left ? list.popFirst() : list.popLast();
+                return list.isEmpty() ? null : current;
+            });
+            if (popped[0] != null) {
+                out.writeArrayHeader(2);
+                out.writeBulkString(key.bytes());
+                out.writeBulkString(popped[0]);
+                ReplicationHandler.propagate(out.sink(), left ? LPOP : RPOP, key.bytes());
+                return;
+            }
+        }
+        out.writeNullArray();
+    }
+
+    // LRANGE/LTRIM indexes, negative ones counting from the end, as the half-open
+    // range [from, to) they cover in a list of `size` elements
+    private static long[] listRange(long start, long stop, long size) {
+        if (start < 0) start = Math.max(0, size + start);
+        if (stop < 0) stop = size + stop;
+        if (stop >= size) stop = size - 1;
+        if (start > stop) return new long[] {0, 0};
+        return new long[] {start, stop + 1};
+    }
+
+    // HSET key field value [field value ...], replying how many fields are new
+    public static void handleHset(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() < 4 || args.size() % 2 != 0) {
+            if (out != null) out.writeError("ERR wrong number of arguments for 'hset' command");
+            return;
+        }
+
+        if (out != null && !keyspace().freeMemoryIfNeeded()) {
+            out.writeRaw(RespWriter.ERR_OOM);
+            return;
+        }
+
+        long[] added = new long[1];
+        keyspace().update(args.getKey(1), current -> {
+            KeyValue kv = current != null ? current : KeyValue.ofHash(new HashValue());
+            HashValue hash = kv.hash();
+            for (int i = 2; i < args.size(); i += 2) {
+                if (hash.put(args.array(), args.offset(i), args.length(i),
+                        args.array(), args.offset(i + 1), args.length(i + 1))) {
+                    added[0]++;
+                }
+            }
+            return kv;
+        });
+
+        if (out != null) {
+            out.writeInteger(added[0]);
+            ReplicationHandler.propagate(out.sink(), args);
+        }
+    }
+
+    public static void handleHget(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 3) {
+            out.writeError("ERR wrong number of arguments for 'hget' command");
+            return;
+        }
+
+        byte[] value = keyspace().read(args.getKey(1), current ->
+                current == null ? null : current.hash().get(args.array(), args.offset(2), args.length(2)));
+        if (value == null) {
+            out.writeNullBulk();
+        } else {
+            out.writeBulkString(value);
+        }
+    }
+
+    public static void handleHmget(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() < 3) {
+            out.writeError("ERR wrong number of arguments for 'hmget' command");
+            return;
+        }
+
+        byte[][] values = keyspace().read(args.getKey(1), current -> {
+            byte[][] found = new byte[args.size() - 2][];
+            if (current == null) return found;
+            HashValue hash = current.hash();
+            for (int i = 2; i < args.size(); i++) {
+                found[i - 2] = hash.get(args.array(), args.offset(i), args.length(i));
+            }
+            return found;
+        });
+        out.writeArrayHeader(values.length);
+        for (byte[] value : values) {
+            if (value == null) {
+                out.writeNullBulk();
+            } else {
+                out.writeBulkString(value);
+            }
+        }
+    }
+
+    // HDEL deletes the key along with its last field
+    public static void handleHdel(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() < 3) {
+            if (out != null) out.writeError("ERR wrong number of arguments for 'hdel' command");
+            return;
+        }
+
+        long[] removed = new long[1];
+        keyspace().update(args.getKey(1), current -> {
+            if (current == null) return null;
+            HashValue hash = current.hash();
+            for (int i = 2; i < args.size(); i++) {
+                if (hash.remove(args.array(), args.offset(i), args.length(i))) removed[0]++;
+            }
+            return hash.isEmpty() ? null : current;
+        });
+
+        if (out != null) {
+            out.writeInteger(removed[0]);
+            if (removed[0] > 0) ReplicationHandler.propagate(out.sink(), args);
+        }
+    }
+
+    public static void handleHlen(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 2) {
+            out.writeError("ERR wrong number of arguments for 'hlen' command");
+            return;
+        }
+
+        Integer length = keyspace().read(args.getKey(1), current -> current == null ? 0 : current.hash().size());
+        out.writeInteger(length);
+    }
+
+    // HGETALL: encoded under the key's lock, like LRANGE
+    public static void handleHgetall(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 2) {
+            out.writeError("ERR wrong number of arguments for 'hgetall' command");
+            return;
+        }
+
+        RespWriter reply = out.scratch();
+        keyspace().read(args.getKey(1), current -> {
+            if (current == null) return null;
+            try {
+                current.hash().writeAll(reply);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // no sink, nothing to fail
+            }
+            return null;
+        });
+        if (reply.size() == 0) {
+            out.writeMapHeader(0);
+        } else {
+            reply.writeTo(out);
+        }
+    }
+
+    // HINCRBY: a missing field counts as 0
+    public static void handleHincrby(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 4) {
+            if (out != null) out.writeError("ERR wrong number of arguments for 'hincrby' command");
+            return;
+        }
+
+        long increment;
+        try {
+            increment = args.getLong(3);
+        } catch (NumberFormatException e) {
+            if (out != null) out.writeRaw(RespWriter.ERR_NOT_INTEGER);
+            return;
+        }
+
+        if (out != null && !keyspace().freeMemoryIfNeeded()) {
+            out.writeRaw(RespWriter.ERR_OOM);
+            return;
+        }
+
+        long[] result = new long[1];
+        try {
+            keyspace().update(args.getKey(1), current -> {
+                KeyValue kv = current != null ? current : KeyValue.ofHash(new HashValue());
+                HashValue hash = kv.hash();
+                byte[] value = hash.get(args.array(), args.offset(2), args.length(2));
+                long previous = value == null ? 0 : KeyValue.parseLong(value);
+                result[0] = Math.addExact(previous, increment);
+                byte[] updated = Long.toString(result[0]).getBytes(StandardCharsets.US_ASCII);
+                hash.put(args.array(), args.offset(2), args.length(2), updated, 0, updated.length);
+                return kv;
+            });
+        } catch (NumberFormatException e) {
+            if (out != null) out.writeError("ERR hash value is not an integer");
+            return;
+        } catch (ArithmeticException e) {
+            if (out != null) out.writeError("ERR increment or decrement would overflow");
+            return;
+        }
+
+        if (out != null) {
+            out.writeInteger(result[0]);
+            ReplicationHandler.propagate(out.sink(), args);
+        }
+    }
+
+    // ZADD key [NX|XX] [GT|LT] [CH] [INCR] score member [score member ...]. Replies how
+    // many members were added (or changed, with CH); with INCR, the new score.
+    public static void handleZadd(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() < 4) {
+            if (out != null) out.writeError("ERR wrong number of arguments for 'zadd' command");
+            return;
+        }
+
+        boolean nx = false, xx = false, gt = false, lt = false, ch = false, incr = false;
+        int first = 2;
+        for (; first < args.size(); first++) {
+            if (args.equalsIgnoreCase(first, "NX")) nx = true;
+            else if (args.equalsIgnoreCase(first, "XX")) xx = true;
+            else if (args.equalsIgnoreCase(first, "GT")) gt = true;
+            else if (args.equalsIgnoreCase(first, "LT")) lt = true;
+            else if (args.equalsIgnoreCase(first, "CH")) ch = true;
+            else if (args.equalsIgnoreCase(first, "INCR")) incr = true;
+            else break;
+        }
+        int pairs = (args.size() - first) / 2;
+        if (pairs == 0 || (args.size() - first) % 2 != 0) {
+            if (out != null) out.writeRaw(RespWriter.ERR_SYNTAX);
+            return;
+        }
+        if (nx && xx) {
+            if (out != null) out.writeError("ERR XX and NX options at the same time are not compatible");
+            return;
+        }
+        if ((gt && lt) || (nx && (gt || lt))) {
+            if (out != null) out.writeError("ERR GT, LT, and/or NX options at the same time are not compatible");
+            return;
+        }
+        if (incr && pairs > 1) {
+            if (out != null) out.writeError("ERR INCR option supports a single increment-element pair");
+            return;
+        }
+
+        // All scores are checked before anything changes
+        double[] scores = new double[pairs];
+        try {
+            for (int i = 0; i < pairs; i++) scores[i] = ZSetValue.parseScore(args.getBytes(first + 2 * i));
+        } catch (NumberFormatException e) {
+            if (out != null) out.writeError("ERR value is not a valid float");
+            return;
+        }
+
+        if (out != null && !keyspace().freeMemoryIfNeeded()) {
+            out.writeRaw(RespWriter.ERR_OOM);
+            return;
+        }
+
+        boolean onlyNew = nx, onlyExisting = xx, onlyHigher = gt, onlyLower = lt, increment = incr;
+        int firstPair = first;
+        // Added, changed, and the score INCR left, NaN if it changed nothing
+        long[] counts = new long[2];
+        double[] result = {Double.NaN};
+        try {
+            keyspace().update(args.getKey(1), current -> {
+                if (current == null && onlyExisting) return null;
+                KeyValue kv = current != null ? current : KeyValue.ofZSet(new ZSetValue());
+                ZSetValue zset = kv.zset();
+                for (int i = 0; i < pairs; i++) {
+                    int member = firstPair + 2 * i + 1;
+                    double old = zset.score(args.array(), args.offset(member), args.length(member));
+                    boolean exists = !Double.isNaN(old);
+                    if (exists ? onlyNew : onlyExisting) continue;
+                    double score = increment ? (exists ? old : 0) + scores[i] : scores[i];
+                    // inf + -inf
+                    if (Double.isNaN(score)) throw new ArithmeticException("NaN score");
+                    if (exists && ((onlyHigher && score <= old) || (onlyLower && score >= old))) continue;
+                    if (zset.put(args.array(), args.offset(member), args.length(member), score)) {
+                        counts[0]++;
+                    } else if (score != old) {
+                        counts[1]++;
+                    }
+                    result[0] = score;
+                }
+                return zset.isEmpty() ? null : kv;
+            });
+        } catch (ArithmeticException e) {
+            if (out != null) out.writeError("ERR resulting score is not a number (NaN)");
+            return;
+        }
+
+        if (out == null) return;
+        if (incr) {
+            if (Double.isNaN(result[0])) {
+                out.writeNullBulk();
+            } else {
+                ZSetValue.writeScore(result[0], out);
+            }
+        } else {
+            out.writeInteger(ch ? counts[0] + counts[1] : counts[0]);
+        }
+        if (counts[0] + counts[1] > 0) ReplicationHandler.propagate(out.sink(), args);
+    }
+
+    public static void handleZincrby(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 4) {
+            if (out != null) out.writeError("ERR wrong number of arguments for 'zincrby' command");
+            return;
+        }
+
+        double increment;
+        try {
+            increment = ZSetValue.parseScore(args.getBytes(2));
+        } catch (NumberFormatException e) {
+            if (out != null) out.writeError("ERR value is not a valid float");
+            return;
+        }
+
+        if (out != null && !keyspace().freeMemoryIfNeeded()) {
+            out.writeRaw(RespWriter.ERR_OOM);
+            return;
+        }
+
+        double[] result = new double[1];
+        try {
+            keyspace().update(args.getKey(1), current -> {
+                KeyValue kv = current != null ? current : KeyValue.ofZSet(new ZSetValue());
+                ZSetValue zset = kv.zset();
+                double old = zset.score(args.array(), args.offset(3), args.length(3));
+                result[0] = (Double.isNaN(old) ? 0 : old) + increment;
+                if (Double.isNaN(result[0])) throw new ArithmeticException("NaN score");
+                zset.put(args.array(), args.offset(3), args.length(3), result[0]);
+                return kv;
+            });
+        } catch (ArithmeticException e) {
+            if (out != null) out.writeError("ERR resulting score is not a number (NaN)");
+            return;
+        }
+
+        if (out != null) {
+            ZSetValue.writeScore(result[0], out);
+            ReplicationHandler.propagate(out.sink(), args);
+        }
+    }
+
+    // ZREM deletes the key along with its last member
+    public static void handleZrem(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() < 3) {
+            if (out != null) out.writeError("ERR wrong number of arguments for 'zrem' command");
+            return;
+        }
+
+        long[] removed = new long[1];
+        keyspace().update(args.getKey(1), current -> {
+            if (current == null) return null;
+            ZSetValue zset = current.zset();
+            for (int i = 2; i < args.size(); i++) {
+                if (zset.remove(args.array(), args.offset(i), args.length(i))) removed[0]++;
+            }
+            return zset.isEmpty() ? null : current;
+        });
+
+        if (out != null) {
+            out.writeInteger(removed[0]);
+            if (removed[0] > 0) ReplicationHandler.propagate(out.sink(), args);
+        }
+    }
 
-    public ClientHandler(Socket clientSocket) {
-        this.clientSocket = clientSocket;
+    public static void handleZscore(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 3) {
+            out.writeError("ERR wrong number of arguments for 'zscore' command");
+            return;
+        }
+
+        Double score = keyspace().read(args.getKey(1), current ->
+                current == null ? Double.NaN : current.zset().score(args.array(), args.offset(2), args.length(2)));
+        if (score.isNaN()) {
+            out.writeNullBulk();
+        } else {
+            ZSetValue.writeScore(score, out);
+        }
     }
 
-    public static void putKeyWithExpiry(String key, String value, long expirationUnixMs) {
-        keyValueStore.put(key, new KeyValue(value, expirationUnixMs));
+    public static void handleZcard(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 2) {
+            out.writeError("ERR wrong number of arguments for 'zcard' command");
+            return;
+        }
+
+        Integer size = keyspace().read(args.getKey(1), current -> current == null ? 0 : current.zset().size());
+        out.writeInteger(size);
     }
 
-    @Override
-    public void run() {
-        try (
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            OutputStream out = clientSocket.getOutputStream()
-        ) {
-            this.out = out;
+    // ZRANK and ZREVRANK, optionally WITHSCORE
+    public static void handleZrank(RespRequest args, RespWriter out, boolean reverse) throws IOException {
+        boolean withScore = args.size() == 4 && args.equalsIgnoreCase(3, "WITHSCORE");
+        if (args.size() != 3 && !withScore) {
+            out.writeError(args.size() == 4 ? "ERR syntax error"
+                    : "ERR wrong number of arguments for '" + args.getString(0).toLowerCase() + "' command");
+            return;
+        }
 
-            if (Config.isReplica && !isReplicaConnection) {
-                processMasterHandshake(in, out);
-                isReplicaConnection = true;
+        double[] score = new double[1];
+        Long rank = keyspace().read(args.getKey(1), current -> {
+            if (current == null) return -1L;
+            ZSetValue zset = current.zset();
+            long ascending = zset.rank(args.array(), args.offset(2), args.length(2));
+            if (ascending < 0) return -1L;
+            score[0] = zset.score(args.array(), args.offset(2), args.length(2));
+            return reverse ? zset.size() - 1 - ascending : ascending;
+        });
+        if (rank < 0) {
+            if (withScore) {
+                out.writeNullArray();
+            } else {
+                out.writeNullBulk();
             }
+        } else if (withScore) {
+            out.writeArrayHeader(2);
+            out.writeInteger(rank);
+            ZSetValue.writeScore(score[0], out);
+        } else {
+            out.writeInteger(rank);
+        }
+    }
 
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                if (!inputLine.startsWith("*")) continue;
+    public static void handleZcount(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 4) {
+            out.writeError("ERR wrong number of arguments for 'zcount' command");
+            return;
+        }
 
-                int argCount = Integer.parseInt(inputLine.substring(1));
-                List<String> args = readArguments(in, argCount);
-                if (args.isEmpty()) continue;
+        ZSetValue.Bound min, max;
+        try {
+            min = ZSetValue.Bound.score(args.getBytes(2));
+            max = ZSetValue.Bound.score(args.getBytes(3));
+        } catch (NumberFormatException e) {
+            out.writeError("ERR min or max is not a float");
+            return;
+        }
 
-                String command = args.get(0).toUpperCase();
+        Long count = keyspace().read(args.getKey(1), current -> {
+            if (current == null) return 0L;
+            ZSetValue zset = current.zset();
+            return Math.max(0, zset.rankAt(max, true) - zset.rankAt(min, false));
+        });
+        out.writeInteger(count);
+    }
 
-                if (isReplicaConnection && (command.equals("SET") || command.equals("PING") || command.equals("ECHO"))) {
-                    switch (command) {
-                        case "SET": handleSet(args, null); break;
-                        case "PING": out.write("+PONG\r\n".getBytes()); break;
-                        case "ECHO":
-                            if (args.size() >= 2) {
-                                String echo = args.get(1);
-                                out.write(("$" + echo.length() + "\r\n" + echo + "\r\n").getBytes());
-                            }
-                            break;
-                    }
-                    continue;
+    // ZRANGE key start stop [BYSCORE|BYLEX] [REV] [LIMIT offset count] [WITHSCORES].
+    // Whatever the bounds, they come down to an interval of ranks, and the reply is
+    // encoded under the key's lock straight from the set, like LRANGE.
+    public static void handleZrange(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() < 4) {
+            out.writeError("ERR wrong number of arguments for 'zrange' command");
+            return;
+        }
+
+        boolean byScore = false, byLex = false, rev = false, withScores = false, limit = false;
+        long offset = 0, count = -1;
+        for (int i = 4; i < args.size(); i++) {
+            if (args.equalsIgnoreCase(i, "BYSCORE")) {
+                byScore = true;
+            } else if (args.equalsIgnoreCase(i, "BYLEX")) {
+                byLex = true;
+            } else if (args.equalsIgnoreCase(i, "REV")) {
+                rev = true;
+            } else if (args.equalsIgnoreCase(i, "WITHSCORES")) {
+                withScores = true;
+            } else if (args.equalsIgnoreCase(i, "LIMIT") && i + 2 < args.size()) {
+                try {
+                    offset = args.getLong(i + 1);
+                    count = args.getLong(i + 2);
+                } catch (NumberFormatException e) {
+                    out.writeRaw(RespWriter.ERR_NOT_INTEGER);
+                    return;
                 }
+                limit = true;
+                i += 2;
+            } else {
+                out.writeRaw(RespWriter.ERR_SYNTAX);
+                return;
+            }
+        }
+        if (byScore && byLex) {
+            out.writeRaw(RespWriter.ERR_SYNTAX);
+            return;
+        }
+        if (limit && !byScore && !byLex) {
+            out.writeError("ERR syntax error, LIMIT is only supported in combination with either BYSCORE or BYLEX");
+            return;
+        }
+        if (withScores && byLex) {
+            out.writeError("ERR syntax error, WITHSCORES not supported in combination with BYLEX");
+            return;
+        }
 
-                switch (command) {
-                    case "PING": out.write("+PONG\r\n".getBytes()); break;
-                    case "REPLCONF": out.write("+OK\r\n".getBytes()); break;
-                    case "PSYNC": handlePsync(args, out); break;
-                    case "ECHO":
-                        if (args.size() >= 2) {
-                            String echo = args.get(1);
-                            out.write(("$" + echo.length() + "\r\n" + echo + "\r\n").getBytes());
-                        }
-                        break;
-                    case "SET": handleSet(args, out); break;
-                    case "GET": handleGet(args, out); break;
-                    case "CONFIG": handleConfig(args, out); break;
-                    case "KEYS": handleKeys(args, out); break;
-                    case "INFO": handleInfo(args, out); break;
-                    default: out.write("-ERR unknown command\r\n".getBytes()); break;
+        long start = 0, stop = 0;
+        ZSetValue.Bound min = null, max = null;
+        if (byScore || byLex) {
+            // Reversed, the range is given from the top: max first
+            byte[] low = args.getBytes(rev ? 3 : 2);
+            byte[] high = args.getBytes(rev ? 2 : 3);
+            if (byScore) {
+                try {
+                    min = ZSetValue.Bound.score(low);
+                    max = ZSetValue.Bound.score(high);
+                } catch (NumberFormatException e) {
+                    out.writeError("ERR min or max is not a float");
+                    return;
+                }
+            } else {
+                min = ZSetValue.Bound.lex(low);
+                max = ZSetValue.Bound.lex(high);
+                if (min == null || max == null) {
+                    out.writeError("ERR min or max not valid string range item");
+                    return;
                 }
             }
-        } catch (IOException e) {
-            System.out.println("IOException: " + e.getMessage());
-        } finally {
+        } else {
             try {
-                clientSocket.close();
-            } catch (IOException ignored) {}
-            if (isReplicaConnection) {
-                replicaOutputs.remove(out);
-                System.out.println("Replica removed. Remaining: " + replicaOutputs.size());
+                start = args.getLong(2);
+                stop = args.getLong(3);
+            } catch (NumberFormatException e) {
+                out.writeRaw(RespWriter.ERR_NOT_INTEGER);
+                return;
             }
         }
-    }
 
-    private List<String> readArguments(BufferedReader in, int count) throws IOException {
-        List<String> args = new ArrayList<>();
-        for (int i = 0; i < count; i++) {
-            String lenLine = in.readLine();
-            if (lenLine == null || !lenLine.startsWith("$")) throw new IOException("Expected bulk string");
-            args.add(in.readLine());
+        boolean reverse = rev, scores = withScores;
+        long rankStart = start, rankStop = stop, limitOffset = offset, limitCount = count;
+        ZSetValue.Bound lower = min, upper = max;
+        RespWriter reply = out.scratch();
+        keyspace().read(args.getKey(1), current -> {
+            if (current == null) return null;
+            ZSetValue zset = current.zset();
+            long from, to;
+            if (lower == null) {
+                // Ranks count from the top when reversed
+                long[] range = listRange(rankStart, rankStop, zset.size());
+                from = reverse ? zset.size() - range[1] : range[0];
+                to = reverse ? zset.size() - range[0] : range[1];
+            } else {
+                from = zset.rankAt(lower, false);
+                to = Math.max(from, zset.rankAt(upper, true));
+                if (limitOffset < 0) {
+                    to = from;
+                } else if (reverse) {
+                    to = Math.max(from, to - limitOffset);
+                    if (limitCount >= 0) from = Math.max(from, to - limitCount);
+                } else {
+                    from = Math.min(to, from + limitOffset);
+                    if (limitCount >= 0) to = Math.min(to, from + limitCount);
+                }
+            }
+            try {
+                reply.writeArrayHeader((int) (to - from) * (scores && !reply.isResp3() ? 2 : 1));
+                zset.writeRange(from, to, reverse, scores, reply);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // no sink, nothing to fail
+            }
+            return null;
+        });
+        if (reply.size() == 0) {
+            out.writeRaw(RespWriter.EMPTY_ARRAY);
+        } else {
+            reply.writeTo(out);
         }
-        return args;
     }
 
-    public static void handleSet(List<String> args, OutputStream out) throws IOException {
+    // SADD key member [member ...], replying how many members are new
+    public static void handleSadd(RespRequest args, RespWriter out) throws IOException {
         if (args.size() < 3) {
-            if (out != null) out.write("-ERR wrong number of arguments for 'SET'\r\n".getBytes());
+            if (out != null) out.writeError("ERR wrong number of arguments for 'sadd' command");
             return;
         }
 
-        String key = args.get(1);
-        String value = args.get(2);
-        long expiryMillis = 0;
+        if (out != null && !keyspace().freeMemoryIfNeeded()) {
+            out.writeRaw(RespWriter.ERR_OOM);
+            return;
+        }
 
-        if (args.size() >= 5 && args.get(3).equalsIgnoreCase("px")) {
-            try {
-                expiryMillis = Long.parseLong(args.get(4));
-            } catch (NumberFormatException e) {
-                if (out != null) out.write("-ERR PX value is not a number\r\n".getBytes());
-                return;
+        long[] added = new long[1];
+        keyspace().update(args.getKey(1), current -> {
+            KeyValue kv = current != null ? current : KeyValue.ofSet(new SetValue());
+            SetValue set = kv.set();
+            for (int i = 2; i < args.size(); i++) {
+                if (set.add(args.array(), args.offset(i), args.length(i))) added[0]++;
             }
+            return kv;
+        });
+
+        if (out != null) {
+            out.writeInteger(added[0]);
+            if (added[0] > 0) ReplicationHandler.propagate(out.sink(), args);
         }
+    }
 
-        long expirationTimestamp = expiryMillis > 0 ? System.currentTimeMillis() + expiryMillis : 0;
-        keyValueStore.put(key, new KeyValue(value, expirationTimestamp));
+    // SREM deletes the key along with its last member
+    public static void handleSrem(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() < 3) {
+            if (out != null) out.writeError("ERR wrong number of arguments for 'srem' command");
+            return;
+        }
 
-        if (out != null) out.write("+OK\r\n".getBytes());
+        long[] removed = new long[1];
+        keyspace().update(args.getKey(1), current -> {
+            if (current == null) return null;
+            SetValue set = current.set();
+            for (int i = 2; i < args.size(); i++) {
+                if (set.remove(args.array(), args.offset(i), args.length(i))) removed[0]++;
+            }
+            return set.isEmpty() ? null : current;
+        });
 
         if (out != null) {
-            StringBuilder command = new StringBuilder();
-            command.append("*3\r\n");
-            command.append("$3\r\nSET\r\n");
-            command.append("$").append(key.length()).append("\r\n").append(key).append("\r\n");
-            command.append("$").append(value.length()).append("\r\n").append(value).append("\r\n");
-
-            byte[] commandBytes = command.toString().getBytes();
-            for (OutputStream replicaOut : replicaOutputs) {
-                if (replicaOut != out) {
-                    try {
-                        replicaOut.write(commandBytes);
-                        replicaOut.flush();
-                    } catch (IOException e) {
-                        replicaOutputs.remove(replicaOut);
-                    }
-                }
-            }
+            out.writeInteger(removed[0]);
+            if (removed[0] > 0) ReplicationHandler.propagate(out.sink(), args);
         }
     }
 
-    private void handleGet(List<String> args, OutputStream out) throws IOException {
+    public static void handleSismember(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 3) {
+            out.writeError("ERR wrong number of arguments for 'sismember' command");
+            return;
+        }
+
+        Boolean member = keyspace().read(args.getKey(1), current ->
+                current != null && current.set().contains(args.array(), args.offset(2), args.length(2)));
+        out.writeInteger(member ? 1 : 0);
+    }
+
+    public static void handleScard(RespRequest args, RespWriter out) throws IOException {
         if (args.size() != 2) {
-            out.write("-ERR wrong number of arguments for 'GET'\r\n".getBytes());
+            out.writeError("ERR wrong number of arguments for 'scard' command");
             return;
         }
 
-        String key = args.get(1);
-        KeyValue kv = keyValueStore.get(key);
+        Integer size = keyspace().read(args.getKey(1), current -> current == null ? 0 : current.set().size());
+        out.writeInteger(size);
+    }
 
-        if (kv == null || kv.hasExpired()) {
-            out.write("$-1\r\n".getBytes());
+    // SMEMBERS: encoded under the key's lock, like HGETALL
+    public static void handleSmembers(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 2) {
+            out.writeError("ERR wrong number of arguments for 'smembers' command");
+            return;
+        }
+
+        RespWriter reply = out.scratch();
+        keyspace().read(args.getKey(1), current -> {
+            if (current == null) return null;
+            try {
+                current.set().writeMembers(reply);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // no sink, nothing to fail
+            }
+            return null;
+        });
+        if (reply.size() == 0) {
+            out.writeSetHeader(0);
         } else {
-            String value = kv.value;
-            byte[] valueBytes = value.getBytes("UTF-8");
-            out.write(("$" + valueBytes.length + "\r\n").getBytes("UTF-8"));
-            out.write(valueBytes);
-            out.write("\r\n".getBytes("UTF-8"));
+            reply.writeTo(out);
+        }
+    }
+
+    private enum SetOp { INTER, UNION, DIFF }
+
+    // SINTER, SUNION, SDIFF and their STORE variants. The result is built in a private
+    // set holding the stripes of every key named, the destination too, like MGET and
+    // MSET, so it is a snapshot of all of them and stored before any of them can change;
+    // in sharded mode the command runs alone on every shard involved instead. SINTER
+    // starts from a copy of the smallest set and probes the others for each of its
+    // members, smallest first, as the result only shrinks.
+    static void handleSetAlgebra(RespRequest args, RespWriter out, SetOp op, boolean store) throws IOException {
+        int first = store ? 2 : 1;
+        if (args.size() < first + 1) {
+            if (out != null) out.writeError("ERR wrong number of arguments for '" + args.getString(0).toLowerCase() + "' command");
+            return;
+        }
+        if (store && out != null && !keyspace().freeMemoryIfNeeded()) {
+            out.writeRaw(RespWriter.ERR_OOM);
+            return;
+        }
+
+        int count = args.size() - first;
+        ByteKey[] keys = new ByteKey[count];
+        for (int i = 0; i < count; i++) keys[i] = args.getKey(first + i);
+        ByteKey destination = store ? args.getKey(1) : null;
+
+        SetValue[] result = new SetValue[1];
+        keyspace().withKeysLocked(store ? keyArgs(args, 1, 1) : keys, () -> {
+            result[0] = switch (op) {
+                case INTER -> intersect(keys);
+                case UNION -> union(keys);
+                case DIFF -> difference(keys);
+            };
+            if (store) {
+                // Replaces whatever was there, of any type, and drops its TTL
+                SetValue stored = result[0];
+                keyspace(destination).update(destination, current -> stored.isEmpty() ? null : KeyValue.ofSet(stored));
+            }
+        });
+
+        if (!store) {
+            if (result[0].isEmpty()) {
+                out.writeSetHeader(0);
+            } else {
+                result[0].writeMembers(out);
+            }
+            return;
+        }
+        if (out != null) {
+            out.writeInteger(result[0].size());
+            ReplicationHandler.propagate(out.sink(), args);
+        }
+    }
+
+    private static SetValue intersect(ByteKey[] keys) {
+        // Sizes first, which also fails on a wrong type before any work is done
+        Integer[] order = new Integer[keys.length];
+        int[] sizes = new int[keys.length];
+        boolean missing = false;
+        for (int i = 0; i < keys.length; i++) {
+            ByteKey key = keys[i];
+            sizes[i] = keyspace(key).read(key, current -> current == null ? 0 : current.set().size());
+            missing |= sizes[i] == 0;
+            order[i] = i;
+        }
+        if (missing) return new SetValue();
+        Arrays.sort(order, (a, b) -> Integer.compare(sizes[a], sizes[b]));
+
+        SetValue[] result = new SetValue[1];
+        for (int i : order) {
+            ByteKey key = keys[i];
+            keyspace(key).read(key, current -> {
+                if (current == null) {
+                    // Expired since its size was read
+                    result[0] = new SetValue();
+                } else if (result[0] == null) {
+                    result[0] = current.set().copy();
+                } else {
+                    result[0].retainAll(current.set());
+                }
+                return null;
+            });
+            if (result[0].isEmpty()) break;
+        }
+        return result[0];
+    }
+
+    private static SetValue union(ByteKey[] keys) {
+        SetValue result = new SetValue();
+        for (ByteKey key : keys) {
+            keyspace(key).read(key, current -> {
+                if (current != null) result.addAll(current.set());
+                return null;
+            });
         }
+        return result;
     }
 
+    private static SetValue difference(ByteKey[] keys) {
+        SetValue[] result = new SetValue[1];
+        for (ByteKey key : keys) {
+            keyspace(key).read(key, current -> {
+                if (current == null) {
+                    if (result[0] == null) result[0] = new SetValue();
+                } else if (result[0] == null) {
+                    result[0] = current.set().copy();
+                } else if (!result[0].isEmpty()) {
+                    result[0].removeAll(current.set());
+                }
+                return null;
+            });
+        }
+        return result[0];
+    }
     
     
     
@@ -497,13 +2520,17 @@ class ClientHandler extends Thread {
 //        }
 //    }
     
-    public static void handleConfig(List<String> args, OutputStream out) throws IOException {
+    public static void handleConfig(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() >= 2 && args.equalsIgnoreCase(1, "set")) {
+            handleConfigSet(args, out);
+            return;
+        }
         if (args.size() < 3) {
-            out.write(("-ERR wrong number of arguments for 'CONFIG GET'\r\n").getBytes());
+            out.writeError("ERR wrong number of arguments for 'CONFIG GET'");
             return;
         }
 
-        String configKey = args.get(2);
+        String configKey = args.getString(2);
         String value;
 
         switch (configKey) {
@@ -519,25 +2546,328 @@ class ClientHandler extends Thread {
             case "replica":
                 value = String.valueOf(Config.isReplica);
                 break;
+            case "maxmemory":
+                value = String.valueOf(Config.maxmemory);
+                break;
+            case "maxmemory-policy":
+                value = Config.maxmemoryPolicy.configName;
+                break;
+            case "hash-max-listpack-entries":
+            case "hash-max-ziplist-entries":
+                value = String.valueOf(Config.hashMaxListpackEntries);
+                break;
+            case "hash-max-listpack-value":
+            case "hash-max-ziplist-value":
+                value = String.valueOf(Config.hashMaxListpackValue);
+                break;
+            case "zset-max-listpack-entries":
+            case "zset-max-ziplist-entries":
+                value = String.valueOf(Config.zsetMaxListpackEntries);
+                break;
+            case "zset-max-listpack-value":
+            case "zset-max-ziplist-value":
+                value = String.valueOf(Config.zsetMaxListpackValue);
+                break;
+            case "set-max-intset-entries":
+                value = String.valueOf(Config.setMaxIntsetEntries);
+                break;
+            case "tracking-table-max-memory":
+                value = String.valueOf(Config.trackingTableMaxMemory);
+                break;
+            case "client-output-buffer-limit":
+                value = "pubsub " + Config.pubsubHardLimit + " " + Config.pubsubSoftLimit + " " + Config.pubsubSoftSeconds;
+                break;
             default:
-                out.write(("-ERR unknown configuration parameter\r\n").getBytes());
+                out.writeError("ERR unknown configuration parameter");
                 return;
         }
 
-        // Return array of 2 bulk strings: key and value
-        String response = "*" + 2 + "\r\n" +
-                          "$" + configKey.length() + "\r\n" + configKey + "\r\n" +
-                          "$" + value.length() + "\r\n" + value + "\r\n";
-        out.write(response.getBytes());
+        // The parameter and its value: a map of one, or an array of 2 bulk strings in RESP2
+        out.writeMapHeader(1);
+        out.writeBulkString(args.array(), args.offset(2), args.length(2));
+        out.writeBulkString(value);
+    }
+
+    // Only the memory and output buffer settings can change while running; a lower
+    // maxmemory takes effect, by evicting, on the next write
+    private static void handleConfigSet(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 4) {
+            out.writeError("ERR wrong number of arguments for 'CONFIG SET'");
+            return;
+        }
+
+        String configKey = args.getString(2).toLowerCase();
+        String value = args.getString(3);
+        switch (configKey) {
+            case "maxmemory":
+                try {
+                    Config.maxmemory = Config.parseMemory(value);
+                } catch (NumberFormatException e) {
+                    out.writeError("ERR CONFIG SET failed (possibly related to argument 'maxmemory') - argument must be a memory value");
+                    return;
+                }
+                break;
+            case "maxmemory-policy":
+                Eviction.Policy policy = Eviction.Policy.of(value);
+                if (policy == null) {
+                    out.writeError("ERR CONFIG SET failed (possibly related to argument 'maxmemory-policy') - argument(s) must be one of the following");
+                    return;
+                }
+                Config.maxmemoryPolicy = policy;
+                break;
+            case "hash-max-listpack-entries":
+            case "hash-max-ziplist-entries":
+            case "hash-max-listpack-value":
+            case "hash-max-ziplist-value":
+            case "zset-max-listpack-entries":
+            case "zset-max-ziplist-entries":
+            case "zset-max-listpack-value":
+            case "zset-max-ziplist-value":
+            case "set-max-intset-entries":
+                int limit;
+                try {
+                    limit = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    limit = -1;
+                }
+                if (limit < 0) {
+                    out.writeError("ERR CONFIG SET failed (possibly related to argument '" + configKey + "') - argument couldn't be parsed into an integer");
+                    return;
+                }
+                // Existing values convert when they next grow past the new limits
+                boolean entries = configKey.endsWith("entries");
+                if (configKey.startsWith("hash")) {
+                    if (entries) Config.hashMaxListpackEntries = limit; else Config.hashMaxListpackValue = limit;
+                } else if (configKey.startsWith("zset")) {
+                    if (entries) Config.zsetMaxListpackEntries = limit; else Config.zsetMaxListpackValue = limit;
+                } else {
+                    Config.setMaxIntsetEntries = limit;
+                }
+                break;
+            case "client-output-buffer-limit":
+                // Only the pubsub class has limits here: "pubsub <hard> <soft> <seconds>"
+                String[] parts = value.trim().split("\\s+");
+                long hard, soft;
+                int seconds;
+                try {
+                    if (parts.length != 4 || !parts[0].equalsIgnoreCase("pubsub")) throw new NumberFormatException(value);
+                    hard = Config.parseMemory(parts[1]);
+                    soft = Config.parseMemory(parts[2]);
+                    seconds = Integer.parseInt(parts[3]);
+                    if (seconds < 0) throw new NumberFormatException(value);
+                } catch (NumberFormatException e) {
+                    out.writeError("ERR CONFIG SET failed (possibly related to argument 'client-output-buffer-limit') - Wrong client-output-buffer-limit, only the pubsub class is supported");
+                    return;
+                }
+                Config.pubsubHardLimit = hard;
+                Config.pubsubSoftLimit = soft;
+                Config.pubsubSoftSeconds = seconds;
+                break;
+            case "tracking-table-max-memory":
+                try {
+                    Config.trackingTableMaxMemory = Config.parseMemory(value);
+                } catch (NumberFormatException e) {
+                    out.writeError("ERR CONFIG SET failed (possibly related to argument 'tracking-table-max-memory') - argument must be a memory value");
+                    return;
+                }
+                break;
+            default:
+                out.writeError("ERR Unknown option or number of arguments for CONFIG SET - '" + RespWriter.quoted(configKey) + "'");
+                return;
+        }
+        out.writeOk();
     }
 
     
-    public static void handleKeys(List<String> args, OutputStream out) throws IOException {
-        StringBuilder keysResponse = new StringBuilder("*" + keyValueStore.size() + "\r\n");
-        for (String key : keyValueStore.keySet()) {
-            keysResponse.append("$").append(key.length()).append("\r\n").append(key).append("\r\n");
+    // KEYS pattern. Keys are matched and encoded as they come off the map, with no
+    // list of them in between; the encoded reply is held back only because its length
+    // has to go first. SCAN is the way to list a big keyspace without blocking.
+    public static void handleKeys(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() != 2) {
+            out.writeError("ERR wrong number of arguments for 'keys' command");
+            return;
+        }
+
+        RespWriter matched = new RespWriter();
+        int count = collectKeys(args, matched);
+        out.writeArrayHeader(count);
+        matched.writeTo(out);
+    }
+
+    // Encodes the keys of this thread's keyspace that match KEYS' pattern into `out`,
+    // which has no sink, and returns how many there were
+    static int collectKeys(RespRequest args, RespWriter out) {
+        Glob pattern = Glob.compile(args.array(), args.offset(1), args.length(1));
+        int[] count = new int[1];
+        keyspace().forEachKey(key -> {
+            byte[] bytes = key.bytes();
+            if (!pattern.matches(bytes)) return;
+            try {
+                out.writeBulkString(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // no sink, nothing to fail
+            }
+            count[0]++;
+        });
+        return count[0];
+    }
+
+    // Cursor and options of SCAN, HSCAN, SSCAN and ZSCAN
+    private static final class ScanOptions {
+        long cursor;
+        int count = 10;
+        // Compiled MATCH pattern, null for none
+        Glob pattern;
+        // For SCAN's TYPE, null for any
+        String type;
+
+        boolean matches(byte[] b) {
+            return pattern == null || pattern.matches(b);
+        }
+    }
+
+    // Null after replying with the error
+    private static ScanOptions parseScanOptions(RespRequest args, RespWriter out, int cursorIndex, boolean allowType) throws IOException {
+        ScanOptions options = new ScanOptions();
+        try {
+            options.cursor = Long.parseUnsignedLong(args.getString(cursorIndex));
+        } catch (NumberFormatException e) {
+            out.writeError("ERR invalid cursor");
+            return null;
+        }
+        for (int i = cursorIndex + 1; i < args.size(); i += 2) {
+            if (i + 1 == args.size()) {
+                out.writeError("ERR syntax error");
+                return null;
+            }
+            if (args.equalsIgnoreCase(i, "COUNT")) {
+                long count;
+                try {
+                    count = args.getLong(i + 1);
+                } catch (NumberFormatException e) {
+                    out.writeRaw(RespWriter.ERR_NOT_INTEGER);
+                    return null;
+                }
+                if (count < 1) {
+                    out.writeError("ERR syntax error");
+                    return null;
+                }
+                options.count = (int) Math.min(count, Integer.MAX_VALUE);
+            } else if (args.equalsIgnoreCase(i, "MATCH")) {
+                options.pattern = Glob.compile(args.array(), args.offset(i + 1), args.length(i + 1));
+            } else if (allowType && args.equalsIgnoreCase(i, "TYPE")) {
+                options.type = args.getString(i + 1).toLowerCase();
+            } else {
+                out.writeError("ERR syntax error");
+                return null;
+            }
+        }
+        return options;
+    }
+
+    private static void writeScanReply(long cursor, List<byte[]> items, RespWriter out) throws IOException {
+        out.writeArrayHeader(2);
+        out.writeBulkString(Long.toUnsignedString(cursor));
+        out.writeArrayHeader(items.size());
+        for (byte[] item : items) out.writeBulkString(item);
+    }
+
+    // Shards in sharded mode, otherwise the one keyspace
+    static int shardCount() {
+        return commandExecutor instanceof ShardedCommandExecutor sharded ? sharded.shardCount() : 1;
+    }
+
+    // In sharded mode a SCAN goes through the shards one after the other, its cursor
+    // being the shard's own cursor times the shard count plus the shard's index. This
+    // is the shard a SCAN continues on, for routing it there.
+    static int scanShard(RespRequest args, int shards) {
+        if (args.size() < 2) return 0;
+        try {
+            return (int) Long.remainderUnsigned(Long.parseUnsignedLong(args.getString(1)), shards);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // SCAN cursor [MATCH pattern] [COUNT count] [TYPE type]. Expired keys and those
+    // the options filter out are skipped, so a step may return fewer than COUNT keys,
+    // even none, before the cursor comes back to 0.
+    public static void handleScan(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() < 2) {
+            out.writeError("ERR wrong number of arguments for 'scan' command");
+            return;
+        }
+        ScanOptions options = parseScanOptions(args, out, 1, true);
+        if (options == null) return;
+
+        int shards = shardCount();
+        int shard = (int) Long.remainderUnsigned(options.cursor, shards);
+        long now = System.currentTimeMillis();
+        List<byte[]> keys = new ArrayList<>();
+        long next = keyspace().scan(Long.divideUnsigned(options.cursor, shards), options.count, (key, kv) -> {
+            if (kv.isExpired(now) || (options.type != null && !kv.typeName().equals(options.type))) return;
+            if (options.matches(key.bytes())) keys.add(key.bytes());
+        });
+        if (next != 0) {
+            next = next * shards + shard;
+        } else if (shard + 1 < shards) {
+            next = shard + 1;
+        }
+        writeScanReply(next, keys, out);
+    }
+
+    // HSCAN key cursor [MATCH pattern] [COUNT count]: fields, each followed by its value
+    public static void handleHscan(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() < 3) {
+            out.writeError("ERR wrong number of arguments for 'hscan' command");
+            return;
+        }
+        ScanOptions options = parseScanOptions(args, out, 2, false);
+        if (options == null) return;
+
+        List<byte[]> items = new ArrayList<>();
+        long next = keyspace().read(args.getKey(1), current -> current == null ? 0L
+                : current.hash().scan(options.cursor, options.count, (field, value) -> {
+                    if (!options.matches(field)) return;
+                    items.add(field);
+                    items.add(value);
+                }));
+        writeScanReply(next, items, out);
+    }
+
+    public static void handleSscan(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() < 3) {
+            out.writeError("ERR wrong number of arguments for 'sscan' command");
+            return;
+        }
+        ScanOptions options = parseScanOptions(args, out, 2, false);
+        if (options == null) return;
+
+        List<byte[]> items = new ArrayList<>();
+        long next = keyspace().read(args.getKey(1), current -> current == null ? 0L
+                : current.set().scan(options.cursor, options.count, member -> {
+                    if (options.matches(member)) items.add(member);
+                }));
+        writeScanReply(next, items, out);
+    }
+
+    // ZSCAN: members, each followed by its score
+    public static void handleZscan(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() < 3) {
+            out.writeError("ERR wrong number of arguments for 'zscan' command");
+            return;
         }
-        out.write(keysResponse.toString().getBytes());
+        ScanOptions options = parseScanOptions(args, out, 2, false);
+        if (options == null) return;
+
+        List<byte[]> items = new ArrayList<>();
+        long next = keyspace().read(args.getKey(1), current -> current == null ? 0L
+                : current.zset().scan(options.cursor, options.count, (member, score) -> {
+                    if (!options.matches(member)) return;
+                    items.add(member);
+                    items.add(ZSetValue.formatScore(score).getBytes(StandardCharsets.US_ASCII));
+                }));
+        writeScanReply(next, items, out);
     }
     
 //    private void handleInfo(List<String> args, OutputStream out) throws IOException {
@@ -571,14 +2901,107 @@ class ClientHandler extends Thread {
 //        }
 //    }
     
-    public static void handleInfo(List<String> args, OutputStream out) throws IOException {
+    public static void handleInfo(RespRequest args, RespWriter out) throws IOException {
         // Simple INFO command response (basic server information)
         String info = "# Server\r\n" +
-                "version=1.0\r\n" +
+                "version=" + SERVER_VERSION + "\r\n" +
                 "uptime=12345\r\n" +
                 "# Replication\r\n" +
-                "role=" + (Config.isReplica ? "slave" : "master") + "\r\n";
-        out.write(("$" + info.length() + "\r\n" + info + "\r\n").getBytes());
+                "role=" + (Config.isReplica ? "slave" : "master") + "\r\n" +
+                "# Stats\r\n" +
+                "expired_keys=" + Keyspace.expiredKeys.sum() + "\r\n" +
+                "evicted_keys=" + Keyspace.evictedKeys.sum() + "\r\n" +
+                "tracking_clients=" + Tracking.clientCount() + "\r\n" +
+                "tracking_total_keys=" + Tracking.trackedKeys() + "\r\n" +
+                "tracking_table_bytes=" + Tracking.tableBytes() + "\r\n" +
+                memoryInfo();
+        if (OffHeapStore.isEnabled()) {
+            info += "storage=offheap\r\n" +
+                    "offheap_used_bytes=" + OffHeapStore.usedBytes() + "\r\n" +
+                    "offheap_reserved_bytes=" + OffHeapStore.reservedBytes() + "\r\n" +
+                    "offheap_fragmentation_ratio=" + String.format("%.2f", OffHeapStore.fragmentationRatio()) + "\r\n";
+        }
+        out.writeBulkString(info);
+    }
+
+    // Estimates kept by the keyspaces (see Keyspace), next to what the JVM reports
+    private static String memoryInfo() {
+        Keyspace.updatePeak();
+        long used = Keyspace.usedMemory();
+        long dataset = Keyspace.datasetBytes();
+        Runtime runtime = Runtime.getRuntime();
+        return "# Memory\r\n" +
+                "used_memory=" + used + "\r\n" +
+                "used_memory_peak=" + Keyspace.peakMemory() + "\r\n" +
+                "used_memory_dataset=" + dataset + "\r\n" +
+                "used_memory_overhead=" + (used - dataset) + "\r\n" +
+                "used_memory_dataset_perc=" + String.format("%.2f%%", percent(dataset, used)) + "\r\n" +
+                "jvm_heap_used=" + (runtime.totalMemory() - runtime.freeMemory()) + "\r\n" +
+                "jvm_heap_max=" + runtime.maxMemory() + "\r\n" +
+                "maxmemory=" + Config.maxmemory + "\r\n" +
+                "maxmemory_policy=" + Config.maxmemoryPolicy.configName + "\r\n";
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0 : part * 100.0 / whole;
+    }
+
+    // MEMORY USAGE <key> [SAMPLES <count>] and MEMORY STATS. Nothing is sampled: a
+    // string's size follows from its length and encoding, and lists, hashes, sets and
+    // sorted sets keep a running total of their footprint in every encoding, updated
+    // as they change, so the size reported is exact and SAMPLES is accepted and
+    // ignored. It is read under the key's lock, as collections change in place.
+    public static void handleMemory(RespRequest args, RespWriter out) throws IOException {
+        if (args.size() < 2) {
+            out.writeError("ERR wrong number of arguments for 'memory' command");
+            return;
+        }
+
+        if (args.equalsIgnoreCase(1, "usage")) {
+            if (args.size() != 3 && !(args.size() == 5 && args.equalsIgnoreCase(3, "samples"))) {
+                out.writeRaw(RespWriter.ERR_SYNTAX);
+                return;
+            }
+            ByteKey key = args.getKey(2);
+            Long size = keyspace().read(key, kv -> kv == null ? null : Keyspace.entrySize(key, kv));
+            if (size == null) {
+                out.writeNullBulk();
+            } else {
+                out.writeInteger(size);
+            }
+        } else if (args.equalsIgnoreCase(1, "stats") && args.size() == 2) {
+            Keyspace.updatePeak();
+            long used = Keyspace.usedMemory();
+            long dataset = Keyspace.datasetBytes();
+            long keys = Keyspace.keyCount();
+            out.writeArrayHeader(OffHeapStore.isEnabled() ? 22 : 18);
+            out.writeBulkString("peak.allocated");
+            out.writeInteger(Keyspace.peakMemory());
+            out.writeBulkString("total.allocated");
+            out.writeInteger(used);
+            out.writeBulkString("overhead.total");
+            out.writeInteger(used - dataset);
+            out.writeBulkString("overhead.hashtable.main");
+            out.writeInteger(used - dataset - Keyspace.indexBytes());
+            out.writeBulkString("overhead.hashtable.indexes");
+            out.writeInteger(Keyspace.indexBytes());
+            out.writeBulkString("keys.count");
+            out.writeInteger(keys);
+            out.writeBulkString("keys.bytes-per-key");
+            out.writeInteger(keys == 0 ? 0 : used / keys);
+            out.writeBulkString("dataset.bytes");
+            out.writeInteger(dataset);
+            out.writeBulkString("dataset.percentage");
+            out.writeBulkString(String.format("%.2f", percent(dataset, used)));
+            if (OffHeapStore.isEnabled()) {
+                out.writeBulkString("offheap.used");
+                out.writeInteger(OffHeapStore.usedBytes());
+                out.writeBulkString("offheap.reserved");
+                out.writeInteger(OffHeapStore.reservedBytes());
+            }
+        } else {
+            out.writeError("ERR unknown subcommand '" + RespWriter.quoted(args.getString(1)) + "'. Try MEMORY HELP.");
+        }
     }
     
 //    public static void handlePsync(List<String> args, OutputStream out) throws IOException {
@@ -611,49 +3034,47 @@ class ClientHandler extends Thread {
 //        }
 //    }
 
-    public static void handlePsync(List<String> args, OutputStream out) throws IOException {
+    public static void handlePsync(RespRequest args, RespWriter out) throws IOException {
         if (!Config.isReplica) {
             // This server is the master and is handling a replica's PSYNC request
             if (args.size() < 3) {
-                out.write(("-ERR wrong number of arguments for 'PSYNC'\r\n").getBytes());
+                out.writeError("ERR wrong number of arguments for 'PSYNC'");
                 return;
             }
 
-            String replicationId = args.get(1);  // e.g., "?"
-            long offset = Long.parseLong(args.get(2));  // e.g., -1
+            String replicationId = args.getString(1);  // e.g., "?"
+            long offset = args.getLong(2);  // e.g., -1
 
-            System.out.println("Replica requested PSYNC: replid=" + replicationId + ", offset=" + offset);
+            Log.info("Replica requested PSYNC: replid=" + replicationId + ", offset=" + offset);
 
             // Respond with FULLRESYNC
-            String syncResponse = "+FULLRESYNC " + Config.masterReplId + " 0\r\n";
-            out.write(syncResponse.getBytes());
+            out.writeSimpleString("FULLRESYNC " + Config.masterReplId + " 0");
 
-            // Send empty RDB file as bulk string
-            byte[] rdbBytes = EMPTY_RDB_FILE;
-            String header = "$" + rdbBytes.length + "\r\n";
-            out.write(header.getBytes());
-            out.write(rdbBytes);
+            // Send empty RDB file as bulk string (no trailing CRLF)
+            out.writeBulkHeader(EMPTY_RDB_FILE.length);
+            out.writeRaw(EMPTY_RDB_FILE);
 
-            // Track this replica output stream for future propagation
-            replicaOutputs.add(out);
-            System.out.println("Replica added: total=" + replicaOutputs.size());
+            // The snapshot has to reach the replica before any propagated command
+            out.flush();
+            ReplicationHandler.addReplica(out.sink());
+            Log.info("Replica added: total=" + ReplicationHandler.replicaCount());
 
         } else {
-            out.write(("-ERR PSYNC is only valid for master servers\r\n").getBytes());
+            out.writeError("ERR PSYNC is only valid for master servers");
         }
     }
 
 
-    private void processMasterHandshake(BufferedReader in, OutputStream out) throws IOException {
+    private void processMasterHandshake(InputStream in, OutputStream out) throws IOException {
     	
     	// Send PING
         String ping = "*1\r\n$4\r\nPING\r\n";
         out.write(ping.getBytes());
 
         // Wait for +PONG
-        String line = in.readLine();
+        String line = readLine(in);
         if (line != null && line.startsWith("+PONG")) {
-            System.out.println("Received PONG from master");
+            Log.info("Received PONG from master");
         }
     	
         // Send REPLCONF listening-port
@@ -665,9 +3086,9 @@ class ClientHandler extends Thread {
         out.write(replconfPort.getBytes());
         
      // Wait for +OK
-        line = in.readLine();
+        line = readLine(in);
         if (line != null && line.startsWith("+OK")) {
-            System.out.println("Received OK for REPLCONF listening-port");
+            Log.info("Received OK for REPLCONF listening-port");
         }
 
         // Send REPLCONF capa psync2
@@ -678,9 +3099,9 @@ class ClientHandler extends Thread {
         out.write(replconfCapa.getBytes());
         
      // Wait for +OK
-        line = in.readLine();
+        line = readLine(in);
         if (line != null && line.startsWith("+OK")) {
-            System.out.println("Received OK for REPLCONF capa psync2");
+            Log.info("Received OK for REPLCONF capa psync2");
         }
 
         // Send PSYNC ? -1
@@ -693,13 +3114,13 @@ class ClientHandler extends Thread {
         out.flush();
 
      // Wait for +FULLRESYNC
-        line = in.readLine();
+        line = readLine(in);
         if (line != null && line.startsWith("+FULLRESYNC")) {
-            System.out.println("Received FULLRESYNC: " + line);
+            Log.info("Received FULLRESYNC: " + line);
         }
 
      // Expect RDB bulk string: $<length>
-        line = in.readLine();
+        line = readLine(in);
         if (line != null && line.startsWith("$")) {
             int rdbLength = Integer.parseInt(line.substring(1));
             byte[] rdbBuffer = new byte[rdbLength];
@@ -712,7 +3133,7 @@ class ClientHandler extends Thread {
             }
             inputStream.read();
             inputStream.read();
-            System.out.println("Read " + totalRead + " RDB bytes from master.");
+            Log.info("Read " + totalRead + " RDB bytes from master.");
             
             new Thread(() -> {
                 try {
@@ -739,15 +3160,9 @@ class ClientHandler extends Thread {
                             	int before = parser.getPos();
                                 RespCommand cmd = parser.next();
                                 if (cmd == null) break;
-                                String[] parts = cmd.getArray();
+                                RespCommand[] parts = cmd.getElements();
                                if (parts != null && parts.length > 0) {
-                                String command = parts[0].toUpperCase();
-
-                                if ("SET".equals(command)) {
-                                    ClientHandler.handleSet(List.of(parts), null); // silent replication
-                                } else {
-                                    System.out.println("Unhandled replication command: " + command);
-                                }
+                                ClientHandler.applyReplicated(RespRequest.of(cmd)); // silent replication
                             }
                                 lastPos = parser.getPos();
                             }
@@ -760,11 +3175,11 @@ class ClientHandler extends Thread {
                             }
 
                         } catch (Exception e) {
-                            System.out.println("Partial replication command, waiting: " + e.getMessage());
+                            if (Log.isDebugEnabled()) Log.debug("Partial replication command, waiting: " + e.getMessage());
                         }
                     }
                 } catch (IOException e) {
-                    System.out.println("Replication stream error: " + e.getMessage());
+                    Log.warn("Replication stream error: " + e.getMessage());
                 }
             }).start();
             
@@ -775,8 +3190,19 @@ class ClientHandler extends Thread {
         
     
 
-    private static void sendErrorResponse(OutputStream out, String error) throws IOException {
-        out.write(("-ERR " + error + "\r\n").getBytes());
+    // Reads one \r\n terminated line byte by byte so nothing past it is buffered away
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') break;
+            if (b != '\r') sb.append((char) b);
+        }
+        return b == -1 && sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static void sendErrorResponse(RespWriter out, String error) throws IOException {
+        out.writeError("ERR " + error);
     }
     
 }
\ No newline at end of file
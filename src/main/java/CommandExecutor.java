@@ -0,0 +1,18 @@
+import java.util.List;
+
+// Runs commands away from the I/O threads. Implementations decide which thread
+// executes what; callers only rely on replies coming out in request order.
+interface CommandExecutor {
+    // Runs one connection's batch. Replies are written to `out` in request order and
+    // flushed before `done` runs; `done` may run on any thread.
+    void execute(List<RespRequest> batch, RespWriter out, Runnable done);
+
+    // Runs a write that doesn't come from a client (RDB load, replication stream)
+    // on the thread that owns `key`
+    void executeForKey(ByteKey key, Runnable task);
+
+    // Runs a command that touches several keys. While it runs, no other command may
+    // touch any of them on the threads that own them, so it may reach each key's
+    // keyspace through ClientHandler.keyspace(key).
+    void executeForKeys(ByteKey[] keys, Runnable task);
+}
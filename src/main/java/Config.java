@@ -5,6 +5,40 @@ public class Config {
     public static String dbFilename = "";
     public static int port = 6379;
     public static boolean isReplica = false;
+    // "thread" (one platform thread per client), "virtual" (one virtual thread per client)
+    // or "nio" (single selector event loop)
+    public static String serverMode = "thread";
+    // nio mode only: 0 runs commands on the event loop itself, N > 0 adds N I/O threads
+    // that parse and write while commands run on a single executor thread
+    public static int ioThreads = 0;
+    // nio mode only: N > 0 splits the keyspace into N shards, each owned by one thread
+    public static int shards = 0;
+    // "heap" keeps values in byte arrays, "offheap" in slabs outside the Java heap
+    public static String storage = "heap";
+    // Messages below this level are dropped before they are even formatted
+    public static Log.Level logLevel = Log.Level.INFO;
+    // Bytes the dataset may use before writes evict keys or fail, 0 for no limit.
+    // Both can be changed at runtime with CONFIG SET.
+    public static volatile long maxmemory = 0;
+    public static volatile Eviction.Policy maxmemoryPolicy = Eviction.Policy.NOEVICTION;
+    // Hashes stay in their compact encoding up to this many fields, each field and
+    // value at most this many bytes. Also settable with CONFIG SET.
+    public static volatile int hashMaxListpackEntries = 128;
+    public static volatile int hashMaxListpackValue = 64;
+    // The same for sorted sets, whose values are their members
+    public static volatile int zsetMaxListpackEntries = 128;
+    public static volatile int zsetMaxListpackValue = 64;
+    // Sets of integers stay intsets up to this many members
+    public static volatile int setMaxIntsetEntries = 512;
+    // Output waiting for a pub/sub client: past the hard limit, or past the soft limit
+    // for longer than the given seconds, it is disconnected. 0 turns a limit off. Set
+    // with CONFIG SET client-output-buffer-limit "pubsub <hard> <soft> <seconds>".
+    public static volatile long pubsubHardLimit = 32L << 20;
+    public static volatile long pubsubSoftLimit = 8L << 20;
+    public static volatile int pubsubSoftSeconds = 60;
+    // Memory the CLIENT TRACKING table of who read which key may use; past it the
+    // table is flushed (see Tracking). 0 for no limit. Also settable with CONFIG SET.
+    public static volatile long trackingTableMaxMemory = 64L << 20;
     
     public static final String masterReplId = "8371b4fb1155b71f4a04d3e1bc3e18c4a990aeeb";
     public static final long masterReplOffset = 0;
@@ -22,4 +56,78 @@ public class Config {
     public static boolean isReplica() { return isReplica; }
     public static void setReplica(boolean isReplica) { Config.isReplica = isReplica; }
 
+    public static String getServerMode() { return serverMode; }
+    public static void setServerMode(String serverMode) { Config.serverMode = serverMode; }
+
+    public static int getIoThreads() { return ioThreads; }
+    public static void setIoThreads(int ioThreads) { Config.ioThreads = ioThreads; }
+
+    public static int getShards() { return shards; }
+    public static void setShards(int shards) { Config.shards = shards; }
+
+    public static String getStorage() { return storage; }
+    public static void setStorage(String storage) { Config.storage = storage; }
+
+    public static Log.Level getLogLevel() { return logLevel; }
+    public static void setLogLevel(Log.Level logLevel) { Config.logLevel = logLevel; }
+
+    public static long getMaxmemory() { return maxmemory; }
+    public static void setMaxmemory(long maxmemory) { Config.maxmemory = maxmemory; }
+
+    public static Eviction.Policy getMaxmemoryPolicy() { return maxmemoryPolicy; }
+    public static void setMaxmemoryPolicy(Eviction.Policy maxmemoryPolicy) { Config.maxmemoryPolicy = maxmemoryPolicy; }
+
+    public static int getHashMaxListpackEntries() { return hashMaxListpackEntries; }
+    public static void setHashMaxListpackEntries(int entries) { Config.hashMaxListpackEntries = entries; }
+
+    public static int getHashMaxListpackValue() { return hashMaxListpackValue; }
+    public static void setHashMaxListpackValue(int bytes) { Config.hashMaxListpackValue = bytes; }
+
+    public static int getZsetMaxListpackEntries() { return zsetMaxListpackEntries; }
+    public static void setZsetMaxListpackEntries(int entries) { Config.zsetMaxListpackEntries = entries; }
+
+    public static int getZsetMaxListpackValue() { return zsetMaxListpackValue; }
+    public static void setZsetMaxListpackValue(int bytes) { Config.zsetMaxListpackValue = bytes; }
+
+    public static int getSetMaxIntsetEntries() { return setMaxIntsetEntries; }
+    public static void setSetMaxIntsetEntries(int entries) { Config.setMaxIntsetEntries = entries; }
+
+    public static long getPubsubHardLimit() { return pubsubHardLimit; }
+    public static void setPubsubHardLimit(long bytes) { Config.pubsubHardLimit = bytes; }
+
+    public static long getPubsubSoftLimit() { return pubsubSoftLimit; }
+    public static void setPubsubSoftLimit(long bytes) { Config.pubsubSoftLimit = bytes; }
+
+    public static int getPubsubSoftSeconds() { return pubsubSoftSeconds; }
+    public static void setPubsubSoftSeconds(int seconds) { Config.pubsubSoftSeconds = seconds; }
+
+    public static long getTrackingTableMaxMemory() { return trackingTableMaxMemory; }
+    public static void setTrackingTableMaxMemory(long bytes) { Config.trackingTableMaxMemory = bytes; }
+
+    // A byte count as redis.conf writes it: 1000, 100mb, 2gb. k, m and g are powers
+    // of 1000, kb, mb and gb powers of 1024.
+    static long parseMemory(String value) {
+        String v = value.toLowerCase();
+        int digits = v.length();
+        while (digits > 0 && Character.isLetter(v.charAt(digits - 1))) digits--;
+        long unit;
+        switch (v.substring(digits)) {
+            case "": case "b": unit = 1; break;
+            case "k": unit = 1000L; break;
+            case "kb": unit = 1L << 10; break;
+            case "m": unit = 1_000_000L; break;
+            case "mb": unit = 1L << 20; break;
+            case "g": unit = 1_000_000_000L; break;
+            case "gb": unit = 1L << 30; break;
+            default: throw new NumberFormatException("unknown unit: " + value);
+        }
+        long amount = Long.parseLong(v.substring(0, digits));
+        if (amount < 0) throw new NumberFormatException("negative: " + value);
+        try {
+            return Math.multiplyExact(amount, unit);
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("too large: " + value);
+        }
+    }
+
 }
@@ -0,0 +1,484 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Non-blocking server. Every connection is a SelectionKey plus a couple of small
+// buffers instead of a dedicated thread.
+//
+// With ioThreads == 0 a single loop on the calling thread accepts and reads;
+// otherwise N loops do the reading and parsing and the calling thread only accepts.
+// Without a CommandExecutor commands run inline on the loop that read them. With
+// one, parsed batches are handed over to it: a single executor thread (Redis 6 style
+// I/O threads, the keyspace sees a single writer) or the shard threads.
+//
+// A connection in BLPOP or BRPOP runs nothing else until the pop is answered; what it
+// reads meanwhile is queued behind it, so replies stay in order without any thread
+// waiting on its behalf. It does keep reading, which is how a client that goes away
+// is noticed and taken off the wait queues before an element is popped for it.
+class EventLoopServer {
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    // Buffers per gathering write, well under any IOV_MAX
+    private static final int MAX_GATHER = 256;
+
+    private final int port;
+    private final int ioThreads;
+    private final CommandExecutor commandExecutor;
+    private IoLoop[] loops;
+    private int nextLoop;
+
+    EventLoopServer(int port, int ioThreads, CommandExecutor commandExecutor) {
+        this.port = port;
+        this.ioThreads = ioThreads;
+        this.commandExecutor = commandExecutor;
+    }
+
+    public void run() throws IOException {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(port));
+
+            if (ioThreads == 0) {
+                IoLoop loop = new IoLoop();
+                loops = new IoLoop[] {loop};
+                serverChannel.configureBlocking(false);
+                serverChannel.register(loop.selector, SelectionKey.OP_ACCEPT);
+                Log.info("Event loop is listening on port " + port);
+                loop.run();
+                return;
+            }
+
+            loops = new IoLoop[ioThreads];
+            for (int i = 0; i < ioThreads; i++) {
+                loops[i] = new IoLoop();
+                new Thread(loops[i], "io-thread-" + i).start();
+            }
+            Log.info("Event loop is listening on port " + port + " with " + ioThreads + " I/O threads");
+
+            // The calling thread only accepts and hands connections out round-robin
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                IoLoop loop = loops[nextLoop++ % loops.length];
+                loop.execute(() -> loop.register(channel));
+            }
+        }
+    }
+
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        // Shared scratch buffer for socket reads; connections only keep decoded arguments
+        private final ByteBuffer ioBuffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+        // Work handed to this loop by the acceptor, the command executor or other loops
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile Thread thread;
+
+        IoLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (!inLoop()) selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    // Tasks the loop queued for itself come with no wakeup
+                    if (tasks.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                } catch (IOException e) {
+                    Log.error("IOException in event loop", e);
+                    return;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+
+                    try {
+                        if (key.isAcceptable()) {
+                            accept((ServerSocketChannel) key.channel());
+                        } else {
+                            Connection conn = (Connection) key.attachment();
+                            if (key.isReadable()) conn.onReadable();
+                            if (key.isValid() && key.isWritable()) conn.onWritable();
+                        }
+                    } catch (IOException e) {
+                        if (key.attachment() instanceof Connection conn) {
+                            conn.close();
+                        } else {
+                            Log.warn("IOException in event loop: " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        }
+
+        private void accept(ServerSocketChannel serverChannel) throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                register(channel);
+            }
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(this, channel, key));
+            } catch (IOException e) {
+                Log.warn("Failed to register connection: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    private class Connection {
+        private final IoLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ChannelOutputStream sink = new ChannelOutputStream(this);
+        // Touched only by the thread running this connection's commands: the loop
+        // itself, or the command executor while it owns a batch
+        private final RespWriter out = new RespWriter(sink);
+        private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        // The decoder copies arguments out of the shared ioBuffer, so a command split
+        // across reads is simply resumed on the next readable event
+        private final RespDecoder decoder = new RespDecoder();
+        private final RespRequest request = new RespRequest();
+        // Set while a batch is with the command executor or a blocking pop waits, so
+        // replies stay in order; commands read meanwhile are queued
+        private boolean busy;
+        private final ArrayDeque<RespRequest> queued = new ArrayDeque<>();
+        // Set while busy with a blocking pop rather than a batch
+        private boolean blocked;
+        private BlockedClient blockedClient;
+        private final long clientId = ClientHandler.nextClientId();
+        // MULTI state; the connection answers MULTI and what it queues itself
+        private final Transaction transaction = new Transaction();
+        // Created by the first SUBSCRIBE or PSUBSCRIBE
+        private ConnectionSubscriber subscriber;
+        // Pub/sub messages not yet handed to the socket, from any thread. They wait
+        // while a batch is with the command executor, whose replies may still be
+        // partly in `out`, and are otherwise written once per pass of the loop.
+        private final Queue<ByteBuffer> messages = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean messagesScheduled = new AtomicBoolean();
+        // Bytes in pendingWrites and messages
+        private final AtomicLong outputBytes = new AtomicLong();
+
+        Connection(IoLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void onReadable() throws IOException {
+            ByteBuffer ioBuffer = loop.ioBuffer;
+            ioBuffer.clear();
+            int n = channel.read(ioBuffer);
+            if (n == -1) {
+                close();
+                return;
+            }
+            if (n == 0) return;
+            ioBuffer.flip();
+
+            if (commandExecutor == null && !busy) {
+                // Commands run straight off the decoder, no copies, until one blocks
+                while (decoder.decode(ioBuffer, request)) {
+                    if (busy) {
+                        queued.add(request.copy());
+                    } else if (handlesLocally(request.commandName())) {
+                        handleLocally(request);
+                    } else if (BlockedClient.isBlocking(request.commandName())) {
+                        block(request.copy());
+                    } else {
+                        attach(request);
+                        ClientHandler.dispatch(request, out);
+                    }
+                }
+                if (!busy) out.flush();
+                return;
+            }
+
+            while (decoder.decode(ioBuffer, request)) {
+                queued.add(request.copy());
+            }
+            runQueued();
+        }
+
+        // Runs queued commands until one has to wait: a batch handed to the command
+        // executor or a blocking pop. A batch stops short of commands the connection
+        // answers itself, which have to wait for the replies before them.
+        private void runQueued() throws IOException {
+            while (!busy && !queued.isEmpty()) {
+                String command = queued.peek().commandName();
+                if (handlesLocally(command)) {
+                    handleLocally(queued.poll());
+                } else if (BlockedClient.isBlocking(command)) {
+                    block(queued.poll());
+                } else if (commandExecutor == null) {
+                    RespRequest next = queued.poll();
+                    attach(next);
+                    ClientHandler.dispatch(next, out);
+                } else {
+                    List<RespRequest> batch = new ArrayList<>();
+                    while (!queued.isEmpty() && !BlockedClient.isBlocking(queued.peek().commandName())
+                            && !handlesLocally(queued.peek().commandName())) {
+                        RespRequest next = queued.poll();
+                        attach(next);
+                        batch.add(next);
+                    }
+                    submit(batch);
+                }
+            }
+            if (!busy) out.flush();
+        }
+
+        // Commands the connection answers itself rather than the keyspace: MULTI and
+        // what it queues, subscribing or anything while subscribed in RESP2, HELLO and
+        // CLIENT
+        private boolean handlesLocally(String command) {
+            return isPubSubCommand(command) || transaction.handlesLocally(command)
+                    || command.equals("HELLO") || command.equals("CLIENT");
+        }
+
+        private void handleLocally(RespRequest request) throws IOException {
+            String command = request.commandName();
+            if (isPubSubCommand(command)) {
+                if (subscriber == null) subscriber = new ConnectionSubscriber();
+                PubSub.handleLocally(subscriber, request, out);
+            } else if (transaction.handlesLocally(command)) {
+                transaction.handleLocally(request, out);
+            } else if (command.equals("HELLO")) {
+                ClientHandler.handleHello(request, out, clientId, subscriber);
+            } else {
+                if (subscriber == null) subscriber = new ConnectionSubscriber();
+                Tracking.handleClient(subscriber, request, out);
+            }
+        }
+
+        // What the command needs of the connection: the transaction for WATCH and
+        // EXEC, and whose reads to remember for CLIENT TRACKING
+        private void attach(RespRequest request) {
+            transaction.attach(request);
+            request.tracking = Tracking.readsTracked(subscriber);
+        }
+
+        private boolean isPubSubCommand(String command) {
+            return subscriber != null && subscriber.isRestricted()
+                    || !transaction.handlesLocally(command) && PubSub.isSubscription(command);
+        }
+
+        // Hands a parsed batch to the command executor; the rest goes on after its replies are queued
+        private void submit(List<RespRequest> batch) {
+            busy = true;
+            updateInterest();
+            commandExecutor.execute(batch, out, () -> loop.execute(this::resume));
+        }
+
+        // Replies so far go out now; the pop's own is written when it comes
+        private void block(RespRequest command) throws IOException {
+            busy = true;
+            blocked = true;
+            out.flush();
+            blockedClient = BlockedClient.start(command, out, reply -> loop.execute(() -> unblock(reply)));
+        }
+
+        private void unblock(byte[] reply) {
+            blocked = false;
+            blockedClient = null;
+            if (!key.isValid()) return;
+            try {
+                out.writeRaw(reply);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            resume();
+        }
+
+        private void resume() {
+            if (!key.isValid()) return;
+            busy = false;
+            updateInterest();
+            try {
+                writeMessages();
+                runQueued();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void updateInterest() {
+            int ops = busy && !blocked ? 0 : SelectionKey.OP_READ;
+            if (!pendingWrites.isEmpty()) ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        // Writes straight to the socket when nothing is queued; only bytes the socket
+        // couldn't take right away are copied, since the caller reuses its array.
+        // Other threads (the command executor, replica propagation) get their bytes
+        // copied and written by the loop, which keeps the write queue single-threaded.
+        void write(byte[] b, int off, int len) throws IOException {
+            if (!loop.inLoop()) {
+                ByteBuffer copy = ByteBuffer.allocate(len);
+                copy.put(b, off, len).flip();
+                loop.execute(() -> {
+                    try {
+                        writeInLoop(copy);
+                    } catch (IOException e) {
+                        close();
+                    }
+                });
+                return;
+            }
+            writeInLoop(ByteBuffer.wrap(b, off, len));
+        }
+
+        private void writeInLoop(ByteBuffer buf) throws IOException {
+            if (!key.isValid()) throw new ClosedChannelException();
+            if (pendingWrites.isEmpty()) {
+                channel.write(buf);
+            }
+            if (buf.hasRemaining()) {
+                ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+                copy.put(buf).flip();
+                pendingWrites.add(copy);
+                outputBytes.addAndGet(copy.remaining());
+                updateInterest();
+            }
+        }
+
+        // Queued pub/sub messages go after the replies written so far, with one
+        // gathering write. They are queued as they are: the arrays are shared with
+        // every other subscriber, but never changed.
+        private void writeMessages() throws IOException {
+            messagesScheduled.set(false);
+            if (busy && !blocked || !key.isValid()) return;
+            out.flush();
+            boolean wasEmpty = pendingWrites.isEmpty();
+            ByteBuffer message;
+            while ((message = messages.poll()) != null) pendingWrites.add(message);
+            if (wasEmpty) {
+                onWritable();
+            } else {
+                updateInterest();
+            }
+        }
+
+        void onWritable() throws IOException {
+            while (!pendingWrites.isEmpty()) {
+                int n = Math.min(pendingWrites.size(), MAX_GATHER);
+                ByteBuffer[] gather = new ByteBuffer[n];
+                Iterator<ByteBuffer> it = pendingWrites.iterator();
+                for (int i = 0; i < n; i++) gather[i] = it.next();
+                outputBytes.addAndGet(-channel.write(gather));
+                while (!pendingWrites.isEmpty() && !pendingWrites.peek().hasRemaining()) pendingWrites.poll();
+                if (gather[n - 1].hasRemaining()) break;
+            }
+            updateInterest();
+        }
+
+        // Pub/sub messages and tracking invalidations for this connection, handed to its
+        // loop to write
+        private final class ConnectionSubscriber extends PubSub.Subscriber {
+            ConnectionSubscriber() {
+                super(clientId);
+            }
+
+            @Override
+            long queue(byte[] message) {
+                long queued = outputBytes.addAndGet(message.length);
+                messages.add(ByteBuffer.wrap(message));
+                if (messagesScheduled.compareAndSet(false, true)) {
+                    loop.execute(() -> {
+                        try {
+                            writeMessages();
+                        } catch (IOException e) {
+                            close();
+                        }
+                    });
+                }
+                return queued;
+            }
+
+            // A reset rather than a close, so what the kernel still holds for the
+            // client is dropped too instead of trickling out to it
+            @Override
+            void disconnect() {
+                loop.execute(() -> {
+                    try {
+                        channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+                    } catch (IOException ignored) {}
+                    close();
+                });
+            }
+        }
+
+        void close() {
+            if (blockedClient != null) blockedClient.cancel();
+            key.cancel();
+            ReplicationHandler.removeReplica(sink);
+            PubSub.closed(subscriber);
+            subscriber = null;
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    // Sink behind a connection's RespWriter, also registered as the stream for
+    // replicas attached to this server through PSYNC
+    private static class ChannelOutputStream extends OutputStream {
+        private final Connection conn;
+
+        ChannelOutputStream(Connection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            conn.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            conn.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+// What to throw out once the dataset grows past maxmemory, and the per-entry access
+// data that decision is based on. As in Redis, each KeyValue carries one int, `lru`:
+// under the LFU policy a 16-bit minute timestamp plus an 8-bit logarithmic access
+// counter, under every other policy a 24-bit clock in seconds of the last access.
+// Candidates are picked by sampling a few keys at a time (see Keyspace), so neither
+// LRU nor LFU needs a list or heap that every access has to update.
+final class Eviction {
+    enum Policy {
+        NOEVICTION("noeviction"),
+        ALLKEYS_LRU("allkeys-lru"),
+        ALLKEYS_LFU("allkeys-lfu"),
+        VOLATILE_LRU("volatile-lru"),
+        VOLATILE_TTL("volatile-ttl");
+
+        final String configName;
+
+        Policy(String configName) {
+            this.configName = configName;
+        }
+
+        // Only keys with a TTL may be evicted
+        boolean volatileOnly() {
+            return this == VOLATILE_LRU || this == VOLATILE_TTL;
+        }
+
+        // Null for an unknown name
+        static Policy of(String configName) {
+            for (Policy policy : values()) {
+                if (policy.configName.equalsIgnoreCase(configName)) return policy;
+            }
+            return null;
+        }
+    }
+
+    private static final int LRU_CLOCK_MAX = (1 << 24) - 1;
+    private static final long LRU_CLOCK_RESOLUTION_MILLIS = 1000;
+
+    private static final int LFU_INIT_VAL = 5;
+    private static final int LFU_LOG_FACTOR = 10;
+    // The counter loses one for every this many minutes a key goes unaccessed
+    private static final int LFU_DECAY_MINUTES = 1;
+
+    private Eviction() {}
+
+    private static boolean lfu() {
+        return Config.maxmemoryPolicy == Policy.ALLKEYS_LFU;
+    }
+
+    // Access data for a new entry
+    static int initialAccess() {
+        return lfu() ? (lfuMinutes() << 8) | LFU_INIT_VAL : lruClock();
+    }
+
+    // Records an access. Only writes when the data actually changes, so a key read
+    // constantly by many threads doesn't turn into a contended cache line.
+    static void touch(KeyValue kv) {
+        int access = kv.lru;
+        int updated;
+        if (lfu()) {
+            int counter = logIncrement(decayedCounter(access));
+            updated = (lfuMinutes() << 8) | counter;
+        } else {
+            updated = lruClock();
+        }
+        if (updated != access) kv.lru = updated;
+    }
+
+    // How good a candidate for eviction an entry is: higher goes first
+    static long score(Policy policy, KeyValue kv) {
+        switch (policy) {
+            case ALLKEYS_LFU: return 255 - decayedCounter(kv.lru);
+            // Soonest to expire goes first
+            case VOLATILE_TTL: return Long.MAX_VALUE - kv.expirationTimestamp;
+            default: return idleMillis(kv.lru);
+        }
+    }
+
+    private static int lruClock() {
+        return (int) (System.currentTimeMillis() / LRU_CLOCK_RESOLUTION_MILLIS) & LRU_CLOCK_MAX;
+    }
+
+    // The clock wraps every 194 days
+    private static long idleMillis(int lru) {
+        int clock = lruClock();
+        long ticks = clock >= lru ? clock - lru : clock + (LRU_CLOCK_MAX - lru);
+        return ticks * LRU_CLOCK_RESOLUTION_MILLIS;
+    }
+
+    private static int lfuMinutes() {
+        return (int) (System.currentTimeMillis() / 60_000) & 0xFFFF;
+    }
+
+    // Increments become less likely as the counter grows, so 8 bits cover about a
+    // million accesses
+    private static int logIncrement(int counter) {
+        if (counter == 255) return 255;
+        int base = Math.max(0, counter - LFU_INIT_VAL);
+        double p = 1.0 / (base * LFU_LOG_FACTOR + 1);
+        return ThreadLocalRandom.current().nextDouble() < p ? counter + 1 : counter;
+    }
+
+    // The counter minus one for every LFU_DECAY_MINUTES since the last access
+    private static int decayedCounter(int access) {
+        int counter = access & 0xFF;
+        int last = access >>> 8;
+        int now = lfuMinutes();
+        int elapsed = now >= last ? now - last : 0xFFFF - last + now;
+        int periods = elapsed / LFU_DECAY_MINUTES;
+        return periods >= counter ? 0 : counter - periods;
+    }
+}
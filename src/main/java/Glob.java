@@ -0,0 +1,252 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A glob-style pattern as KEYS and SCAN's MATCH take it, compiled once and then
+// matched against any number of keys or members. The syntax and its corner cases are
+// those of Redis' stringmatchlen: * for any run of bytes, ? for any one byte, [abc],
+// [^abc] and [a-z] for one byte of a class, \ to take the next pattern byte literally,
+// and an unterminated class running to the end of the pattern. Bytes are unsigned.
+//
+// Everything but * matches exactly one byte, so a pattern compiles to runs of
+// one-byte tokens between stars. The common shapes are all literal and match with one
+// or two array comparisons: user:42, user:*, *:session, user:*:cart, *42*. Any other
+// pattern is matched run by run, each at its leftmost place, which never backtracks:
+// O(key length x pattern length) where a recursive matcher can go exponential.
+final class Glob {
+    // Pattern shapes, L standing for a literal run
+    private static final int EXACT = 0;          // L
+    private static final int ANY = 1;            // *
+    private static final int PREFIX = 2;         // L*
+    private static final int SUFFIX = 3;         // *L
+    private static final int PREFIX_SUFFIX = 4;  // L*L
+    private static final int CONTAINS = 5;       // *L*
+    private static final int GENERAL = 6;
+
+    // Tokens other than a literal byte (0 to 255): any byte, or class i as -2 - i
+    private static final int ANY_BYTE = -1;
+
+    private final int shape;
+    // The literal runs of the literal shapes: the only one, or the prefix and suffix
+    private final byte[] head;
+    private final byte[] tail;
+    // GENERAL: the token runs between stars, and whether the pattern starts or ends
+    // with one; the first run is then not anchored at the start, or the last at the end
+    private final int[][] runs;
+    private final boolean leadingStar;
+    private final boolean trailingStar;
+    // Classes as 256-bit sets
+    private final long[][] classes;
+
+    private Glob(int shape, byte[] head, byte[] tail, int[][] runs, boolean leadingStar, boolean trailingStar, long[][] classes) {
+        this.shape = shape;
+        this.head = head;
+        this.tail = tail;
+        this.runs = runs;
+        this.leadingStar = leadingStar;
+        this.trailingStar = trailingStar;
+        this.classes = classes;
+    }
+
+    static Glob compile(byte[] pattern) {
+        return compile(pattern, 0, pattern.length);
+    }
+
+    static Glob compile(byte[] p, int off, int len) {
+        List<int[]> runs = new ArrayList<>();
+        List<long[]> classes = new ArrayList<>();
+        int[] run = new int[len];
+        int runLength = 0;
+        boolean stars = false;
+        boolean leadingStar = len > 0 && p[off] == '*';
+        boolean trailingStar = false;
+
+        int end = off + len;
+        for (int i = off; i < end; ) {
+            byte b = p[i];
+            trailingStar = b == '*';
+            if (b == '*') {
+                stars = true;
+                if (runLength > 0) runs.add(Arrays.copyOf(run, runLength));
+                runLength = 0;
+                i++;
+            } else if (b == '?') {
+                run[runLength++] = ANY_BYTE;
+                i++;
+            } else if (b == '[') {
+                long[] set = new long[4];
+                i = parseClass(p, i + 1, end, set);
+                run[runLength++] = -2 - classes.size();
+                classes.add(set);
+            } else if (b == '\\' && end - i >= 2) {
+                run[runLength++] = p[i + 1] & 0xFF;
+                i += 2;
+            } else {
+                run[runLength++] = b & 0xFF;
+                i++;
+            }
+        }
+        if (runLength > 0) runs.add(Arrays.copyOf(run, runLength));
+
+        if (classes.isEmpty() && runs.stream().allMatch(Glob::isLiteral)) {
+            if (!stars) return literal(EXACT, runs.isEmpty() ? new byte[0] : bytes(runs.get(0)), null);
+            if (runs.isEmpty()) return literal(ANY, null, null);
+            if (runs.size() == 1) {
+                byte[] only = bytes(runs.get(0));
+                if (leadingStar && trailingStar) return literal(CONTAINS, only, null);
+                return leadingStar ? literal(SUFFIX, null, only) : literal(PREFIX, only, null);
+            }
+            if (runs.size() == 2 && !leadingStar && !trailingStar) {
+                return literal(PREFIX_SUFFIX, bytes(runs.get(0)), bytes(runs.get(1)));
+            }
+        }
+        return new Glob(stars ? GENERAL : EXACT, null, null, runs.toArray(new int[0][]),
+                leadingStar, stars && trailingStar, classes.toArray(new long[0][]));
+    }
+
+    // The bytes every match starts with, empty if the pattern starts with a wildcard or
+    // a class. Lets PSUBSCRIBE patterns be indexed by it (see PubSub).
+    byte[] literalPrefix() {
+        switch (shape) {
+            case PREFIX:
+            case PREFIX_SUFFIX:
+                return head;
+            case ANY:
+            case SUFFIX:
+            case CONTAINS:
+                return new byte[0];
+        }
+        if (head != null) return head;
+        if (leadingStar || runs.length == 0) return new byte[0];
+        int[] first = runs[0];
+        int n = 0;
+        while (n < first.length && first[n] >= 0) n++;
+        return bytes(Arrays.copyOf(first, n));
+    }
+
+    boolean matches(byte[] s) {
+        int n = s.length;
+        switch (shape) {
+            case ANY:
+                return true;
+            case PREFIX:
+                return n >= head.length && Arrays.equals(s, 0, head.length, head, 0, head.length);
+            case SUFFIX:
+                return n >= tail.length && Arrays.equals(s, n - tail.length, n, tail, 0, tail.length);
+            case PREFIX_SUFFIX:
+                return n >= head.length + tail.length
+                        && Arrays.equals(s, 0, head.length, head, 0, head.length)
+                        && Arrays.equals(s, n - tail.length, n, tail, 0, tail.length);
+            case CONTAINS:
+                return indexOf(s, 0, n, head) >= 0;
+            case EXACT:
+                if (head != null) return Arrays.equals(s, head);
+                return runs.length == 0 ? n == 0 : n == runs[0].length && matchesAt(runs[0], s, 0);
+            default:
+                return matchesGeneral(s);
+        }
+    }
+
+    // Runs anchored at the ends are checked there; the ones in between are each taken
+    // at the leftmost place they match, which leaves the most room for the rest
+    private boolean matchesGeneral(byte[] s) {
+        int from = 0;
+        int to = s.length;
+        int first = 0;
+        int last = runs.length - 1;
+        if (!leadingStar) {
+            int[] run = runs[first++];
+            if (run.length > to || !matchesAt(run, s, 0)) return false;
+            from = run.length;
+        }
+        if (!trailingStar && first <= last) {
+            int[] run = runs[last--];
+            if (to - run.length < from || !matchesAt(run, s, to - run.length)) return false;
+            to -= run.length;
+        }
+        for (int r = first; r <= last; r++) {
+            int[] run = runs[r];
+            int at = from;
+            while (at + run.length <= to && !matchesAt(run, s, at)) at++;
+            if (at + run.length > to) return false;
+            from = at + run.length;
+        }
+        return true;
+    }
+
+    private boolean matchesAt(int[] run, byte[] s, int at) {
+        for (int k = 0; k < run.length; k++) {
+            int token = run[k];
+            int c = s[at + k] & 0xFF;
+            if (token >= 0) {
+                if (token != c) return false;
+            } else if (token != ANY_BYTE) {
+                long[] set = classes[-2 - token];
+                if ((set[c >>> 6] & (1L << c)) == 0) return false;
+            }
+        }
+        return true;
+    }
+
+    // Parses a class from just after its [ and returns the position after its ]. The
+    // steps are stringmatchlen's, so odd classes mean what they mean to Redis:
+    // [a-] is a range up to ], and [abc with no ] takes the rest of the pattern.
+    private static int parseClass(byte[] p, int i, int end, long[] set) {
+        boolean negated = i < end && p[i] == '^';
+        if (negated) i++;
+        while (true) {
+            if (i == end) {
+                i--;
+                break;
+            }
+            if (p[i] == '\\' && end - i >= 2) {
+                i++;
+                add(set, p[i] & 0xFF, p[i] & 0xFF);
+            } else if (p[i] == ']') {
+                break;
+            } else if (end - i >= 3 && p[i + 1] == '-') {
+                int from = p[i] & 0xFF;
+                int to = p[i + 2] & 0xFF;
+                add(set, Math.min(from, to), Math.max(from, to));
+                i += 2;
+            } else {
+                add(set, p[i] & 0xFF, p[i] & 0xFF);
+            }
+            i++;
+        }
+        if (negated) {
+            for (int w = 0; w < set.length; w++) set[w] = ~set[w];
+        }
+        return i + 1;
+    }
+
+    private static void add(long[] set, int from, int to) {
+        for (int c = from; c <= to; c++) set[c >>> 6] |= 1L << c;
+    }
+
+    private static boolean isLiteral(int[] run) {
+        for (int token : run) {
+            if (token < 0) return false;
+        }
+        return true;
+    }
+
+    private static byte[] bytes(int[] run) {
+        byte[] b = new byte[run.length];
+        for (int i = 0; i < run.length; i++) b[i] = (byte) run[i];
+        return b;
+    }
+
+    private static Glob literal(int shape, byte[] head, byte[] tail) {
+        return new Glob(shape, head, tail, null, false, false, null);
+    }
+
+    private static int indexOf(byte[] s, int from, int to, byte[] literal) {
+        if (literal.length == 0) return from;
+        byte first = literal[0];
+        for (int i = from, last = to - literal.length; i <= last; i++) {
+            if (s[i] == first && Arrays.equals(s, i, i + literal.length, literal, 0, literal.length)) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,214 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+// The hash value. A small hash is one flat byte array of [varint length][field]
+// [varint length][value] pairs, listpack style, searched linearly: for a few dozen
+// short fields that is as fast as hashing and a fraction of the memory of a table.
+// Past Config.hashMaxListpackEntries fields, or once a field or value is longer than
+// Config.hashMaxListpackValue, it is converted for good to a BytesMap.
+//
+// Not thread safe: hashes are only changed under the keyspace's per-key lock.
+final class HashValue {
+    private static final int INITIAL_BYTES = 32;
+    // Object sizes, as in Keyspace
+    private static final int HASH_BYTES = 32;
+
+    // Compact encoding, while table is null: pairs in buf[0, used)
+    private byte[] buf = new byte[INITIAL_BYTES];
+    private int used;
+    private int count;
+    private BytesMap<byte[]> table;
+    // Field and value bytes, and the value arrays of the table
+    private long dataBytes;
+    private long valueArrayBytes;
+
+    int size() {
+        return table != null ? table.size() : count;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    boolean isCompact() {
+        return table == null;
+    }
+
+    long dataBytes() {
+        return dataBytes;
+    }
+
+    long footprint() {
+        if (table == null) return HASH_BYTES + Keyspace.arrayFootprint(buf.length);
+        return HASH_BYTES + table.footprint() + valueArrayBytes;
+    }
+
+    // Null if the field isn't set
+    byte[] get(byte[] b, int off, int len) {
+        if (table != null) return table.get(b, off, len);
+        int pos = findCompact(b, off, len);
+        if (pos < 0) return null;
+        pos = skip(pos);
+        int vlen = Varint.read(buf, pos);
+        int data = pos + Varint.length(vlen);
+        return Arrays.copyOfRange(buf, data, data + vlen);
+    }
+
+    boolean contains(byte[] b, int off, int len) {
+        return table != null ? table.containsKey(b, off, len) : findCompact(b, off, len) >= 0;
+    }
+
+    // True if the field is new
+    boolean put(byte[] field, int foff, int flen, byte[] value, int voff, int vlen) {
+        if (table == null && (flen > Config.hashMaxListpackValue || vlen > Config.hashMaxListpackValue)) convert();
+        if (table != null) {
+            byte[] copy = Arrays.copyOfRange(value, voff, voff + vlen);
+            byte[] previous = table.put(field, foff, flen, copy);
+            valueArrayBytes += Keyspace.arrayFootprint(vlen);
+            if (previous != null) {
+                valueArrayBytes -= Keyspace.arrayFootprint(previous.length);
+                dataBytes += vlen - previous.length;
+                return false;
+            }
+            dataBytes += flen + vlen;
+            return true;
+        }
+
+        int pos = findCompact(field, foff, flen);
+        if (pos >= 0) {
+            // Same place, so the fields keep their order
+            int valuePos = skip(pos);
+            int oldLength = Varint.read(buf, valuePos);
+            int end = valuePos + Varint.length(oldLength) + oldLength;
+            splice(valuePos, end, value, voff, vlen);
+            dataBytes += vlen - oldLength;
+            return false;
+        }
+        if (count + 1 > Config.hashMaxListpackEntries) {
+            convert();
+            return put(field, foff, flen, value, voff, vlen);
+        }
+        splice(used, used, field, foff, flen);
+        splice(used, used, value, voff, vlen);
+        count++;
+        dataBytes += flen + vlen;
+        return true;
+    }
+
+    void put(byte[] field, byte[] value) {
+        put(field, 0, field.length, value, 0, value.length);
+    }
+
+    // True if the field was there
+    boolean remove(byte[] b, int off, int len) {
+        if (table != null) {
+            byte[] previous = table.remove(b, off, len);
+            if (previous == null) return false;
+            valueArrayBytes -= Keyspace.arrayFootprint(previous.length);
+            dataBytes -= len + previous.length;
+            return true;
+        }
+        int pos = findCompact(b, off, len);
+        if (pos < 0) return false;
+        int valuePos = skip(pos);
+        int end = skip(valuePos);
+        int vlen = Varint.read(buf, valuePos);
+        System.arraycopy(buf, end, buf, pos, used - end);
+        used -= end - pos;
+        count--;
+        dataBytes -= len + vlen;
+        return true;
+    }
+
+    // Fields and values, as HGETALL returns them: a map, or alternately in an array
+    void writeAll(RespWriter out) throws IOException {
+        out.writeMapHeader(size());
+        if (table != null) {
+            try {
+                table.forEach((field, value) -> {
+                    try {
+                        out.writeBulkString(field);
+                        out.writeBulkString(value);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return;
+        }
+        for (int pos = 0; pos < used; ) {
+            int len = Varint.read(buf, pos);
+            int data = pos + Varint.length(len);
+            out.writeBulkString(buf, data, len);
+            pos = data + len;
+        }
+    }
+
+    // One HSCAN step over fields and their values (see BytesMap.scan). A compact hash
+    // is small enough to go in one step.
+    long scan(long cursor, int count, BiConsumer<byte[], byte[]> action) {
+        if (table != null) return table.scan(cursor, count, action);
+        for (int pos = 0; pos < used; ) {
+            int flen = Varint.read(buf, pos);
+            int field = pos + Varint.length(flen);
+            int valuePos = field + flen;
+            int vlen = Varint.read(buf, valuePos);
+            int value = valuePos + Varint.length(vlen);
+            action.accept(Arrays.copyOfRange(buf, field, field + flen), Arrays.copyOfRange(buf, value, value + vlen));
+            pos = value + vlen;
+        }
+        return 0;
+    }
+
+    // Position of the field's length prefix, -1 if it isn't there
+    private int findCompact(byte[] b, int off, int len) {
+        for (int pos = 0; pos < used; ) {
+            int flen = Varint.read(buf, pos);
+            int data = pos + Varint.length(flen);
+            if (flen == len && Arrays.equals(buf, data, data + flen, b, off, off + len)) return pos;
+            pos = skip(data + flen);
+        }
+        return -1;
+    }
+
+    // Position after the length-prefixed string at `pos`
+    private int skip(int pos) {
+        int len = Varint.read(buf, pos);
+        return pos + Varint.length(len) + len;
+    }
+
+    // Replaces buf[from, to) with the length-prefixed src slice
+    private void splice(int from, int to, byte[] src, int off, int len) {
+        int insert = Varint.length(len) + len;
+        int newUsed = used - (to - from) + insert;
+        if (newUsed > buf.length) buf = Arrays.copyOf(buf, Math.max(newUsed, buf.length * 2));
+        System.arraycopy(buf, to, buf, from + insert, used - to);
+        int pos = Varint.write(buf, from, len);
+        System.arraycopy(src, off, buf, pos, len);
+        used = newUsed;
+    }
+
+    private void convert() {
+        BytesMap<byte[]> converted = new BytesMap<>();
+        long arrays = 0;
+        for (int pos = 0; pos < used; ) {
+            int flen = Varint.read(buf, pos);
+            int field = pos + Varint.length(flen);
+            int valuePos = field + flen;
+            int vlen = Varint.read(buf, valuePos);
+            int value = valuePos + Varint.length(vlen);
+            converted.put(buf, field, flen, Arrays.copyOfRange(buf, value, value + vlen));
+            arrays += Keyspace.arrayFootprint(vlen);
+            pos = value + vlen;
+        }
+        table = converted;
+        valueArrayBytes = arrays;
+        buf = null;
+        used = 0;
+        count = 0;
+    }
+}
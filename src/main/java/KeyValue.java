@@ -1,22 +1,284 @@
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
 
 class KeyValue {
-        String value;
+        // How the value is held: RAW in `value`, OFF_HEAP as the handle in `bits`,
+        // INT as the number itself in `bits`, with no byte payload at all. The other
+        // types keep their structure in `collection`.
+        private static final byte RAW = 0;
+        private static final byte OFF_HEAP = 1;
+        private static final byte INT = 2;
+        private static final byte LIST = 3;
+        private static final byte HASH = 4;
+        private static final byte ZSET = 5;
+        private static final byte SET = 6;
+
+        // Only for RAW: the value itself
+        byte[] value;
         long expirationTimestamp;
+        private final byte encoding;
+        // Volatile because INCR and friends update an INT in place while GETs read it
+        private volatile long bits;
+        private final int length;
+        private volatile boolean freed;
+        private final Object collection;
+        // The key this entry is listed under in the keyspace's key index, null when it
+        // isn't, and the next entry in the same bucket there
+        ByteKey indexKey;
+        KeyValue indexNext;
+        // Position in the keyspace's expiry index, -1 when not indexed
+        int expirySlot = -1;
+        // Last access or access frequency, for eviction (see Eviction)
+        int lru = Eviction.initialAccess();
+        // Bumped by every change made to the entry in place, for WATCH. A put makes a
+        // new entry, which is all WATCH needs to see. Changed under the key's stripe.
+        int version;
 
-        KeyValue(String value, long expirationTimestamp) {
+        KeyValue(byte[] value, long expirationTimestamp) {
             this.value = value;
             this.expirationTimestamp = expirationTimestamp;
+            this.encoding = RAW;
+            this.length = value.length;
+            this.collection = null;
         }
-        
-        boolean hasExpired() {
-            long now = System.currentTimeMillis();
-            boolean expired = expirationTimestamp > 0 && now > expirationTimestamp;
-            System.out.printf("Checking if expired: now=%d, expire=%d, expired=%b%n", now, expirationTimestamp, expired);
-            return expired;
+
+        private KeyValue(byte encoding, long bits, int length, long expirationTimestamp) {
+            this.encoding = encoding;
+            this.bits = bits;
+            this.length = length;
+            this.expirationTimestamp = expirationTimestamp;
+            this.collection = null;
+        }
+
+        private KeyValue(byte encoding, Object collection) {
+            this.encoding = encoding;
+            this.length = 0;
+            this.collection = collection;
+        }
+
+        // Values that read as an integer are kept as one; others go off heap when
+        // that is enabled
+        static KeyValue of(byte[] value, long expirationTimestamp) {
+            if (isCanonicalLong(value)) return ofLong(parseLong(value), expirationTimestamp);
+            if (!OffHeapStore.isEnabled()) return new KeyValue(value, expirationTimestamp);
+            return new KeyValue(OFF_HEAP, OffHeapStore.allocate(value), value.length, expirationTimestamp);
+        }
+
+        static KeyValue ofLong(long number, long expirationTimestamp) {
+            return new KeyValue(INT, number, 0, expirationTimestamp);
+        }
+
+        static KeyValue ofList(QuickList list) {
+            return new KeyValue(LIST, list);
+        }
+
+        static KeyValue ofHash(HashValue hash) {
+            return new KeyValue(HASH, hash);
+        }
+
+        static KeyValue ofZSet(ZSetValue zset) {
+            return new KeyValue(ZSET, zset);
+        }
+
+        static KeyValue ofSet(SetValue set) {
+            return new KeyValue(SET, set);
+        }
+
+        // As TYPE names it, and SCAN's TYPE option filters on
+        String typeName() {
+            switch (encoding) {
+                case LIST: return "list";
+                case HASH: return "hash";
+                case ZSET: return "zset";
+                case SET: return "set";
+                default: return "string";
+            }
+        }
+
+        boolean isString() {
+            return encoding <= INT;
+        }
+
+        boolean isList() {
+            return encoding == LIST;
+        }
+
+        // Only changed under the keyspace's per-key lock (Keyspace.update)
+        QuickList list() {
+            if (encoding != LIST) throw WrongTypeException.INSTANCE;
+            return (QuickList) collection;
+        }
+
+        // Only changed under the keyspace's per-key lock (Keyspace.update)
+        HashValue hash() {
+            if (encoding != HASH) throw WrongTypeException.INSTANCE;
+            return (HashValue) collection;
+        }
+
+        // Only changed under the keyspace's per-key lock (Keyspace.update)
+        ZSetValue zset() {
+            if (encoding != ZSET) throw WrongTypeException.INSTANCE;
+            return (ZSetValue) collection;
+        }
+
+        // Only changed under the keyspace's per-key lock (Keyspace.update)
+        SetValue set() {
+            if (encoding != SET) throw WrongTypeException.INSTANCE;
+            return (SetValue) collection;
+        }
+
+        boolean isLong() {
+            return encoding == INT;
+        }
+
+        // Only for an INT entry
+        long longValue() {
+            return bits;
+        }
+
+        // Only for an INT entry, and only under the keyspace's per-key lock (Keyspace.update)
+        void setLong(long number) {
+            bits = number;
+        }
+
+        // Length of the value as a string
+        int valueLength() {
+            return encoding == INT ? RespWriter.decimalLength(bits) : length;
+        }
+
+        // Bytes of payload, as counted in the dataset size: an INT is one long, a
+        // collection the bytes of its elements
+        long payloadLength() {
+            switch (encoding) {
+                case INT: return Long.BYTES;
+                case LIST: return ((QuickList) collection).dataBytes();
+                case HASH: return ((HashValue) collection).dataBytes();
+                case ZSET: return ((ZSetValue) collection).dataBytes();
+                case SET: return ((SetValue) collection).dataBytes();
+                default: return length;
+            }
+        }
+
+        // Heap values are returned as is and must not be modified
+        byte[] valueBytes() {
+            switch (encoding) {
+                case RAW: return value;
+                case INT: return Long.toString(bits).getBytes(StandardCharsets.US_ASCII);
+                case OFF_HEAP: return OffHeapStore.read(bits, length);
+                default: throw WrongTypeException.INSTANCE;
+            }
+        }
+
+        // Bytes the value takes beyond the KeyValue: its array on the heap, its chunk
+        // off heap, nothing for an INT, the whole structure for a collection
+        long valueFootprint() {
+            switch (encoding) {
+                case RAW: return Keyspace.arrayFootprint(length);
+                case INT: return 0;
+                case LIST: return ((QuickList) collection).footprint();
+                case HASH: return ((HashValue) collection).footprint();
+                case ZSET: return ((ZSetValue) collection).footprint();
+                case SET: return ((SetValue) collection).footprint();
+                default: return OffHeapStore.footprint(length);
+            }
+        }
+
+        // What Redis accepts as an integer and prints back the same way: optional minus,
+        // no leading zeros or plus sign, within a long. Anything else stays a string so
+        // GET returns exactly what was SET.
+        static boolean isCanonicalLong(byte[] b) {
+            return isCanonicalLong(b, 0, b.length);
+        }
+
+        static boolean isCanonicalLong(byte[] b, int off, int len) {
+            if (len == 0 || len > 20) return false;
+            int end = off + len;
+            int i = b[off] == '-' ? off + 1 : off;
+            if (i == end) return false;
+            if (b[i] == '0') return len == 1;
+            for (int j = i; j < end; j++) {
+                if (b[j] < '0' || b[j] > '9') return false;
+            }
+            if (end - i < 19) return true;
+            try {
+                parseLong(b, off, len);
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        static long parseLong(byte[] b) {
+            return parseLong(b, 0, b.length);
+        }
+
+        // Digits with an optional leading minus, nothing else
+        static long parseLong(byte[] b, int off, int len) {
+            if (len == 0 || len > 20) throw new NumberFormatException("value is not an integer");
+            int end = off + len;
+            boolean negative = b[off] == '-';
+            int i = negative ? off + 1 : off;
+            if (i == end) throw new NumberFormatException("value is not an integer");
+            long result = 0;
+            for (; i < end; i++) {
+                int digit = b[i] - '0';
+                if (digit < 0 || digit > 9) throw new NumberFormatException("value is not an integer");
+                // Accumulate negatively so Long.MIN_VALUE is representable
+                if (result < (Long.MIN_VALUE + digit) / 10) throw new NumberFormatException("value is out of range");
+                result = result * 10 - digit;
+            }
+            if (!negative) {
+                if (result == Long.MIN_VALUE) throw new NumberFormatException("value is out of range");
+                result = -result;
+            }
+            return result;
+        }
+
+        // Writes the value as a bulk string, straight from off-heap memory if that's where
+        // it lives. Returns false, with nothing written, if the entry was released while
+        // being copied; the caller looks the key up again.
+        boolean writeValue(RespWriter out) throws IOException {
+            if (encoding == RAW) {
+                out.writeBulkString(value);
+                return true;
+            }
+            if (encoding == INT) {
+                out.writeBulkNumber(bits);
+                return true;
+            }
+            if (encoding != OFF_HEAP) throw WrongTypeException.INSTANCE;
+            long handle = bits;
+            MemorySegment segment = OffHeapStore.segment(handle);
+            long offset = OffHeapStore.offset(handle);
+            if (segment == null || offset + length > segment.byteSize()) return false;
+
+            int mark = out.size();
+            out.writeBulkString(segment, offset, length);
+            // Same check as StampedLock.validate: the copy above is only trusted if the
+            // chunk wasn't released, and possibly reused, before it completed
+            VarHandle.acquireFence();
+            if (freed) {
+                out.truncate(mark);
+                return false;
+            }
+            return true;
+        }
+
+        // Called by the keyspace once the entry is replaced or removed
+        void release() {
+            if (encoding != OFF_HEAP) return;
+            freed = true;
+            OffHeapStore.free(bits, length);
         }
         
+        boolean isExpired(long now) {
+            return expirationTimestamp > 0 && now > expirationTimestamp;
+        }
+
         void updateExpiration(long newExpirationTimestamp) {
             this.expirationTimestamp = newExpirationTimestamp;
-            System.out.println("Expiration updated: " + newExpirationTimestamp);
+            if (Log.isDebugEnabled()) Log.debug("Expiration updated: " + newExpirationTimestamp);
         }
-}
\ No newline at end of file
+}
@@ -0,0 +1,797 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+// A set of keys and the entries they map to. Keys and values are kept as the bytes
+// the client sent, so nothing is decoded on the way in or re-encoded on the way out;
+// the exception is values that read as integers, which are kept as a long.
+// In the thread, virtual and plain nio modes there is one keyspace shared by every
+// client, backed by a ConcurrentHashMap. In sharded mode each shard thread owns its
+// own keyspace over a plain HashMap and is the only thread that ever touches it.
+//
+// Writes of the shared keyspace also take a lock striped by key hash, which commands
+// over several keys hold for all of theirs at once, so MSET, MSETNX and DEL are atomic
+// without a global lock: only writes to keys on the same stripes wait. Expiry and
+// eviction remove keys under the stripe too, but put a removal off rather than wait.
+//
+// Every key is also linked into a hashed index of its own, which eviction samples at
+// random and SCAN walks with a cursor, and keys with a TTL are listed in an array, so
+// the active expire cycle samples only those and never walks keys that cannot expire.
+//
+// Memory use is estimated per entry from the JVM's object layout and kept as running
+// totals, updated on every put and removal, so INFO and the maxmemory check never
+// have to walk the map.
+//
+// Every change to a key, whether a write, a TTL change, a deletion, expiry or
+// eviction, goes through the same bookkeeping, which is where clients tracking the key
+// hear of it (see Tracking).
+class Keyspace {
+    // Active expiry runs ten times a second and may use a quarter of each tick
+    static final long ACTIVE_EXPIRE_PERIOD_NANOS = 100_000_000L;
+    private static final long ACTIVE_EXPIRE_BUDGET_NANOS = ACTIVE_EXPIRE_PERIOD_NANOS / 4;
+    private static final int ACTIVE_EXPIRE_KEYS_PER_LOOP = 20;
+    // Sample again right away while more than this share of a sample had expired
+    private static final int ACTIVE_EXPIRE_ACCEPTABLE_STALE_PERCENT = 10;
+
+    // Keys sampled per eviction round, and the best candidates kept across rounds
+    private static final int EVICTION_SAMPLES = 5;
+    private static final int EVICTION_POOL_SIZE = 16;
+
+    // Power of two
+    private static final int LOCK_STRIPES = 256;
+
+    // Object sizes on a 64-bit JVM with compressed oops: 12-byte headers, 4-byte
+    // references, 8-byte alignment. A map node comes with its share of the bucket
+    // table, which is kept between 1.33 and 2.67 times the entry count.
+    private static final int MAP_NODE_BYTES = 32 + 8;
+    private static final int BYTE_KEY_BYTES = 24;
+    private static final int KEY_VALUE_BYTES = 64;
+
+    // Keys removed because their TTL ran out, lazily or by the active cycle, across all keyspaces
+    static final LongAdder expiredKeys = new LongAdder();
+    // Keys removed to get back under maxmemory, across all keyspaces
+    static final LongAdder evictedKeys = new LongAdder();
+    // Running totals over all keyspaces: entry footprints, the key and value bytes
+    // within them, the index arrays, and the number of keys
+    private static final LongAdder entryBytes = new LongAdder();
+    private static final LongAdder payloadBytes = new LongAdder();
+    private static final LongAdder indexBytes = new LongAdder();
+    private static final LongAdder keyCount = new LongAdder();
+    private static final AtomicLong peakMemory = new AtomicLong();
+
+    private final Map<ByteKey, KeyValue> keyValueStore;
+
+    // Taken by every write or removal of a key around its map operation, and for all of
+    // its keys by withKeysLocked. Null for a shard's keyspace, which only its own thread touches.
+    private final ReentrantLock[] stripes;
+
+    // Both indexes are guarded by indexLock. An entry may stay indexed briefly after a
+    // concurrent put replaced it; whoever samples it drops it on sight.
+    private final ReentrantLock indexLock = new ReentrantLock();
+    private final KeyIndex allKeys = new KeyIndex();
+    private final SampleIndex expiring = new SampleIndex();
+
+    // Eviction pool, sorted by ascending score so the best candidate is last.
+    // Guarded by evictionLock.
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ByteKey[] poolKeys = new ByteKey[EVICTION_POOL_SIZE];
+    private final KeyValue[] poolValues = new KeyValue[EVICTION_POOL_SIZE];
+    private final long[] poolScores = new long[EVICTION_POOL_SIZE];
+    private int poolSize;
+
+    // Clients blocked in BLPOP/BRPOP on each key, longest-waiting first. Queues are only
+    // changed through compute, which is the lock; an update of a key may take its queue's
+    // lock inside the key's own, never the other way around.
+    private final Map<ByteKey, ArrayDeque<BlockedClient>> blockedClients = new ConcurrentHashMap<>();
+
+    Keyspace(Map<ByteKey, KeyValue> keyValueStore) {
+        this.keyValueStore = keyValueStore;
+        if (keyValueStore instanceof ConcurrentMap) {
+            stripes = new ReentrantLock[LOCK_STRIPES];
+            for (int i = 0; i < LOCK_STRIPES; i++) stripes[i] = new ReentrantLock();
+        } else {
+            stripes = null;
+        }
+    }
+
+    // What maxmemory is checked against
+    static long usedMemory() {
+        return entryBytes.sum() + indexBytes.sum();
+    }
+
+    // Key and value bytes alone
+    static long datasetBytes() {
+        return payloadBytes.sum();
+    }
+
+    static long keyCount() {
+        return keyCount.sum();
+    }
+
+    static long indexBytes() {
+        return indexBytes.sum();
+    }
+
+    // Highest used memory seen by updatePeak()
+    static long peakMemory() {
+        return peakMemory.get();
+    }
+
+    // Refreshed by the active expire cycle and whenever memory is reported
+    static void updatePeak() {
+        long used = usedMemory();
+        if (used > peakMemory.get()) peakMemory.accumulateAndGet(used, Math::max);
+    }
+
+    static long arrayFootprint(int length) {
+        return (16L + length + 7) & ~7L;
+    }
+
+    // The cursor after `cursor` in a scan of a power-of-two table of mask + 1 buckets,
+    // 0 when the scan is over. Redis' reverse binary iteration: the cursor is counted
+    // up from its highest bit down, so the buckets a bucket splits into when the table
+    // doubles, or merges with when it halves, all come after the ones already visited.
+    // Whatever stays in the table for a whole scan is visited at least once, however
+    // often it is resized in between; only a shrink can make a bucket come up twice.
+    static int nextScanCursor(int cursor, int mask) {
+        cursor |= ~mask;
+        cursor = Integer.reverse(cursor);
+        cursor++;
+        return Integer.reverse(cursor);
+    }
+
+    // What MEMORY USAGE reports for an entry
+    static long entrySize(ByteKey key, KeyValue kv) {
+        return MAP_NODE_BYTES + BYTE_KEY_BYTES + arrayFootprint(key.length()) + KEY_VALUE_BYTES + kv.valueFootprint();
+    }
+
+    private static void account(ByteKey key, KeyValue kv, int sign) {
+        entryBytes.add(sign * entrySize(key, kv));
+        payloadBytes.add(sign * ((long) key.length() + kv.payloadLength()));
+    }
+
+    // Expired entries are removed here, on access, as well as by the active cycle
+    public KeyValue get(ByteKey key) {
+        KeyValue kv = keyValueStore.get(key);
+        if (kv == null) return null;
+        if (kv.isExpired(System.currentTimeMillis())) {
+            if (removeIfUnchanged(key, kv)) {
+                removed(key, kv);
+                expiredKeys.increment();
+            }
+            return null;
+        }
+        Eviction.touch(kv);
+        return kv;
+    }
+
+    // The bookkeeping of a write or removal is done before its stripe is let go, so two
+    // writes of one key index their entries in the order they made them; otherwise the
+    // first could be indexed after the second replaced it, and stay there dead
+    public void put(ByteKey key, KeyValue value) {
+        ReentrantLock stripe = lockStripe(key);
+        try {
+            replaced(key, keyValueStore.put(key, value), value);
+        } finally {
+            if (stripe != null) stripe.unlock();
+        }
+    }
+
+    // Atomically replaces the entry for `key` with what `update` makes of the current
+    // one, which is null when the key is missing or expired. The function runs under
+    // the map's per-key lock, so concurrent updates of one key can't lose each other's
+    // writes. It may change the entry in place (an INT, a list) and return it, return a
+    // new entry or null to delete the key, or throw before changing anything to leave
+    // everything as it was.
+    public KeyValue update(ByteKey key, UnaryOperator<KeyValue> update) {
+        return update(key, update, true);
+    }
+
+    // As update(); `write` says whether an entry it keeps may have been changed in place
+    private KeyValue update(ByteKey key, UnaryOperator<KeyValue> update, boolean write) {
+        long now = System.currentTimeMillis();
+        KeyValue[] previous = new KeyValue[1];
+        // How much an entry changed in place grew by: its footprint and its payload
+        long[] growth = new long[2];
+        ReentrantLock stripe = lockStripe(key);
+        try {
+            KeyValue result = keyValueStore.compute(key, (k, current) -> {
+                previous[0] = current;
+                if (current == null || current.isExpired(now)) return update.apply(null);
+                long size = entrySize(k, current);
+                long payload = current.payloadLength();
+                KeyValue next = update.apply(current);
+                if (write && next == current) current.version++;
+                growth[0] = entrySize(k, current) - size;
+                growth[1] = current.payloadLength() - payload;
+                return next;
+            });
+
+            // Counted first, so that whatever replaces or removes the entry below takes
+            // back what it now accounts for
+            if (growth[0] != 0) entryBytes.add(growth[0]);
+            if (growth[1] != 0) payloadBytes.add(growth[1]);
+            KeyValue before = previous[0];
+            if (result == before) {
+                if (result != null) {
+                    Eviction.touch(result);
+                    if (write) Tracking.keyChanged(key);
+                }
+                return result;
+            }
+            if (before != null && before.isExpired(now)) expiredKeys.increment();
+            if (result == null) {
+                removed(key, before);
+            } else {
+                replaced(key, before, result);
+            }
+            return result;
+        } finally {
+            if (stripe != null) stripe.unlock();
+        }
+    }
+
+    // Bookkeeping for `value` having taken the place of `previous`, if there was one
+    private void replaced(ByteKey key, KeyValue previous, KeyValue value) {
+        indexLock.lock();
+        try {
+            if (previous != null) {
+                allKeys.replace(previous, key, value);
+                expiring.remove(previous);
+            } else {
+                allKeys.add(key, value);
+            }
+            if (value.expirationTimestamp > 0) expiring.add(key, value);
+        } finally {
+            indexLock.unlock();
+        }
+        if (previous != null) {
+            previous.release();
+            account(key, previous, -1);
+        } else {
+            keyCount.increment();
+        }
+        account(key, value, 1);
+        Tracking.keyChanged(key);
+    }
+
+    // Runs `read` on the live entry for `key`, or null, under the same per-key lock as
+    // update(), for reads of values that writers change in place
+    public <T> T read(ByteKey key, Function<KeyValue, T> read) {
+        Object[] result = new Object[1];
+        update(key, current -> {
+            result[0] = read.apply(current);
+            return current;
+        }, false);
+        @SuppressWarnings("unchecked")
+        T value = (T) result[0];
+        return value;
+    }
+
+    public KeyValue remove(ByteKey key) {
+        ReentrantLock stripe = lockStripe(key);
+        try {
+            KeyValue removed = keyValueStore.remove(key);
+            if (removed != null) removed(key, removed);
+            return removed;
+        } finally {
+            if (stripe != null) stripe.unlock();
+        }
+    }
+
+    // Runs `task` holding the stripes of all of `keys`, so that no write of any of them
+    // can come in between the task's own reads and writes. The stripes are taken in
+    // ascending order, so two tasks over overlapping keys queue up instead of
+    // deadlocking. `task` must not wait for another thread that writes keys.
+    void withKeysLocked(ByteKey[] keys, Runnable task) {
+        if (stripes == null) {
+            task.run();
+            return;
+        }
+        int[] order = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) order[i] = stripeOf(keys[i]);
+        Arrays.sort(order);
+        int locked = 0;
+        try {
+            for (; locked < order.length; locked++) {
+                if (locked == 0 || order[locked] != order[locked - 1]) stripes[order[locked]].lock();
+            }
+            task.run();
+        } finally {
+            for (int i = locked - 1; i >= 0; i--) {
+                if (i == 0 || order[i] != order[i - 1]) stripes[order[i]].unlock();
+            }
+        }
+    }
+
+    // Takes `key` out if it still maps to `kv`, for the removals the keyspace makes on
+    // its own: lazy and active expiry and eviction. These may run holding other stripes,
+    // so the key's stripe is only tried, never waited for; if it is busy the entry stays
+    // for a later pass and this returns false. Replicas are sent a DEL before the stripe
+    // is let go, so no later write of the key can reach them first. Replicas never evict
+    // on their own, so this is how they keep within our maxmemory.
+    private boolean removeIfUnchanged(ByteKey key, KeyValue kv) {
+        ReentrantLock stripe = null;
+        if (stripes != null) {
+            stripe = stripes[stripeOf(key)];
+            if (!stripe.tryLock()) return false;
+        }
+        try {
+            if (!keyValueStore.remove(key, kv)) return false;
+            ReplicationHandler.propagateDel(key.bytes());
+            return true;
+        } finally {
+            if (stripe != null) stripe.unlock();
+        }
+    }
+
+    private int stripeOf(ByteKey key) {
+        return key.hashCode() & (LOCK_STRIPES - 1);
+    }
+
+    // The key's stripe, locked, or null where there are none
+    private ReentrantLock lockStripe(ByteKey key) {
+        if (stripes == null) return null;
+        ReentrantLock stripe = stripes[stripeOf(key)];
+        stripe.lock();
+        return stripe;
+    }
+
+    // Sets or, with 0, clears the TTL of the live entry for `key`, and a time already
+    // past deletes it. The lookup, the change and the expiring index are all done under
+    // the key's stripe, so a write replacing the entry can't come in between and leave
+    // the TTL on an entry no longer in the map. False, changing nothing, if the key is
+    // missing or expired, or has no TTL to clear.
+    public boolean setExpiry(ByteKey key, long expirationTimestamp) {
+        long now = System.currentTimeMillis();
+        boolean delete = expirationTimestamp > 0 && expirationTimestamp <= now;
+        KeyValue[] changed = new KeyValue[1];
+        ReentrantLock stripe = lockStripe(key);
+        try {
+            keyValueStore.computeIfPresent(key, (k, current) -> {
+                if (current.isExpired(now)) return current;
+                if (expirationTimestamp <= 0 && current.expirationTimestamp <= 0) return current;
+                changed[0] = current;
+                if (delete) return null;
+                current.updateExpiration(expirationTimestamp);
+                current.version++;
+                return current;
+            });
+            KeyValue kv = changed[0];
+            if (kv != null && !delete) {
+                indexLock.lock();
+                try {
+                    if (expirationTimestamp > 0) {
+                        expiring.add(key, kv);
+                    } else {
+                        expiring.remove(kv);
+                    }
+                } finally {
+                    indexLock.unlock();
+                }
+            }
+        } finally {
+            if (stripe != null) stripe.unlock();
+        }
+
+        KeyValue kv = changed[0];
+        if (kv == null) return false;
+        if (delete) {
+            removed(key, kv);
+        } else {
+            Tracking.keyChanged(key);
+        }
+        return true;
+    }
+
+    public Set<ByteKey> keys() {
+        return keyValueStore.keySet();
+    }
+
+    // Every key that hasn't expired, straight off the map, for KEYS
+    void forEachKey(Consumer<ByteKey> action) {
+        long now = System.currentTimeMillis();
+        keyValueStore.forEach((key, kv) -> {
+            if (!kv.isExpired(now)) action.accept(key);
+        });
+    }
+
+    // One SCAN step: visits the entries of the key index from `cursor` on until about
+    // `count` of them, and returns the cursor to go on from, 0 once all were visited.
+    // `action` runs under the index lock, so it should do no more than filter and collect.
+    long scan(long cursor, int count, BiConsumer<ByteKey, KeyValue> action) {
+        indexLock.lock();
+        try {
+            return Integer.toUnsignedLong(allKeys.scan((int) cursor, count, action));
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    public int size() {
+        return keyValueStore.size();
+    }
+
+    public int expiringSize() {
+        return expiring.count;
+    }
+
+    // Bookkeeping for an entry that has just been taken out of the map
+    private void removed(ByteKey key, KeyValue kv) {
+        indexLock.lock();
+        try {
+            allKeys.remove(kv);
+            expiring.remove(kv);
+        } finally {
+            indexLock.unlock();
+        }
+        kv.release();
+        account(key, kv, -1);
+        keyCount.decrement();
+        Tracking.keyChanged(key);
+    }
+
+    void addBlocked(ByteKey key, BlockedClient client) {
+        blockedClients.compute(key, (k, queue) -> {
+            if (queue == null) queue = new ArrayDeque<>();
+            queue.add(client);
+            return queue;
+        });
+    }
+
+    // Queues are compacted as they go, so one left empty is dropped with it
+    void removeBlocked(ByteKey key, BlockedClient client) {
+        blockedClients.computeIfPresent(key, (k, queue) -> {
+            queue.remove(client);
+            return queue.isEmpty() ? null : queue;
+        });
+    }
+
+    boolean hasBlocked(ByteKey key) {
+        return !blockedClients.isEmpty() && blockedClients.containsKey(key);
+    }
+
+    // Takes the longest-waiting client on `key` that nobody else has finished yet and
+    // claims it for the caller; null if there is none
+    BlockedClient claimBlocked(ByteKey key) {
+        BlockedClient[] claimed = new BlockedClient[1];
+        blockedClients.computeIfPresent(key, (k, queue) -> {
+            BlockedClient client;
+            while ((client = queue.poll()) != null) {
+                if (client.claim()) {
+                    claimed[0] = client;
+                    break;
+                }
+            }
+            return queue.isEmpty() ? null : queue;
+        });
+        return claimed[0];
+    }
+
+    // Called before a write that may grow the dataset. Evicts keys, as the maxmemory
+    // policy says, until memory use is back under the limit. False if it can't be: the
+    // policy is noeviction, or this keyspace has nothing left the policy may evict.
+    public boolean freeMemoryIfNeeded() {
+        long limit = Config.maxmemory;
+        if (limit <= 0 || usedMemory() <= limit) return true;
+        Eviction.Policy policy = Config.maxmemoryPolicy;
+        if (policy == Eviction.Policy.NOEVICTION) return false;
+
+        evictionLock.lock();
+        try {
+            while (usedMemory() > limit) {
+                if (!evictOne(policy)) return false;
+            }
+            return true;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private boolean evictOne(Eviction.Policy policy) {
+        while (true) {
+            fillEvictionPool(policy);
+            if (poolSize == 0) return false;
+
+            int best = --poolSize;
+            ByteKey key = poolKeys[best];
+            KeyValue kv = poolValues[best];
+            poolKeys[best] = null;
+            poolValues[best] = null;
+            // Skipped if it was replaced or deleted after being sampled, or its stripe is busy
+            if (removeIfUnchanged(key, kv)) {
+                removed(key, kv);
+                evictedKeys.increment();
+                return true;
+            }
+        }
+    }
+
+    // Samples a few keys and keeps the best candidates seen so far, Redis style. The
+    // pool outlives a single eviction, so good candidates from earlier rounds still count.
+    private void fillEvictionPool(Eviction.Policy policy) {
+        boolean volatileOnly = policy.volatileOnly();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        indexLock.lock();
+        try {
+            int samples = Math.min(EVICTION_SAMPLES, volatileOnly ? expiring.count : allKeys.count);
+            for (int i = 0; i < samples; i++) {
+                ByteKey key;
+                KeyValue kv;
+                if (volatileOnly) {
+                    if (expiring.count == 0) break;
+                    int slot = random.nextInt(expiring.count);
+                    key = expiring.keys[slot];
+                    kv = expiring.values[slot];
+                } else {
+                    kv = allKeys.sample(random);
+                    if (kv == null) break;
+                    key = kv.indexKey;
+                }
+                if (keyValueStore.get(key) != kv || (volatileOnly && kv.expirationTimestamp <= 0)) {
+                    if (volatileOnly) {
+                        expiring.remove(kv);
+                    } else {
+                        allKeys.remove(kv);
+                    }
+                    continue;
+                }
+                addToEvictionPool(key, kv, Eviction.score(policy, kv));
+            }
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    private void addToEvictionPool(ByteKey key, KeyValue kv, long score) {
+        for (int i = 0; i < poolSize; i++) {
+            if (poolValues[i] == kv) return;
+        }
+        int at = 0;
+        while (at < poolSize && poolScores[at] < score) at++;
+        if (poolSize < EVICTION_POOL_SIZE) {
+            System.arraycopy(poolKeys, at, poolKeys, at + 1, poolSize - at);
+            System.arraycopy(poolValues, at, poolValues, at + 1, poolSize - at);
+            System.arraycopy(poolScores, at, poolScores, at + 1, poolSize - at);
+            poolSize++;
+        } else {
+            // Full: worse than everything pooled, or push out the worst
+            if (at == 0) return;
+            at--;
+            System.arraycopy(poolKeys, 1, poolKeys, 0, at);
+            System.arraycopy(poolValues, 1, poolValues, 0, at);
+            System.arraycopy(poolScores, 1, poolScores, 0, at);
+        }
+        poolKeys[at] = key;
+        poolValues[at] = kv;
+        poolScores[at] = score;
+    }
+
+    // One tick of active expiry, Redis style: sample a handful of keys with a TTL and
+    // delete the expired ones, repeating while the sample suggests many more are
+    // expired, until the time budget for the tick is used up
+    public void activeExpireCycle() {
+        updatePeak();
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        ByteKey[] keys = new ByteKey[ACTIVE_EXPIRE_KEYS_PER_LOOP];
+        KeyValue[] values = new KeyValue[ACTIVE_EXPIRE_KEYS_PER_LOOP];
+        while (true) {
+            int sampled = 0;
+            int found = 0;
+            indexLock.lock();
+            try {
+                int samples = Math.min(ACTIVE_EXPIRE_KEYS_PER_LOOP, expiring.count);
+                for (int i = 0; i < samples && expiring.count > 0; i++) {
+                    sampled++;
+                    int slot = random.nextInt(expiring.count);
+                    KeyValue kv = expiring.values[slot];
+                    if (kv.expirationTimestamp <= 0) {
+                        expiring.remove(kv); // TTL cleared concurrently
+                    } else if (kv.isExpired(now)) {
+                        keys[found] = expiring.keys[slot];
+                        values[found++] = kv;
+                    }
+                }
+            } finally {
+                indexLock.unlock();
+            }
+
+            // Removed outside the index lock, which removed() takes and the DEL sent to
+            // replicas shouldn't wait behind
+            int expired = 0;
+            for (int i = 0; i < found; i++) {
+                ByteKey key = keys[i];
+                KeyValue kv = values[i];
+                if (removeIfUnchanged(key, kv)) {
+                    removed(key, kv);
+                    expired++;
+                } else if (keyValueStore.get(key) != kv) {
+                    indexLock.lock();
+                    try {
+                        expiring.remove(kv); // replaced or deleted concurrently
+                    } finally {
+                        indexLock.unlock();
+                    }
+                }
+                keys[i] = null;
+                values[i] = null;
+            }
+            expiredKeys.add(expired);
+
+            if (sampled == 0 || expired * 100 <= sampled * ACTIVE_EXPIRE_ACCEPTABLE_STALE_PERCENT) return;
+            if (System.nanoTime() - start > ACTIVE_EXPIRE_BUDGET_NANOS) return;
+        }
+    }
+
+    // Drives the active cycle for a keyspace no single thread owns
+    static void startActiveExpire(Keyspace keyspace) {
+        Thread.ofPlatform().daemon().name("active-expire").start(() -> {
+            while (true) {
+                LockSupport.parkNanos(ACTIVE_EXPIRE_PERIOD_NANOS);
+                try {
+                    keyspace.activeExpireCycle();
+                } catch (RuntimeException e) {
+                    Log.error("Error in active expire cycle", e);
+                }
+            }
+        });
+    }
+
+    // Every key in a chained table of a power-of-two number of buckets, linked through
+    // the entries themselves (KeyValue.indexKey and indexNext), so it costs a bucket
+    // reference or two per key and no node objects. Doubles above one key a bucket
+    // and halves below one in eight, like BytesMap. Eviction picks random entries
+    // from it Redis style, a random non-empty bucket and then a random entry of its
+    // chain, and SCAN walks it bucket by bucket. Guarded by indexLock.
+    private static final class KeyIndex {
+        private static final int MIN_CAPACITY = 16;
+
+        KeyValue[] table = new KeyValue[MIN_CAPACITY];
+        int count;
+
+        KeyIndex() {
+            indexBytes.add(arrayFootprint(MIN_CAPACITY * 4));
+        }
+
+        // Shards split keys by their hash modulo the shard count, which can leave the
+        // low bits the same for every key of a shard: fold the high bits in
+        private static int bucketHash(ByteKey key) {
+            int h = key.hashCode() * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        void add(ByteKey key, KeyValue kv) {
+            if (kv.indexKey != null) return;
+            int slot = bucketHash(key) & (table.length - 1);
+            kv.indexKey = key;
+            kv.indexNext = table[slot];
+            table[slot] = kv;
+            if (++count > table.length) resize(table.length * 2);
+        }
+
+        // `kv` takes the place of the entry it replaced in the map
+        void replace(KeyValue previous, ByteKey key, KeyValue kv) {
+            remove(previous);
+            add(key, kv);
+        }
+
+        void remove(KeyValue kv) {
+            if (kv.indexKey == null) return;
+            int slot = bucketHash(kv.indexKey) & (table.length - 1);
+            KeyValue prev = null;
+            for (KeyValue e = table[slot]; e != null; prev = e, e = e.indexNext) {
+                if (e != kv) continue;
+                if (prev == null) {
+                    table[slot] = kv.indexNext;
+                } else {
+                    prev.indexNext = kv.indexNext;
+                }
+                break;
+            }
+            kv.indexKey = null;
+            kv.indexNext = null;
+            if (--count < table.length / 8 && table.length > MIN_CAPACITY) resize(table.length / 2);
+        }
+
+        // A random entry, null if there is none
+        KeyValue sample(ThreadLocalRandom random) {
+            if (count == 0) return null;
+            KeyValue head;
+            do {
+                head = table[random.nextInt(table.length)];
+            } while (head == null);
+            int length = 0;
+            for (KeyValue e = head; e != null; e = e.indexNext) length++;
+            KeyValue kv = head;
+            for (int i = random.nextInt(length); i > 0; i--) kv = kv.indexNext;
+            return kv;
+        }
+
+        // Visits whole buckets from `cursor` on until at least `count` entries, or ten
+        // times as many buckets when they are mostly empty; see nextScanCursor
+        int scan(int cursor, int count, BiConsumer<ByteKey, KeyValue> action) {
+            int mask = table.length - 1;
+            long buckets = count * 10L;
+            int visited = 0;
+            do {
+                for (KeyValue kv = table[cursor & mask]; kv != null; kv = kv.indexNext) {
+                    action.accept(kv.indexKey, kv);
+                    visited++;
+                }
+                cursor = nextScanCursor(cursor, mask);
+            } while (cursor != 0 && visited < count && --buckets > 0);
+            return cursor;
+        }
+
+        private void resize(int capacity) {
+            KeyValue[] resized = new KeyValue[capacity];
+            for (KeyValue head : table) {
+                KeyValue kv = head;
+                while (kv != null) {
+                    KeyValue next = kv.indexNext;
+                    int slot = bucketHash(kv.indexKey) & (capacity - 1);
+                    kv.indexNext = resized[slot];
+                    resized[slot] = kv;
+                    kv = next;
+                }
+            }
+            indexBytes.add(arrayFootprint(capacity * 4) - arrayFootprint(table.length * 4));
+            table = resized;
+        }
+    }
+
+    // Keys with a TTL listed in an array so one can be picked at random in O(1): entry
+    // i is keys[i] -> values[i], and every listed KeyValue remembers its own slot
+    // (expirySlot) so it can be unlinked in O(1) too. Guarded by indexLock.
+    private static final class SampleIndex {
+        ByteKey[] keys = new ByteKey[16];
+        KeyValue[] values = new KeyValue[16];
+        int count;
+
+        SampleIndex() {
+            indexBytes.add(arrayFootprint(keys.length * 4) * 2);
+        }
+
+        void add(ByteKey key, KeyValue kv) {
+            if (kv.expirySlot >= 0) return;
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+                indexBytes.add((arrayFootprint(count * 8) - arrayFootprint(count * 4)) * 2);
+            }
+            keys[count] = key;
+            values[count] = kv;
+            kv.expirySlot = count++;
+        }
+
+        // Moves the last entry into the freed slot
+        void remove(KeyValue kv) {
+            int slot = kv.expirySlot;
+            if (slot < 0) return;
+            int last = --count;
+            if (slot != last) {
+                keys[slot] = keys[last];
+                values[slot] = values[last];
+                values[slot].expirySlot = slot;
+            }
+            keys[last] = null;
+            values[last] = null;
+            kv.expirySlot = -1;
+        }
+    }
+}
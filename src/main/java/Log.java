@@ -0,0 +1,154 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Leveled logging that never blocks the caller on stdout. Messages go into a bounded
+// lock-free ring (multi-producer, single-consumer, one sequence number per slot) and a
+// background thread formats and writes them. When the ring is full new messages are
+// dropped and counted rather than making a client thread wait.
+//
+// Debug is off by default. Hot paths check isDebugEnabled() before building a message,
+// so with debug off a debug line costs one volatile read.
+final class Log {
+    enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = 10_000_000L;
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static volatile int threshold = Level.INFO.ordinal();
+
+    private static final Entry[] slots = new Entry[CAPACITY];
+    // sequences[i] == position: slot free for the producer claiming `position`;
+    // position + 1: filled, ready for the consumer
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head; // consumer side, guarded by drainLock
+    private static final ReentrantLock drainLock = new ReentrantLock();
+    private static final LongAdder dropped = new LongAdder();
+
+    private static final PrintStream out = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false, StandardCharsets.UTF_8);
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) sequences.set(i, i);
+
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // Whatever is still queued when the JVM exits is written out first
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+    }
+
+    private record Entry(Level level, long timeMillis, String thread, String message, Throwable error) {}
+
+    private Log() {}
+
+    static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    static boolean isDebugEnabled() {
+        return threshold <= Level.DEBUG.ordinal();
+    }
+
+    static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    static void error(String message) {
+        log(Level.ERROR, message, null);
+    }
+
+    static void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    private static void log(Level level, String message, Throwable error) {
+        if (level.ordinal() < threshold) return;
+        Entry entry = new Entry(level, System.currentTimeMillis(), Thread.currentThread().getName(), message, error);
+
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & MASK;
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) break;
+                position = tail.get();
+            } else if (diff < 0) {
+                // The consumer hasn't freed this slot yet: the ring is full
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        int index = (int) position & MASK;
+        slots[index] = entry;
+        sequences.set(index, position + 1);
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            if (!drain()) LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    // Writes every queued message; false if there was nothing to write
+    private static boolean drain() {
+        drainLock.lock();
+        try {
+            boolean wrote = false;
+            while (true) {
+                int index = (int) head & MASK;
+                if (sequences.get(index) != head + 1) break;
+                Entry entry = slots[index];
+                slots[index] = null;
+                sequences.set(index, head + CAPACITY);
+                head++;
+                write(entry);
+                wrote = true;
+            }
+            long lost = dropped.sumThenReset();
+            if (lost > 0) {
+                out.println(TIME_FORMAT.format(Instant.now()) + " WARN  [log-writer] " + lost + " log messages dropped, ring buffer full");
+                wrote = true;
+            }
+            if (wrote) out.flush();
+            return wrote;
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    private static void write(Entry entry) {
+        out.print(TIME_FORMAT.format(Instant.ofEpochMilli(entry.timeMillis())));
+        out.print(' ');
+        out.print(String.format("%-5s", entry.level()));
+        out.print(" [");
+        out.print(entry.thread());
+        out.print("] ");
+        out.println(entry.message());
+        if (entry.error() != null) entry.error().printStackTrace(out);
+    }
+}
@@ -1,3 +1,4 @@
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -7,13 +8,10 @@ import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 
 public class Main {
     public static void main(String[] args) {
-        System.out.println("Logs from your program will appear here!");
+        Log.info("Logs from your program will appear here!");
 
         // Initialize variables
         ServerSocket serverSocket = null;
@@ -61,6 +59,120 @@ public class Main {
                     }
                     break;
                     
+                case "--server-mode":
+                	if (i + 1 < args.length) {
+                        String mode = args[i + 1].toLowerCase();
+                        if (!mode.equals("thread") && !mode.equals("virtual") && !mode.equals("nio")) {
+                            System.err.println("Invalid server mode: " + args[i + 1] + " (expected thread, virtual or nio)");
+                            return;
+                        }
+                        Config.serverMode = mode;
+                        i++;
+                    } else {
+                        System.err.println("Missing value for --server-mode");
+                        return;
+                    }
+                    break;
+
+                case "--io-threads":
+                	if (i + 1 < args.length) {
+                        try {
+                            Config.ioThreads = Integer.parseInt(args[i + 1]);
+                            i++;
+                        } catch (NumberFormatException e) {
+                            System.err.println("Invalid I/O thread count: " + args[i + 1]);
+                            return;
+                        }
+                        if (Config.ioThreads < 0) {
+                            System.err.println("Invalid I/O thread count: " + Config.ioThreads);
+                            return;
+                        }
+                    } else {
+                        System.err.println("Missing value for --io-threads");
+                        return;
+                    }
+                    break;
+
+                case "--shards":
+                	if (i + 1 < args.length) {
+                        try {
+                            Config.shards = Integer.parseInt(args[i + 1]);
+                            i++;
+                        } catch (NumberFormatException e) {
+                            System.err.println("Invalid shard count: " + args[i + 1]);
+                            return;
+                        }
+                        if (Config.shards < 0) {
+                            System.err.println("Invalid shard count: " + Config.shards);
+                            return;
+                        }
+                    } else {
+                        System.err.println("Missing value for --shards");
+                        return;
+                    }
+                    break;
+
+                case "--storage":
+                	if (i + 1 < args.length) {
+                        String storage = args[i + 1].toLowerCase();
+                        if (!storage.equals("heap") && !storage.equals("offheap")) {
+                            System.err.println("Invalid storage: " + args[i + 1] + " (expected heap or offheap)");
+                            return;
+                        }
+                        Config.storage = storage;
+                        i++;
+                    } else {
+                        System.err.println("Missing value for --storage");
+                        return;
+                    }
+                    break;
+
+                case "--loglevel":
+                	if (i + 1 < args.length) {
+                        try {
+                            Config.logLevel = Log.Level.valueOf(args[i + 1].toUpperCase());
+                            i++;
+                        } catch (IllegalArgumentException e) {
+                            System.err.println("Invalid log level: " + args[i + 1] + " (expected debug, info, warn or error)");
+                            return;
+                        }
+                    } else {
+                        System.err.println("Missing value for --loglevel");
+                        return;
+                    }
+                    break;
+
+                case "--maxmemory":
+                	if (i + 1 < args.length) {
+                        try {
+                            Config.maxmemory = Config.parseMemory(args[i + 1]);
+                            i++;
+                        } catch (NumberFormatException e) {
+                            System.err.println("Invalid maxmemory: " + args[i + 1] + " (expected bytes, e.g. 100mb)");
+                            return;
+                        }
+                    } else {
+                        System.err.println("Missing value for --maxmemory");
+                        return;
+                    }
+                    break;
+
+                case "--maxmemory-policy":
+                	if (i + 1 < args.length) {
+                        Eviction.Policy policy = Eviction.Policy.of(args[i + 1]);
+                        if (policy == null) {
+                            System.err.println("Invalid maxmemory policy: " + args[i + 1]
+                                    + " (expected noeviction, allkeys-lru, allkeys-lfu, volatile-lru or volatile-ttl)");
+                            return;
+                        }
+                        Config.maxmemoryPolicy = policy;
+                        i++;
+                    } else {
+                        System.err.println("Missing value for --maxmemory-policy");
+                        return;
+                    }
+                    break;
+
                 case "--replicaof":
                 	if (i + 1 < args.length) {
                         Config.isReplica = true;
@@ -90,10 +202,34 @@ public class Main {
         }
 
         // Show parsed config (for debug/logging purposes)
-        System.out.println("Configured dir: " + Config.dir);
-        System.out.println("Configured dbfilename: " + Config.dbFilename);
-        System.out.println("Configured port: " + Config.port);
-        System.out.println("Replica mode: " + Config.isReplica);
+        Log.setLevel(Config.logLevel);
+        Log.info("Configured dir: " + Config.dir);
+        Log.info("Configured dbfilename: " + Config.dbFilename);
+        Log.info("Configured port: " + Config.port);
+        Log.info("Replica mode: " + Config.isReplica);
+        Log.info("Server mode: " + Config.serverMode);
+        Log.info("I/O threads: " + Config.ioThreads);
+        Log.info("Shards: " + Config.shards);
+        Log.info("Storage: " + Config.storage);
+        Log.info("Log level: " + Config.logLevel);
+        Log.info("Maxmemory: " + Config.maxmemory + " (" + Config.maxmemoryPolicy.configName + ")");
+
+        if ((Config.ioThreads > 0 || Config.shards > 0) && !Config.serverMode.equals("nio")) {
+            System.err.println("--io-threads and --shards require --server-mode nio");
+            return;
+        }
+
+        // Must exist before the RDB load and the replication link, which write through it
+        CommandExecutor commandExecutor = null;
+        if (Config.shards > 0) {
+            commandExecutor = new ShardedCommandExecutor(Config.shards);
+        } else if (Config.ioThreads > 0) {
+            commandExecutor = new SerialCommandExecutor();
+        }
+        ClientHandler.commandExecutor = commandExecutor;
+        if (Config.storage.equals("offheap")) OffHeapStore.enable();
+        // Shards run their own expire cycle
+        if (Config.shards == 0) ClientHandler.startActiveExpire();
         
         
         
@@ -101,25 +237,25 @@ public class Main {
             String filePath = Config.dir + "/" + Config.dbFilename;
             File rdbFile = new File(filePath);
             if (rdbFile.exists() && rdbFile.isFile()) {
-                try (FileInputStream fis = new FileInputStream(rdbFile)) {
+                // Buffered: the parser reads the file a byte or a few bytes at a time
+                try (InputStream fis = new BufferedInputStream(new FileInputStream(rdbFile), 64 * 1024)) {
                     RDBParser.loadFromStream(fis);
-                    System.out.println("Loaded RDB file: " + filePath);
+                    Log.info("Loaded RDB file: " + filePath);
                 } catch (IOException e) {
-                    System.out.println("Failed to read RDB: " + e.getMessage());
-                    e.printStackTrace();
+                    Log.error("Failed to read RDB: " + e.getMessage(), e);
                 }
             } else {
-                System.out.println("No RDB file found, starting with empty DB");
+                Log.info("No RDB file found, starting with empty DB");
             }
         } else {
-            System.out.println("No RDB config provided, starting with empty DB");
+            Log.info("No RDB config provided, starting with empty DB");
         }
         
         
      // If replica mode, connect to master and send PING
         if (Config.isReplica) {
             try {
-                System.out.println("Connecting to master at " + masterHost + ":" + masterPort);
+                Log.info("Connecting to master at " + masterHost + ":" + masterPort);
                 Socket masterSocket = new Socket(masterHost, masterPort);
                 OutputStream out = masterSocket.getOutputStream();
                 InputStream in = masterSocket.getInputStream();
@@ -129,13 +265,13 @@ public class Main {
                 out.write(pingCmd.getBytes("UTF-8"));
                 out.flush();
 
-                System.out.println("Sent PING to master");
+                Log.info("Sent PING to master");
 
              // Read PING response (+PONG\r\n expected)
                 String pongResp = readLine(in);
-                System.out.println("Received from master: " + pongResp);
+                Log.info("Received from master: " + pongResp);
                 if (!pongResp.equals("+PONG")) {
-                    System.err.println("Unexpected response to PING: " + pongResp);
+                    Log.error("Unexpected response to PING: " + pongResp);
                     masterSocket.close();
                     return;
                 }
@@ -147,13 +283,13 @@ public class Main {
                     portStr.length(), portStr);
                 out.write(replconfListeningPort.getBytes("UTF-8"));
                 out.flush();
-                System.out.println("Sent REPLCONF listening-port " + portStr);
+                Log.info("Sent REPLCONF listening-port " + portStr);
 
                 // Read response to first REPLCONF (+OK\r\n expected)
                 String replconfResp1 = readLine(in);
-                System.out.println("Received from master: " + replconfResp1);
+                Log.info("Received from master: " + replconfResp1);
                 if (!replconfResp1.equals("+OK")) {
-                    System.err.println("Unexpected response to REPLCONF listening-port: " + replconfResp1);
+                    Log.error("Unexpected response to REPLCONF listening-port: " + replconfResp1);
                     masterSocket.close();
                     return;
                 }
@@ -162,13 +298,13 @@ public class Main {
                 String replconfCapa = "*3\r\n$8\r\nREPLCONF\r\n$4\r\ncapa\r\n$6\r\npsync2\r\n";
                 out.write(replconfCapa.getBytes("UTF-8"));
                 out.flush();
-                System.out.println("Sent REPLCONF capa psync2");
+                Log.info("Sent REPLCONF capa psync2");
 
                 // Read response to second REPLCONF (+OK\r\n expected)
                 String replconfResp2 = readLine(in);
-                System.out.println("Received from master: " + replconfResp2);
+                Log.info("Received from master: " + replconfResp2);
                 if (!replconfResp2.equals("+OK")) {
-                    System.err.println("Unexpected response to REPLCONF capa: " + replconfResp2);
+                    Log.error("Unexpected response to REPLCONF capa: " + replconfResp2);
                     masterSocket.close();
                     return;
                 }
@@ -177,9 +313,18 @@ public class Main {
                 String psyncCmd = "*3\r\n$5\r\nPSYNC\r\n$1\r\n?\r\n$2\r\n-1\r\n";
                 out.write(psyncCmd.getBytes("UTF-8"));
                 out.flush();
-                System.out.println("Sent PSYNC ? -1");
+                Log.info("Sent PSYNC ? -1");
                 String psyncResp = readLine(in);
-                System.out.println("Received: " + psyncResp);
+                Log.info("Received: " + psyncResp);
+
+                // The snapshot follows as "$<len>\r\n" and <len> raw bytes with no trailing
+                // CRLF, so it can't go through the command parser; skip it here
+                String rdbHeader = readLine(in);
+                if (rdbHeader.startsWith("$")) {
+                    long rdbLength = Long.parseLong(rdbHeader.substring(1));
+                    in.readNBytes((int) rdbLength);
+                    Log.info("Skipped RDB snapshot of " + rdbLength + " bytes");
+                }
                 
              // Start a new thread to read propagated commands from master
                 new Thread(() -> {
@@ -202,50 +347,61 @@ public class Main {
                             } else if (processed == 0) {
                                 // Not enough data to parse a full command, wait for more
                             } else {
-                                System.err.println("Invalid processed length: " + processed + " (data length: " + data.length + ")");
+                                Log.error("Invalid processed length: " + processed + " (data length: " + data.length + ")");
                                 baos.reset(); // Avoid repeated crashes
                             }
 
                         }
                     } catch (IOException e) {
-                        System.err.println("Failed to read propagated commands: " + e.getMessage());
-                        e.printStackTrace();
+                        Log.error("Failed to read propagated commands: " + e.getMessage(), e);
                     }
                 }).start();  
 
             } catch (IOException e) {
-                System.err.println("Failed to connect/send PING to master: " + e.getMessage());
-                e.printStackTrace();
+                Log.error("Failed to connect/send PING to master: " + e.getMessage(), e);
                 return;
             }
         }
         
+        if (Config.serverMode.equals("nio")) {
+            try {
+                new EventLoopServer(Config.port, Config.ioThreads, commandExecutor).run();
+            } catch (IOException e) {
+                Log.error("IOException: " + e.getMessage(), e);
+            }
+            return;
+        }
+
         // Start server on specified port
         try {
             // Set up the server socket and wait for client connections
         	serverSocket = new ServerSocket();
         	serverSocket.setReuseAddress(true);
         	serverSocket.bind(new InetSocketAddress(Config.port));
-            System.out.println("Server is listening on port " + port);
+            Log.info("Server is listening on port " + port);
+
+            Thread.Builder threadBuilder = Config.serverMode.equals("virtual")
+                    ? Thread.ofVirtual().name("client-", 0)
+                    : Thread.ofPlatform().name("client-", 0);
 
             // Infinite loop to accept multiple clients concurrently
             while (true) {
                 // Wait for a client connection
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("Client connected.");
+                if (Log.isDebugEnabled()) Log.debug("Client connected: " + clientSocket.getRemoteSocketAddress());
 
                 // Spawn a new thread to handle the client
-                new ClientHandler(clientSocket).start();
+                threadBuilder.start(new ClientHandler(clientSocket));
             }
         } catch (IOException e) {
-            System.out.println("IOException: " + e.getMessage());
+            Log.error("IOException: " + e.getMessage(), e);
         } finally {
             try {
                 if (serverSocket != null) {
                     serverSocket.close();
                 }
             } catch (IOException e) {
-                System.out.println("IOException during cleanup: " + e.getMessage());
+                Log.warn("IOException during cleanup: " + e.getMessage());
             }
         }
     }
@@ -316,16 +472,10 @@ public class Main {
     
     // Method to process a command
     private static void processCommand(RespCommand command) {
-        String[] elements = command.getArray();
-        if (elements[0].equalsIgnoreCase("SET")) {
-            List<String> args = new ArrayList<>(Arrays.asList(elements));
-            try {
-                ClientHandler.handleSet(args, null); // null OutputStream => no reply
-            } catch (IOException e) {
-                System.err.println("Error handling SET command: " + e.getMessage());
-            }
+        RespCommand[] elements = command.getElements();
+        if (elements != null && elements.length > 0) {
+            ClientHandler.applyReplicated(RespRequest.of(command));
         }
-        // Add more command types as needed
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,193 @@
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Value storage outside the Java heap (--storage offheap). Values live in 1 MB slabs
+// carved into power-of-two size classes from 16 bytes to 512 KB, memcached style;
+// each slab serves a single class and freed chunks go on that class's free list.
+// Larger values get a segment of their own. The heap only keeps a long handle per
+// value: slab index in the high 32 bits, offset in the low 32.
+//
+// Chunks are reused as soon as they are freed, while a GET on another thread may
+// still be copying out of them, so readers validate after copying (see KeyValue).
+class OffHeapStore {
+    private static final int MIN_CLASS_SHIFT = 4;   // 16 B
+    private static final int MAX_CLASS_SHIFT = 19;  // 512 KB
+    private static final int SLAB_SIZE = 1 << 20;
+
+    private static volatile boolean enabled;
+
+    // Indexed by the high half of a handle; grown copy-on-write under slabLock
+    private static volatile MemorySegment[] slabs = new MemorySegment[64];
+    private static int slabCount;
+    private static final ReentrantLock slabLock = new ReentrantLock();
+    // Slots of freed dedicated segments, handed out again before the table grows
+    private static long[] freeSlots = new long[16];
+    private static int freeSlotCount;
+
+    private static final SizeClass[] classes = new SizeClass[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+
+    static {
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(1 << (i + MIN_CLASS_SHIFT));
+        }
+    }
+
+    // Bytes of live values, and bytes reserved from the OS for slabs and large values
+    private static final AtomicLong usedBytes = new AtomicLong();
+    private static final AtomicLong reservedBytes = new AtomicLong();
+
+    static void enable() {
+        enabled = true;
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    static long allocate(byte[] value) {
+        int len = value.length;
+        long handle = len > (1 << MAX_CLASS_SHIFT) ? allocateDedicated(len) : classFor(len).allocate();
+        MemorySegment.copy(value, 0, segment(handle), ValueLayout.JAVA_BYTE, offset(handle), len);
+        usedBytes.addAndGet(len);
+        return handle;
+    }
+
+    static void free(long handle, int len) {
+        usedBytes.addAndGet(-len);
+        if (len > (1 << MAX_CLASS_SHIFT)) {
+            freeDedicated(handle, len);
+        } else {
+            classFor(len).free(handle);
+        }
+    }
+
+    // Null once a dedicated segment has been freed; readers treat that as a stale handle
+    static MemorySegment segment(long handle) {
+        MemorySegment[] table = slabs;
+        int index = (int) (handle >>> 32);
+        return index < table.length ? table[index] : null;
+    }
+
+    static long offset(long handle) {
+        return handle & 0xFFFFFFFFL;
+    }
+
+    static byte[] read(long handle, int len) {
+        byte[] copy = new byte[len];
+        MemorySegment segment = segment(handle);
+        if (segment != null && offset(handle) + len <= segment.byteSize()) {
+            MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset(handle), copy, 0, len);
+        }
+        return copy;
+    }
+
+    // Off-heap bytes a value of this length actually takes
+    static long footprint(int len) {
+        return len > (1 << MAX_CLASS_SHIFT) ? len : classFor(len).chunkSize;
+    }
+
+    static long usedBytes() {
+        return usedBytes.get();
+    }
+
+    static long reservedBytes() {
+        return reservedBytes.get();
+    }
+
+    // Reserved over used: rounding up to the size class plus chunks sitting on free lists
+    static double fragmentationRatio() {
+        long used = usedBytes.get();
+        return used == 0 ? 0 : (double) reservedBytes.get() / used;
+    }
+
+    private static SizeClass classFor(int len) {
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(len, 1) - 1));
+        return classes[shift - MIN_CLASS_SHIFT];
+    }
+
+    // Off-heap memory is never handed back: slabs are kept for reuse
+    private static long addSlab(MemorySegment segment) {
+        slabLock.lock();
+        try {
+            int index;
+            if (freeSlotCount > 0) {
+                index = (int) freeSlots[--freeSlotCount];
+            } else {
+                index = slabCount++;
+            }
+            MemorySegment[] table = slabs;
+            if (index >= table.length) table = Arrays.copyOf(table, table.length * 2);
+            table[index] = segment;
+            slabs = table;
+            reservedBytes.addAndGet(segment.byteSize());
+            return index;
+        } finally {
+            slabLock.unlock();
+        }
+    }
+
+    // Large values: one automatically managed segment each, released by the GC once
+    // freed and no longer referenced by an in-flight reader
+    private static long allocateDedicated(int len) {
+        return addSlab(Arena.ofAuto().allocate(len)) << 32;
+    }
+
+    private static void freeDedicated(long handle, int len) {
+        slabLock.lock();
+        try {
+            int index = (int) (handle >>> 32);
+            MemorySegment[] table = slabs;
+            table[index] = null;
+            slabs = table;
+            if (freeSlotCount == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+            freeSlots[freeSlotCount++] = index;
+            reservedBytes.addAndGet(-len);
+        } finally {
+            slabLock.unlock();
+        }
+    }
+
+    private static class SizeClass {
+        private final int chunkSize;
+        private final ReentrantLock lock = new ReentrantLock();
+        private long[] freeList = new long[64];
+        private int freeCount;
+        // Bump allocation inside the newest slab of this class
+        private long currentSlab = -1;
+        private int nextOffset = SLAB_SIZE;
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        long allocate() {
+            lock.lock();
+            try {
+                if (freeCount > 0) return freeList[--freeCount];
+                if (nextOffset + chunkSize > SLAB_SIZE) {
+                    currentSlab = addSlab(Arena.global().allocate(SLAB_SIZE, 8));
+                    nextOffset = 0;
+                }
+                long handle = (currentSlab << 32) | nextOffset;
+                nextOffset += chunkSize;
+                return handle;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void free(long handle) {
+            lock.lock();
+            try {
+                if (freeCount == freeList.length) freeList = Arrays.copyOf(freeList, freeCount * 2);
+                freeList[freeCount++] = handle;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,414 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+// SUBSCRIBE, PSUBSCRIBE, PUBLISH and friends.
+//
+// PUBLISH encodes a message once per channel, and once per matching pattern for
+// pmessage, and hands that same immutable array to every subscriber. A subscriber
+// only queues it for its connection, which writes it when it can: publishing never
+// waits on a client. A client that lets too much pile up is disconnected instead
+// (see Config.pubsubHardLimit), like Redis' client-output-buffer-limit pubsub.
+//
+// Patterns are indexed by the literal prefix every channel they match starts with,
+// so PUBLISH looks up the channel's prefixes of those lengths and only tries the
+// patterns found there, plus the ones starting with a wildcard, rather than every
+// pattern anyone subscribed to.
+//
+// A RESP3 client gets messages and confirmations as push frames, told apart from
+// replies by their type, and so may go on running any command while subscribed. The
+// push form is the same message with another first byte, made at most once per
+// message too.
+//
+// Subscribing and unsubscribing take one lock; PUBLISH, from any thread, takes none.
+final class PubSub {
+    private static final byte[] MESSAGE = bytes("message");
+    private static final byte[] PMESSAGE = bytes("pmessage");
+    private static final byte[] SUBSCRIBE = bytes("subscribe");
+    private static final byte[] UNSUBSCRIBE = bytes("unsubscribe");
+    private static final byte[] PSUBSCRIBE = bytes("psubscribe");
+    private static final byte[] PUNSUBSCRIBE = bytes("punsubscribe");
+    private static final byte[] PONG = bytes("pong");
+
+    // The connection side, also what CLIENT TRACKING sends invalidations through.
+    // Subscriptions are changed on the connection's own thread; messages come from
+    // whichever thread runs PUBLISH or changes a tracked key.
+    abstract static class Subscriber {
+        // The connection's client id, by which CLIENT TRACKING REDIRECT names it
+        final long id;
+        // Set while the connection has CLIENT TRACKING on
+        volatile Tracking.Client tracking;
+        private final Set<ByteKey> channels = new LinkedHashSet<>();
+        private final Set<ByteKey> patterns = new LinkedHashSet<>();
+        // Since when the client has been over the soft limit, 0 while it isn't
+        private volatile long overSoftLimitSince;
+        private final AtomicBoolean dropped = new AtomicBoolean();
+        // The connection's protocol as of its last HELLO, SUBSCRIBE or CLIENT
+        // TRACKING; HELLO keeps it from changing while subscribed
+        private volatile boolean resp3;
+
+        Subscriber(long id) {
+            this.id = id;
+            byId.put(id, this);
+        }
+
+        // Queues an encoded message for the client without waiting for it to be
+        // written, and returns how many bytes are now waiting to go to it
+        abstract long queue(byte[] message);
+
+        // Closes the connection, from any thread
+        abstract void disconnect();
+
+        boolean isSubscribed() {
+            return !channels.isEmpty() || !patterns.isEmpty();
+        }
+
+        boolean isResp3() {
+            return resp3;
+        }
+
+        void setResp3(boolean resp3) {
+            this.resp3 = resp3;
+        }
+
+        // Subscribed in RESP2, where only subscribing, unsubscribing and PING are allowed
+        boolean isRestricted() {
+            return !resp3 && isSubscribed();
+        }
+
+        private int count() {
+            return channels.size() + patterns.size();
+        }
+
+        void send(byte[] message) {
+            if (dropped.get()) return;
+            long queued = queue(message);
+            if (withinLimits(queued) || !dropped.compareAndSet(false, true)) return;
+            Log.warn("Disconnecting pub/sub client with " + queued + " bytes of output waiting");
+            disconnect();
+        }
+
+        private boolean withinLimits(long queued) {
+            long hard = Config.pubsubHardLimit;
+            if (hard > 0 && queued > hard) return false;
+            long soft = Config.pubsubSoftLimit;
+            if (soft <= 0 || queued <= soft) {
+                if (overSoftLimitSince != 0) overSoftLimitSince = 0;
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            long since = overSoftLimitSince;
+            if (since == 0) {
+                overSoftLimitSince = now;
+                return true;
+            }
+            return now - since <= Config.pubsubSoftSeconds * 1000L;
+        }
+    }
+
+    private static final class Pattern {
+        final byte[] pattern;
+        final Glob glob;
+        final ByteKey prefix;
+        final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+        Pattern(byte[] pattern) {
+            this.pattern = pattern;
+            this.glob = Glob.compile(pattern);
+            this.prefix = new ByteKey(glob.literalPrefix());
+        }
+    }
+
+    private static final Map<Long, Subscriber> byId = new ConcurrentHashMap<>();
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Map<ByteKey, Set<Subscriber>> channels = new ConcurrentHashMap<>();
+    private static final Map<ByteKey, Pattern> patterns = new ConcurrentHashMap<>();
+    // Patterns by literal prefix, each group an array replaced whole under the lock
+    private static final Map<ByteKey, Pattern[]> byPrefix = new ConcurrentHashMap<>();
+    // The distinct prefix lengths in byPrefix, ascending, and how many patterns have
+    // each; the counts are only used under the lock
+    private static volatile int[] prefixLengths = new int[0];
+    private static final TreeMap<Integer, Integer> prefixLengthCounts = new TreeMap<>();
+
+    private PubSub() {}
+
+    // --- on the connection's thread ---
+
+    // Whether the connection answers this command itself: subscribing and
+    // unsubscribing, and anything at all while subscribed in RESP2, when only those
+    // and PING are allowed
+    static boolean handlesLocally(String command, Subscriber subscriber) {
+        return isSubscription(command) || (subscriber != null && subscriber.isRestricted());
+    }
+
+    static boolean isSubscription(String command) {
+        switch (command) {
+            case "SUBSCRIBE":
+            case "UNSUBSCRIBE":
+            case "PSUBSCRIBE":
+            case "PUNSUBSCRIBE":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // For a command handlesLocally() took
+    static void handleLocally(Subscriber subscriber, RespRequest args, RespWriter out) throws IOException {
+        String command = args.commandName();
+        if (isSubscription(command)) subscriber.resp3 = out.isResp3();
+        switch (command) {
+            case "SUBSCRIBE":
+            case "PSUBSCRIBE":
+                if (args.size() < 2) {
+                    out.writeError("ERR wrong number of arguments for '" + command.toLowerCase() + "' command");
+                    return;
+                }
+                for (int i = 1; i < args.size(); i++) {
+                    ByteKey name = args.getKey(i);
+                    if (command.equals("SUBSCRIBE")) {
+                        subscribe(subscriber, name);
+                    } else {
+                        psubscribe(subscriber, name);
+                    }
+                    writeConfirmation(out, command.equals("SUBSCRIBE") ? SUBSCRIBE : PSUBSCRIBE, name.bytes(), subscriber.count());
+                }
+                return;
+            case "UNSUBSCRIBE":
+            case "PUNSUBSCRIBE":
+                boolean channel = command.equals("UNSUBSCRIBE");
+                byte[] kind = channel ? UNSUBSCRIBE : PUNSUBSCRIBE;
+                List<ByteKey> names = new ArrayList<>();
+                if (args.size() > 1) {
+                    for (int i = 1; i < args.size(); i++) names.add(args.getKey(i));
+                } else {
+                    names.addAll(channel ? subscriber.channels : subscriber.patterns);
+                    if (names.isEmpty()) writeConfirmation(out, kind, null, subscriber.count());
+                }
+                for (ByteKey name : names) {
+                    if (channel) {
+                        unsubscribe(subscriber, name);
+                    } else {
+                        punsubscribe(subscriber, name);
+                    }
+                    writeConfirmation(out, kind, name.bytes(), subscriber.count());
+                }
+                return;
+            case "PING":
+                if (args.size() > 2) {
+                    out.writeError("ERR wrong number of arguments for 'ping' command");
+                    return;
+                }
+                out.writeArrayHeader(2);
+                out.writeBulkString(PONG);
+                if (args.size() == 2) {
+                    out.writeBulkString(args.array(), args.offset(1), args.length(1));
+                } else {
+                    out.writeBulkString(new byte[0]);
+                }
+                return;
+            default:
+                out.writeError("ERR Can't execute '" + RespWriter.quoted(command.toLowerCase())
+                        + "': only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING are allowed in this context");
+        }
+    }
+
+    // When the connection closes: drops its subscriptions and its tracking
+    static void closed(Subscriber subscriber) {
+        if (subscriber == null) return;
+        for (ByteKey name : new ArrayList<>(subscriber.channels)) unsubscribe(subscriber, name);
+        for (ByteKey name : new ArrayList<>(subscriber.patterns)) punsubscribe(subscriber, name);
+        Tracking.off(subscriber);
+        byId.remove(subscriber.id);
+    }
+
+    private static void subscribe(Subscriber subscriber, ByteKey channel) {
+        if (!subscriber.channels.add(channel)) return;
+        lock.lock();
+        try {
+            channels.computeIfAbsent(channel, c -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void unsubscribe(Subscriber subscriber, ByteKey channel) {
+        if (!subscriber.channels.remove(channel)) return;
+        lock.lock();
+        try {
+            Set<Subscriber> subscribers = channels.get(channel);
+            subscribers.remove(subscriber);
+            if (subscribers.isEmpty()) channels.remove(channel);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void psubscribe(Subscriber subscriber, ByteKey name) {
+        if (!subscriber.patterns.add(name)) return;
+        lock.lock();
+        try {
+            Pattern pattern = patterns.get(name);
+            if (pattern == null) {
+                pattern = new Pattern(name.bytes());
+                patterns.put(name, pattern);
+                Pattern[] group = byPrefix.get(pattern.prefix);
+                if (group == null) {
+                    byPrefix.put(pattern.prefix, new Pattern[] {pattern});
+                } else {
+                    Pattern[] grown = Arrays.copyOf(group, group.length + 1);
+                    grown[group.length] = pattern;
+                    byPrefix.put(pattern.prefix, grown);
+                }
+                prefixLengthCounts.merge(pattern.prefix.length(), 1, Integer::sum);
+                updatePrefixLengths();
+            }
+            pattern.subscribers.add(subscriber);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void punsubscribe(Subscriber subscriber, ByteKey name) {
+        if (!subscriber.patterns.remove(name)) return;
+        lock.lock();
+        try {
+            Pattern pattern = patterns.get(name);
+            pattern.subscribers.remove(subscriber);
+            if (!pattern.subscribers.isEmpty()) return;
+
+            patterns.remove(name);
+            Pattern[] group = byPrefix.get(pattern.prefix);
+            if (group.length == 1) {
+                byPrefix.remove(pattern.prefix);
+            } else {
+                Pattern[] shrunk = new Pattern[group.length - 1];
+                int n = 0;
+                for (Pattern p : group) {
+                    if (p != pattern) shrunk[n++] = p;
+                }
+                byPrefix.put(pattern.prefix, shrunk);
+            }
+            if (prefixLengthCounts.merge(pattern.prefix.length(), -1, Integer::sum) == 0) {
+                prefixLengthCounts.remove(pattern.prefix.length());
+            }
+            updatePrefixLengths();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void updatePrefixLengths() {
+        int[] lengths = new int[prefixLengthCounts.size()];
+        int i = 0;
+        for (int length : prefixLengthCounts.keySet()) lengths[i++] = length;
+        prefixLengths = lengths;
+    }
+
+    private static void writeConfirmation(RespWriter out, byte[] kind, byte[] name, int count) throws IOException {
+        out.writePushHeader(3);
+        out.writeBulkString(kind);
+        if (name == null) {
+            out.writeNullBulk();
+        } else {
+            out.writeBulkString(name);
+        }
+        out.writeInteger(count);
+    }
+
+    // --- any thread ---
+
+    // The connection with this client id, if it ever subscribed or turned tracking on
+    static Subscriber byId(long id) {
+        return byId.get(id);
+    }
+
+    // Delivers the message to the channel's subscribers and to those of every pattern
+    // matching it, and returns to how many clients
+    static int publish(byte[] channel, byte[] message) {
+        int receivers = 0;
+        ByteKey key = new ByteKey(channel);
+        Set<Subscriber> subscribers = channels.get(key);
+        if (subscribers != null && !subscribers.isEmpty()) {
+            receivers += send(subscribers, encode(MESSAGE, null, channel, message));
+        }
+
+        for (int length : prefixLengths) {
+            if (length > channel.length) break;
+            Pattern[] group = byPrefix.get(length == channel.length ? key : new ByteKey(Arrays.copyOf(channel, length)));
+            if (group == null) continue;
+            for (Pattern pattern : group) {
+                if (pattern.subscribers.isEmpty() || !pattern.glob.matches(channel)) continue;
+                receivers += send(pattern.subscribers, encode(PMESSAGE, pattern.pattern, channel, message));
+            }
+        }
+        return receivers;
+    }
+
+    private static int send(Set<Subscriber> subscribers, byte[] encoded) {
+        byte[] push = null;
+        int sent = 0;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.resp3) {
+                if (push == null) {
+                    push = encoded.clone();
+                    push[0] = '>';
+                }
+                subscriber.send(push);
+            } else {
+                subscriber.send(encoded);
+            }
+            sent++;
+        }
+        return sent;
+    }
+
+    // PUBSUB CHANNELS: the channels with subscribers, those matching `pattern` if not null
+    static List<byte[]> activeChannels(Glob pattern) {
+        List<byte[]> names = new ArrayList<>();
+        for (Map.Entry<ByteKey, Set<Subscriber>> entry : channels.entrySet()) {
+            byte[] name = entry.getKey().bytes();
+            if (!entry.getValue().isEmpty() && (pattern == null || pattern.matches(name))) names.add(name);
+        }
+        return names;
+    }
+
+    // PUBSUB NUMSUB
+    static int subscriberCount(ByteKey channel) {
+        Set<Subscriber> subscribers = channels.get(channel);
+        return subscribers == null ? 0 : subscribers.size();
+    }
+
+    // PUBSUB NUMPAT: patterns anyone is subscribed to, each counted once
+    static int patternCount() {
+        return patterns.size();
+    }
+
+    // As RESP2 sends it, an array
+    private static byte[] encode(byte[] kind, byte[] pattern, byte[] channel, byte[] message) {
+        RespWriter encoded = new RespWriter();
+        try {
+            encoded.writeArrayHeader(pattern == null ? 3 : 4);
+            encoded.writeBulkString(kind);
+            if (pattern != null) encoded.writeBulkString(pattern);
+            encoded.writeBulkString(channel);
+            encoded.writeBulkString(message);
+        } catch (IOException e) {
+            throw new IllegalStateException("Encoding into a memory buffer cannot fail", e);
+        }
+        return encoded.toByteArray();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+// The list value, Redis quicklist style: a doubly linked list of nodes, each packing
+// many elements into one byte array instead of one object per element. An element is
+// framed as [length varint][bytes][length varint, stored backwards], so a node can be
+// walked from either end and popping from both ends costs O(1) without ever moving
+// the rest of the node.
+//
+// A node's array grows by doubling up to NODE_BYTES and keeps its free space on the
+// side it is being pushed from, so a queue fed by LPUSH and drained by RPOP touches
+// at most two arrays. An element bigger than NODE_BYTES gets a node of its own.
+//
+// Not thread safe: lists are only changed under the keyspace's per-key lock.
+final class QuickList {
+    private static final int NODE_BYTES = 8 * 1024;
+    private static final int INITIAL_NODE_BYTES = 64;
+    // Object sizes, as in Keyspace
+    private static final int LIST_BYTES = 40;
+    private static final int NODE_OBJECT_BYTES = 40;
+
+    private Node head;
+    private Node tail;
+    private long size;
+    private long dataBytes;
+    private long footprint = LIST_BYTES;
+    // Set by nodeFor: the list index of the first element in the node it returned
+    private long firstIndex;
+
+    private static final class Node {
+        Node prev;
+        Node next;
+        byte[] buf;
+        // Elements live in buf[start, end)
+        int start;
+        int end;
+        int count;
+        int dataBytes;
+
+        Node(int capacity, boolean front) {
+            buf = new byte[capacity];
+            start = end = front ? capacity : 0;
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Element bytes alone, without framing
+    long dataBytes() {
+        return dataBytes;
+    }
+
+    // Heap taken by the list and its nodes
+    long footprint() {
+        return footprint;
+    }
+
+    void pushFirst(byte[] src, int off, int len) {
+        int need = framedLength(len);
+        Node node = head;
+        if (node == null || !makeRoomAtFront(node, need)) {
+            node = newNode(need, true);
+            node.next = head;
+            if (head != null) head.prev = node;
+            head = node;
+            if (tail == null) tail = node;
+        }
+        node.start -= need;
+        writeFramed(node.buf, node.start, src, off, len);
+        added(node, len);
+    }
+
+    void pushLast(byte[] src, int off, int len) {
+        int need = framedLength(len);
+        Node node = tail;
+        if (node == null || !makeRoomAtBack(node, need)) {
+            node = newNode(need, false);
+            node.prev = tail;
+            if (tail != null) tail.next = node;
+            tail = node;
+            if (head == null) head = node;
+        }
+        writeFramed(node.buf, node.end, src, off, len);
+        node.end += need;
+        added(node, len);
+    }
+
+    void pushLast(byte[] element) {
+        pushLast(element, 0, element.length);
+    }
+
+    // Null when empty
+    byte[] popFirst() {
+        Node node = head;
+        if (node == null) return null;
+        int len = Varint.read(node.buf, node.start);
+        int data = node.start + Varint.length(len);
+        byte[] element = Arrays.copyOfRange(node.buf, data, data + len);
+        node.start = data + len + Varint.length(len);
+        removed(node, len);
+        return element;
+    }
+
+    // Null when empty
+    byte[] popLast() {
+        Node node = tail;
+        if (node == null) return null;
+        int len = Varint.readBackward(node.buf, node.end - 1);
+        int data = node.end - Varint.length(len) - len;
+        byte[] element = Arrays.copyOfRange(node.buf, data, data + len);
+        node.end = data - Varint.length(len);
+        removed(node, len);
+        return element;
+    }
+
+    // 0 <= index < size
+    byte[] get(long index) {
+        Node node = nodeFor(index);
+        int pos = seek(node, index - firstIndex);
+        int len = Varint.read(node.buf, pos);
+        int data = pos + Varint.length(len);
+        return Arrays.copyOfRange(node.buf, data, data + len);
+    }
+
+    // Writes `count` elements from `from` on as bulk strings, straight out of the nodes
+    void writeRange(long from, long count, RespWriter out) throws IOException {
+        if (count <= 0) return;
+        Node node = nodeFor(from);
+        int pos = seek(node, from - firstIndex);
+        for (long i = 0; i < count; i++) {
+            if (pos == node.end) {
+                node = node.next;
+                pos = node.start;
+            }
+            int len = Varint.read(node.buf, pos);
+            int data = pos + Varint.length(len);
+            out.writeBulkString(node.buf, data, len);
+            pos = data + len + Varint.length(len);
+        }
+    }
+
+    // Drops the first n elements; whole nodes go without being walked
+    void removeFirst(long n) {
+        while (n > 0 && head != null) {
+            Node node = head;
+            if (node.count <= n) {
+                n -= node.count;
+                dropNode(node);
+                continue;
+            }
+            for (; n > 0; n--) {
+                int len = Varint.read(node.buf, node.start);
+                node.start += framedLength(len);
+                removed(node, len);
+            }
+        }
+    }
+
+    // Drops the last n elements
+    void removeLast(long n) {
+        while (n > 0 && tail != null) {
+            Node node = tail;
+            if (node.count <= n) {
+                n -= node.count;
+                dropNode(node);
+                continue;
+            }
+            for (; n > 0; n--) {
+                int len = Varint.readBackward(node.buf, node.end - 1);
+                node.end -= framedLength(len);
+                removed(node, len);
+            }
+        }
+    }
+
+    // The node holding element `index`, walking from whichever end is closer
+    private Node nodeFor(long index) {
+        Node node;
+        long first;
+        if (index < size / 2) {
+            node = head;
+            first = 0;
+            while (first + node.count <= index) {
+                first += node.count;
+                node = node.next;
+            }
+        } else {
+            node = tail;
+            first = size - node.count;
+            while (first > index) {
+                node = node.prev;
+                first -= node.count;
+            }
+        }
+        firstIndex = first;
+        return node;
+    }
+
+    // Byte position of the local'th element of a node
+    private static int seek(Node node, long local) {
+        int pos = node.start;
+        if (local <= node.count / 2) {
+            for (long i = 0; i < local; i++) pos += framedLength(Varint.read(node.buf, pos));
+            return pos;
+        }
+        pos = node.end;
+        for (long i = node.count; i > local; i--) pos -= framedLength(Varint.readBackward(node.buf, pos - 1));
+        return pos;
+    }
+
+    private Node newNode(int need, boolean front) {
+        // A list that already filled a node will likely fill the next one too
+        int capacity = head == null ? Math.max(INITIAL_NODE_BYTES, need) : Math.max(NODE_BYTES, need);
+        footprint += NODE_OBJECT_BYTES + Keyspace.arrayFootprint(capacity);
+        return new Node(capacity, front);
+    }
+
+    private boolean makeRoomAtFront(Node node, int need) {
+        if (node.start >= need) return true;
+        int used = node.end - node.start;
+        if (used + need > NODE_BYTES) return false;
+        int capacity = node.buf.length;
+        if (used + need > capacity) capacity = Math.min(NODE_BYTES, Math.max(capacity * 2, used + need));
+        relayout(node, capacity, capacity - used);
+        return true;
+    }
+
+    private boolean makeRoomAtBack(Node node, int need) {
+        if (node.buf.length - node.end >= need) return true;
+        int used = node.end - node.start;
+        if (used + need > NODE_BYTES) return false;
+        int capacity = node.buf.length;
+        if (used + need > capacity) capacity = Math.min(NODE_BYTES, Math.max(capacity * 2, used + need));
+        relayout(node, capacity, 0);
+        return true;
+    }
+
+    // Moves a node's elements to `start` in an array of `capacity` bytes
+    private void relayout(Node node, int capacity, int start) {
+        int used = node.end - node.start;
+        byte[] buf = node.buf;
+        if (capacity != buf.length) {
+            buf = new byte[capacity];
+            footprint += Keyspace.arrayFootprint(capacity) - Keyspace.arrayFootprint(node.buf.length);
+        }
+        System.arraycopy(node.buf, node.start, buf, start, used);
+        node.buf = buf;
+        node.start = start;
+        node.end = start + used;
+    }
+
+    private void added(Node node, int len) {
+        node.count++;
+        node.dataBytes += len;
+        size++;
+        dataBytes += len;
+    }
+
+    private void removed(Node node, int len) {
+        node.count--;
+        node.dataBytes -= len;
+        size--;
+        dataBytes -= len;
+        if (node.count == 0) unlink(node);
+    }
+
+    private void dropNode(Node node) {
+        size -= node.count;
+        dataBytes -= node.dataBytes;
+        unlink(node);
+    }
+
+    private void unlink(Node node) {
+        if (node.prev != null) node.prev.next = node.next; else head = node.next;
+        if (node.next != null) node.next.prev = node.prev; else tail = node.prev;
+        footprint -= NODE_OBJECT_BYTES + Keyspace.arrayFootprint(node.buf.length);
+    }
+
+    // --- element framing ---
+
+    private static int framedLength(int len) {
+        return len + 2 * Varint.length(len);
+    }
+
+    private static void writeFramed(byte[] buf, int pos, byte[] src, int off, int len) {
+        int n = Varint.length(len);
+        // Forward: low 7 bits first, continuation bit on all but the last byte. The
+        // trailing copy is the same bytes reversed, so it reads back from its end.
+        for (int i = 0, v = len; i < n; i++, v >>>= 7) {
+            byte b = (byte) ((v & 0x7F) | (i < n - 1 ? 0x80 : 0));
+            buf[pos + i] = b;
+            buf[pos + n + len + n - 1 - i] = b;
+        }
+        System.arraycopy(src, off, buf, pos + n, len);
+    }
+}
@@ -1,8 +1,29 @@
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class RDBParser {
+	private static final int TYPE_STRING = 0;
+	private static final int TYPE_LIST = 1;
+	private static final int TYPE_LIST_ZIPLIST = 14;
+	private static final int TYPE_LIST_QUICKLIST = 18;
+	private static final int TYPE_HASH = 4;
+	private static final int TYPE_HASH_ZIPLIST = 13;
+	private static final int TYPE_HASH_LISTPACK = 16;
+	private static final int TYPE_ZSET = 3;
+	private static final int TYPE_ZSET_2 = 5;
+	private static final int TYPE_ZSET_ZIPLIST = 12;
+	private static final int TYPE_ZSET_LISTPACK = 17;
+	private static final int TYPE_SET = 2;
+	private static final int TYPE_SET_INTSET = 11;
+	private static final int TYPE_SET_LISTPACK = 20;
+	// Quicklist node containers: a single element stored as is, or a listpack
+	private static final int QUICKLIST_NODE_PLAIN = 1;
+
 	public static void loadFromStream(InputStream stream) throws IOException {
 
 		DataInputStream in = new DataInputStream(stream);
@@ -38,7 +59,7 @@ public class RDBParser {
 			        ((expiryBytes[1] & 0xFFL) << 8) |
 			        (expiryBytes[0] & 0xFFL);
 			    expireAtMillis = expirySeconds * 1000L;
-			    System.out.printf("Expiry (0xFC) seconds: %d, millis: %d\n", expirySeconds, expireAtMillis);
+			    if (Log.isDebugEnabled()) Log.debug("Expiry (0xFC) seconds: " + expirySeconds + ", millis: " + expireAtMillis);
 			    hasExpiry = true;
 			    break;
 			case 0xFE:
@@ -55,31 +76,32 @@ public class RDBParser {
 			case 0xFF:
 				return;
 			default:
-				if (b >= 0x00 && b <= 0x06) {
-					// Assume `b` is a data type (e.g. string = 0x00, list = 0x01, etc.)
-					// For this challenge, only strings are supported.
-					String key = readLengthEncodedString(in);
-					String value = readLengthEncodedString(in);
-
-					if (hasExpiry) {
-					    long now = System.currentTimeMillis();
-					    System.out.printf("Checking expiry for key '%s': expireAtMillis=%d (%s), now=%d (%s)%n",
-					            key, expireAtMillis, new java.util.Date(expireAtMillis), now, new java.util.Date(now));
-					    if (expireAtMillis != 0 && expireAtMillis < now) {
-					        System.out.println("Skipping expired key: " + key);
-					        continue;
-					    } else {
-					        ClientHandler.putKeyWithExpiry(key, value, expireAtMillis);
-					        System.out.println("Loaded key with expiry: " + key);
-					    }
-					    hasExpiry = false;
-					    expireAtMillis = 0;
+				if (b == TYPE_STRING || isList(b) || isHash(b) || isZSet(b) || isSet(b)) {
+					byte[] key = readLengthEncodedString(in);
+					byte[] value = b == TYPE_STRING ? readLengthEncodedString(in) : null;
+					KeyValue collection = isList(b) ? KeyValue.ofList(readList(b, in))
+							: isHash(b) ? KeyValue.ofHash(readHash(b, in))
+							: isZSet(b) ? KeyValue.ofZSet(readZSet(b, in))
+							: isSet(b) ? KeyValue.ofSet(readSet(b, in)) : null;
+					long expiry = hasExpiry ? expireAtMillis : 0;
+					hasExpiry = false;
+					expireAtMillis = 0;
+
+					if (expiry != 0 && expiry < System.currentTimeMillis()) {
+					    if (Log.isDebugEnabled()) Log.debug("Skipping expired key: " + new String(key, StandardCharsets.UTF_8));
+					    continue;
+					}
+					if (collection == null) {
+					    ClientHandler.putKeyWithExpiry(key, value, expiry);
 					} else {
-					    ClientHandler.putKeyWithExpiry(key, value, 0);
-					    System.out.println("Loaded key without expiry: " + key);
+					    collection.expirationTimestamp = expiry;
+					    ClientHandler.putKey(key, collection);
+					}
+					if (Log.isDebugEnabled()) {
+					    Log.debug("Loaded key: " + new String(key, StandardCharsets.UTF_8) + (expiry != 0 ? " expiring at " + expiry : ""));
 					}
 				} else {
-					System.out.println("Skipping unsupported type: " + b);
+					Log.warn("Skipping unsupported type: " + b);
 					skipUnsupportedObject(b, in);
 				}
 				break;
@@ -89,8 +111,259 @@ public class RDBParser {
 
 	}
 
+	private static boolean isList(int type) {
+		return type == TYPE_LIST || type == TYPE_LIST_ZIPLIST || type == TYPE_LIST_QUICKLIST;
+	}
+
+	private static boolean isHash(int type) {
+		return type == TYPE_HASH || type == TYPE_HASH_ZIPLIST || type == TYPE_HASH_LISTPACK;
+	}
+
+	private static boolean isZSet(int type) {
+		return type == TYPE_ZSET || type == TYPE_ZSET_2 || type == TYPE_ZSET_ZIPLIST || type == TYPE_ZSET_LISTPACK;
+	}
+
+	private static boolean isSet(int type) {
+		return type == TYPE_SET || type == TYPE_SET_INTSET || type == TYPE_SET_LISTPACK;
+	}
+
+	// A list in any of the encodings Redis has written: plain (before 3.2), a
+	// quicklist of ziplists (3.2 to 6.2) or a quicklist of listpacks (7.0 on)
+	private static QuickList readList(int type, DataInputStream in) throws IOException {
+		QuickList list = new QuickList();
+		long count = readLength(in);
+		for (long i = 0; i < count; i++) {
+			if (type == TYPE_LIST) {
+				list.pushLast(readLengthEncodedString(in));
+				continue;
+			}
+			long container = type == TYPE_LIST_QUICKLIST ? readLength(in) : 0;
+			byte[] node = readLengthEncodedString(in);
+			if (container == QUICKLIST_NODE_PLAIN) {
+				list.pushLast(node);
+				continue;
+			}
+			List<byte[]> elements = type == TYPE_LIST_QUICKLIST ? listpackEntries(node) : ziplistEntries(node);
+			for (byte[] element : elements) list.pushLast(element);
+		}
+		return list;
+	}
+
+	// A hash as field/value string pairs (before 7.0 for big hashes too), or as one
+	// ziplist (before 7.0) or listpack (7.0 on) of fields alternating with values.
+	// Either way it gets the compact encoding if it fits the current limits.
+	private static HashValue readHash(int type, DataInputStream in) throws IOException {
+		HashValue hash = new HashValue();
+		if (type == TYPE_HASH) {
+			long count = readLength(in);
+			for (long i = 0; i < count; i++) {
+				hash.put(readLengthEncodedString(in), readLengthEncodedString(in));
+			}
+			return hash;
+		}
+		byte[] blob = readLengthEncodedString(in);
+		List<byte[]> entries = type == TYPE_HASH_LISTPACK ? listpackEntries(blob) : ziplistEntries(blob);
+		if (entries.size() % 2 != 0) throw new IOException("Hash with a field missing its value");
+		for (int i = 0; i < entries.size(); i += 2) {
+			hash.put(entries.get(i), entries.get(i + 1));
+		}
+		return hash;
+	}
+
+	// A sorted set as member/score pairs, the score as text (before 4.0) or as a
+	// little-endian double, or as one ziplist or listpack of members alternating with
+	// their scores as strings or integers
+	private static ZSetValue readZSet(int type, DataInputStream in) throws IOException {
+		ZSetValue zset = new ZSetValue();
+		if (type == TYPE_ZSET || type == TYPE_ZSET_2) {
+			long count = readLength(in);
+			for (long i = 0; i < count; i++) {
+				byte[] member = readLengthEncodedString(in);
+				double score = type == TYPE_ZSET_2
+						? Double.longBitsToDouble(Long.reverseBytes(in.readLong()))
+						: readTextScore(in);
+				zset.put(member, score);
+			}
+			return zset;
+		}
+		byte[] blob = readLengthEncodedString(in);
+		List<byte[]> entries = type == TYPE_ZSET_LISTPACK ? listpackEntries(blob) : ziplistEntries(blob);
+		if (entries.size() % 2 != 0) throw new IOException("Sorted set with a member missing its score");
+		try {
+			for (int i = 0; i < entries.size(); i += 2) {
+				zset.put(entries.get(i), ZSetValue.parseScore(entries.get(i + 1)));
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Bad sorted set score", e);
+		}
+		return zset;
+	}
+
+	// A set as member strings, or as one intset (a little-endian header of the value
+	// width and count, then the sorted values) or listpack (7.2 on) of members.
+	// Either way it becomes an intset again if it fits the current limit.
+	private static SetValue readSet(int type, DataInputStream in) throws IOException {
+		SetValue set = new SetValue();
+		if (type == TYPE_SET) {
+			long count = readLength(in);
+			for (long i = 0; i < count; i++) set.add(readLengthEncodedString(in));
+			return set;
+		}
+		byte[] blob = readLengthEncodedString(in);
+		if (type == TYPE_SET_LISTPACK) {
+			for (byte[] member : listpackEntries(blob)) set.add(member);
+			return set;
+		}
+		try {
+			int width = (int) littleEndian(blob, 0, 4);
+			long count = littleEndian(blob, 4, 4) & 0xFFFFFFFFL;
+			if (width != 2 && width != 4 && width != 8) throw new IOException("Bad intset encoding: " + width);
+			for (int i = 0; i < count; i++) set.addLong(littleEndian(blob, 8 + i * width, width));
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt intset", e);
+		}
+		return set;
+	}
+
+	// A length byte and that many characters; 253 to 255 stand for nan, inf and -inf
+	private static double readTextScore(DataInputStream in) throws IOException {
+		int len = in.readUnsignedByte();
+		switch (len) {
+		case 253: throw new IOException("NaN score in sorted set");
+		case 254: return Double.POSITIVE_INFINITY;
+		case 255: return Double.NEGATIVE_INFINITY;
+		default:
+			byte[] text = new byte[len];
+			in.readFully(text);
+			try {
+				return ZSetValue.parseScore(text);
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad sorted set score", e);
+			}
+		}
+	}
+
+	// Entries of a ziplist: a 10-byte header, then per entry the previous entry's
+	// length, an encoding byte that also holds short lengths and small integers, and
+	// the data
+	private static List<byte[]> ziplistEntries(byte[] zl) throws IOException {
+		List<byte[]> entries = new ArrayList<>();
+		int pos = 10;
+		try {
+			while ((zl[pos] & 0xFF) != 0xFF) {
+				pos += (zl[pos] & 0xFF) == 0xFE ? 5 : 1;
+				int enc = zl[pos] & 0xFF;
+				int len;
+				switch (enc >> 6) {
+				case 0:
+					len = enc & 0x3F;
+					pos += 1;
+					break;
+				case 1:
+					len = ((enc & 0x3F) << 8) | (zl[pos + 1] & 0xFF);
+					pos += 2;
+					break;
+				case 2:
+					len = ((zl[pos + 1] & 0xFF) << 24) | ((zl[pos + 2] & 0xFF) << 16) | ((zl[pos + 3] & 0xFF) << 8) | (zl[pos + 4] & 0xFF);
+					pos += 5;
+					break;
+				default:
+					int bytes;
+					switch (enc) {
+					case 0xC0: bytes = 2; break;
+					case 0xD0: bytes = 4; break;
+					case 0xE0: bytes = 8; break;
+					case 0xF0: bytes = 3; break;
+					case 0xFE: bytes = 1; break;
+					default:
+						// 0xF1 to 0xFD: the integer 0 to 12 is in the encoding itself
+						entries.add(asciiDigits((enc & 0x0F) - 1));
+						pos += 1;
+						continue;
+					}
+					entries.add(asciiDigits(littleEndian(zl, pos + 1, bytes)));
+					pos += 1 + bytes;
+					continue;
+				}
+				entries.add(Arrays.copyOfRange(zl, pos, pos + len));
+				pos += len;
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt ziplist", e);
+		}
+		return entries;
+	}
+
+	// Entries of a listpack: a 6-byte header, then per entry an encoding byte, the
+	// data, and the entry's length again backwards so it can be walked from the end
+	private static List<byte[]> listpackEntries(byte[] lp) throws IOException {
+		List<byte[]> entries = new ArrayList<>();
+		int pos = 6;
+		try {
+			while ((lp[pos] & 0xFF) != 0xFF) {
+				int enc = lp[pos] & 0xFF;
+				int size;
+				if ((enc & 0x80) == 0) {
+					entries.add(asciiDigits(enc));
+					size = 1;
+				} else if ((enc & 0xC0) == 0x80) {
+					int len = enc & 0x3F;
+					entries.add(Arrays.copyOfRange(lp, pos + 1, pos + 1 + len));
+					size = 1 + len;
+				} else if ((enc & 0xE0) == 0xC0) {
+					int value = ((enc & 0x1F) << 8) | (lp[pos + 1] & 0xFF);
+					entries.add(asciiDigits(value >= 1 << 12 ? value - (1 << 13) : value));
+					size = 2;
+				} else if ((enc & 0xF0) == 0xE0) {
+					int len = ((enc & 0x0F) << 8) | (lp[pos + 1] & 0xFF);
+					entries.add(Arrays.copyOfRange(lp, pos + 2, pos + 2 + len));
+					size = 2 + len;
+				} else {
+					int bytes;
+					switch (enc) {
+					case 0xF0:
+						int len = (int) littleEndian(lp, pos + 1, 4);
+						entries.add(Arrays.copyOfRange(lp, pos + 5, pos + 5 + len));
+						pos += 5 + len;
+						pos += backlenSize(5 + len);
+						continue;
+					case 0xF1: bytes = 2; break;
+					case 0xF2: bytes = 3; break;
+					case 0xF3: bytes = 4; break;
+					case 0xF4: bytes = 8; break;
+					default: throw new IOException("Unknown listpack encoding: " + enc);
+					}
+					entries.add(asciiDigits(littleEndian(lp, pos + 1, bytes)));
+					size = 1 + bytes;
+				}
+				pos += size + backlenSize(size);
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt listpack", e);
+		}
+		return entries;
+	}
+
+	private static int backlenSize(int entrySize) {
+		if (entrySize <= 127) return 1;
+		if (entrySize < 16383) return 2;
+		if (entrySize < 2097151) return 3;
+		if (entrySize < 268435455) return 4;
+		return 5;
+	}
+
+	// A signed little-endian integer of 1 to 8 bytes
+	private static long littleEndian(byte[] b, int pos, int bytes) {
+		long value = 0;
+		for (int i = bytes - 1; i >= 0; i--) {
+			value = (value << 8) | (b[pos + i] & 0xFF);
+		}
+		int shift = 64 - 8 * bytes;
+		return (value << shift) >> shift;
+	}
+
 	private static void skipUnsupportedObject(int objectType, DataInputStream in) throws IOException {
-		System.out.println("Skipping unsupported type: " + objectType);
+		if (Log.isDebugEnabled()) Log.debug("Skipping unsupported type: " + objectType);
 
 		// For now, let's assume these unsupported types encode a key and value as
 		// length-encoded strings
@@ -139,7 +412,8 @@ public class RDBParser {
 		}
 	}
 
-	private static String readLengthEncodedString(DataInputStream in) throws IOException {
+	// Strings come back as raw bytes; integer encodings as their decimal digits
+	private static byte[] readLengthEncodedString(DataInputStream in) throws IOException {
 		int firstByte = in.readUnsignedByte();
 		int type = (firstByte & 0xC0) >> 6;
 
@@ -147,27 +421,33 @@ public class RDBParser {
 			int len = firstByte & 0x3F;
 			byte[] bytes = new byte[len];
 			in.readFully(bytes);
-			return new String(bytes);
+			return bytes;
 		} else if (type == 1) {
 			int secondByte = in.readUnsignedByte();
 			int len = ((firstByte & 0x3F) << 8) | secondByte;
 			byte[] bytes = new byte[len];
 			in.readFully(bytes);
-			return new String(bytes);
+			return bytes;
 		} else if (type == 2) {
 			int len = in.readInt();
 			byte[] bytes = new byte[len];
 			in.readFully(bytes);
-			return new String(bytes);
+			return bytes;
 		} else if (type == 3) {
 			int encType = firstByte & 0x3F;
 			switch (encType) {
 			case 0:
-				return String.valueOf(in.readByte()); // 8-bit int
+				return asciiDigits(in.readByte()); // 8-bit int
 			case 1:
-				return String.valueOf(in.readShort()); // 16-bit int
+				return asciiDigits(Short.reverseBytes(in.readShort())); // 16-bit int, little-endian
 			case 2:
-				return String.valueOf(in.readInt()); // 32-bit int
+				return asciiDigits(Integer.reverseBytes(in.readInt())); // 32-bit int, little-endian
+			case 3:
+				int compressedLength = (int) readLength(in);
+				int length = (int) readLength(in);
+				byte[] compressed = new byte[compressedLength];
+				in.readFully(compressed);
+				return lzfDecompress(compressed, length);
 			default:
 				throw new IOException("Unsupported encoded string type: " + encType);
 			}
@@ -176,6 +456,42 @@ public class RDBParser {
 		}
 	}
 	
+	private static byte[] asciiDigits(long value) {
+		return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	// LZF, which Redis uses for strings (and ziplists, listpacks) above 20 bytes: a
+	// control byte below 32 starts a run of that many plus one literal bytes, anything
+	// else is a back reference of length and offset into what was already decoded
+	private static byte[] lzfDecompress(byte[] in, int length) throws IOException {
+		byte[] out = new byte[length];
+		int ip = 0;
+		int op = 0;
+		try {
+			while (ip < in.length) {
+				int ctrl = in[ip++] & 0xFF;
+				if (ctrl < 32) {
+					int run = ctrl + 1;
+					System.arraycopy(in, ip, out, op, run);
+					ip += run;
+					op += run;
+					continue;
+				}
+				int len = ctrl >> 5;
+				if (len == 7) len += in[ip++] & 0xFF;
+				int ref = op - ((ctrl & 0x1F) << 8) - (in[ip++] & 0xFF) - 1;
+				// Byte by byte: a reference may overlap what it is producing
+				for (int i = 0; i < len + 2; i++) {
+					out[op++] = out[ref++];
+				}
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Corrupt LZF string", e);
+		}
+		if (op != length) throw new IOException("LZF string decompressed to " + op + " bytes, expected " + length);
+		return out;
+	}
+	
 //	private static String parseBulkString(DataInputStream in) throws IOException {
 //	    long length = readLength(in);
 //	    
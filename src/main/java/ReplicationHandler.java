@@ -1,15 +1,33 @@
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 class ReplicationHandler {
-    private static List<OutputStream> replicaOutputs = new ArrayList<>();
+    private static final List<OutputStream> replicaOutputs = new CopyOnWriteArrayList<>();
+    // Serializes writes to replica streams so frames from concurrent clients don't interleave.
+    // A ReentrantLock rather than synchronized keeps virtual threads from pinning their carrier.
+    private static final ReentrantLock replicaLock = new ReentrantLock();
     private static final int MAX_RETRIES = 3;
+    private static final byte[] SET = {'S', 'E', 'T'};
+    private static final byte[] PXAT = {'P', 'X', 'A', 'T'};
+    private static final byte[] DEL = {'D', 'E', 'L'};
+    private static final byte[] MULTI = "*1\r\n$5\r\nMULTI\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EXEC = "*1\r\n$4\r\nEXEC\r\n".getBytes(StandardCharsets.US_ASCII);
+    // Writes of the transaction running on this thread, held back until it is done so
+    // they reach replicas as one MULTI/EXEC block (see beginBlock)
+    private static final ThreadLocal<RespWriter> block = new ThreadLocal<>();
 
     // Add a new replica connection
     public static void addReplica(OutputStream out) {
-        replicaOutputs.add(out);
+        replicaLock.lock();
+        try {
+            replicaOutputs.add(out);
+        } finally {
+            replicaLock.unlock();
+        }
     }
 
     // Remove a replica connection
@@ -17,46 +35,138 @@ class ReplicationHandler {
         replicaOutputs.remove(out);
     }
 
-    // Propagate the SET command to all replicas
-    public static void propagateSetToReplicas(String key, String value) {
-        StringBuilder command = new StringBuilder();
-        command.append("*3\r\n");  // Length of the array (3 parts for "SET", key, and value)
-        command.append("$3\r\nSET\r\n");
-        command.append("$").append(key.length()).append("\r\n").append(key).append("\r\n");
-        command.append("$").append(value.length()).append("\r\n").append(value).append("\r\n");
-
-        byte[] commandBytes = command.toString().getBytes();
-
-        // Send the SET command to each replica
-        
-        for (OutputStream replicaOut : replicaOutputs) {
-            int attempts = 0;
-            boolean success = false;
-
-            while (attempts < MAX_RETRIES && !success) {
-                try {
-                    replicaOut.write(commandBytes);  // Send the SET command to the replica
-                    replicaOut.flush();
-                    success = true;  // Command sent successfully
-                } catch (IOException e) {
-                    attempts++;
-                    System.out.println("Failed to propagate to replica (attempt " + attempts + "): " + e.getMessage());
-                    if (attempts == MAX_RETRIES) {
-                        removeReplica(replicaOut);  // Remove failed replica after max retries
-                        System.out.println("Replica removed after " + MAX_RETRIES + " failed attempts.");
+    public static int replicaCount() {
+        return replicaOutputs.size();
+    }
+
+    public static void propagateSetToReplicas(byte[] key, byte[] value) {
+        propagateSetToReplicas(key, value, 0, null);
+    }
+
+    // Propagate the SET command to all replicas except `source`, the connection it came
+    // from. A key with a TTL goes as SET ... PXAT, so replicas expire it when we do.
+    public static void propagateSetToReplicas(byte[] key, byte[] value, long expirationTimestamp, OutputStream source) {
+        if (expirationTimestamp <= 0) {
+            propagate(source, SET, key, value);
+        } else {
+            propagate(source, SET, key, value, PXAT, Long.toString(expirationTimestamp).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    // Sends a write command, given as its arguments, to all replicas except `source`
+    public static void propagate(OutputStream source, byte[]... args) {
+        if (replicaOutputs.isEmpty()) return;
+
+        // Encoded once and shared by every replica
+        RespWriter command = new RespWriter();
+        try {
+            command.writeArrayHeader(args.length);
+            for (byte[] arg : args) {
+                command.writeBulkString(arg);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Encoding into a memory buffer cannot fail", e);
+        }
+        send(source, command);
+    }
+
+    // Sends a write command exactly as the client sent it
+    public static void propagate(OutputStream source, RespRequest args) {
+        if (replicaOutputs.isEmpty()) return;
+
+        RespWriter command = new RespWriter();
+        try {
+            command.writeArrayHeader(args.size());
+            for (int i = 0; i < args.size(); i++) {
+                command.writeBulkString(args.array(), args.offset(i), args.length(i));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Encoding into a memory buffer cannot fail", e);
+        }
+        send(source, command);
+    }
+
+    // A key we removed on our own, as it expired or was evicted, so replicas drop it too
+    public static void propagateDel(byte[] key) {
+        propagate(null, DEL, key);
+    }
+
+    // Same, under another command name, e.g. MSETNX sent on as the MSET it turned into
+    public static void propagateAs(OutputStream source, byte[] name, RespRequest args) {
+        if (replicaOutputs.isEmpty()) return;
+
+        RespWriter command = new RespWriter();
+        try {
+            command.writeArrayHeader(args.size());
+            command.writeBulkString(name);
+            for (int i = 1; i < args.size(); i++) {
+                command.writeBulkString(args.array(), args.offset(i), args.length(i));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Encoding into a memory buffer cannot fail", e);
+        }
+        send(source, command);
+    }
+
+    // Until endBlock(), writes propagated on this thread are gathered instead of sent
+    public static void beginBlock() {
+        block.set(new RespWriter());
+    }
+
+    // Sends what was gathered since beginBlock(), if anything, wrapped in MULTI and
+    // EXEC, to all replicas except `source`
+    public static void endBlock(OutputStream source) {
+        RespWriter gathered = block.get();
+        block.remove();
+        if (gathered == null || gathered.size() == 0 || replicaOutputs.isEmpty()) return;
+
+        RespWriter command = new RespWriter();
+        try {
+            command.writeRaw(MULTI);
+            gathered.writeTo(command);
+            command.writeRaw(EXEC);
+        } catch (IOException e) {
+            throw new IllegalStateException("Encoding into a memory buffer cannot fail", e);
+        }
+        send(source, command);
+    }
+
+    private static void send(OutputStream source, RespWriter command) {
+        RespWriter gathering = block.get();
+        if (gathering != null) {
+            try {
+                command.writeTo(gathering);
+            } catch (IOException e) {
+                throw new IllegalStateException("Encoding into a memory buffer cannot fail", e);
+            }
+            return;
+        }
+
+        replicaLock.lock();
+        try {
+            // Send the command to each replica
+            for (OutputStream replicaOut : replicaOutputs) {
+                if (replicaOut == source) continue;
+                int attempts = 0;
+                boolean success = false;
+
+                while (attempts < MAX_RETRIES && !success) {
+                    try {
+                        command.writeTo(replicaOut);
+                        replicaOut.flush();
+                        success = true;  // Command sent successfully
+                    } catch (IOException e) {
+                        attempts++;
+                        Log.warn("Failed to propagate to replica (attempt " + attempts + "): " + e.getMessage());
+                        if (attempts == MAX_RETRIES) {
+                            removeReplica(replicaOut);  // Remove failed replica after max retries
+                            Log.warn("Replica removed after " + MAX_RETRIES + " failed attempts.");
+                        }
                     }
                 }
             }
-        
-        }
-//        for (OutputStream replicaOut : replicaOutputs) {
-//            try {
-//                replicaOut.write(commandBytes);  // Send the SET command to the replica
-//                replicaOut.flush();
-//            } catch (IOException e) {
-//                System.out.println("Failed to propagate to replica: " + e.getMessage());
-//                removeReplica(replicaOut);  // Remove failed replica connection
-//            }
-//        }
-    }
-}
\ No newline at end of file
+        } finally {
+            replicaLock.unlock();
+        }
+    }
+}
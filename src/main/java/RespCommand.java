@@ -1,24 +1,73 @@
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 class RespCommand {
 //    private final String[] array;
-	private final String value;
+	private String value;
+    // A bulk string's bytes as they came, so keys and values that aren't text stay
+    // intact; value is decoded from them only when asked for
+    private final byte[] bytes;
     private RespCommand[] array;
+    // The RESP type byte it was read from, e.g. '%' for a map; RESP2 replies are all
+    // told apart by isSimple() and isArray() alone
+    private final byte type;
 
     public RespCommand(String value) {
-        this.value = value;
-        this.array = null;
+        this((byte) '+', value);
     }
     
     public RespCommand(RespCommand[] array) {
+        this((byte) '*', array);
+    }
+
+    public RespCommand(byte type, String value) {
+        this.type = type;
+        this.value = value;
+        this.bytes = null;
+        this.array = null;
+    }
+
+    public RespCommand(byte type, byte[] bytes) {
+        this.type = type;
+        this.value = null;
+        this.bytes = bytes;
+        this.array = null;
+    }
+
+    public RespCommand(byte type, RespCommand[] array) {
+        this.type = type;
         this.array = array;
         this.value = null; // No main array
+        this.bytes = null;
     }
     
     public String getValue() {
+        if (value == null && bytes != null) value = new String(bytes, StandardCharsets.UTF_8);
         return value;
     }
 
+    // The element's bytes: a bulk string's exactly, anything else's text in UTF-8
+    public byte[] getBytes() {
+        if (bytes != null) return bytes;
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public boolean isMap() {
+        return type == '%';
+    }
+
+    public boolean isPush() {
+        return type == '>';
+    }
+
+    public boolean isNull() {
+        return value == null && bytes == null && array == null;
+    }
+
 //    public String[] getArray() {
 //        return array;
 //    }
@@ -37,8 +86,12 @@ class RespCommand {
         return result;
     }
     
+    public RespCommand[] getElements() {
+        return array;
+    }
+
     public boolean isSimple() {
-        return value != null;
+        return value != null || bytes != null;
     }
     
     public boolean isArray() {
@@ -48,7 +101,7 @@ class RespCommand {
     @Override
     public String toString() {
         if (isSimple()) {
-            return "RespCommand{value=" + value + "}";
+            return "RespCommand{value=" + getValue() + "}";
         } else if (array != null) {
             return "RespCommand{subCommands=" + Arrays.toString(array) + "}";
         } else {
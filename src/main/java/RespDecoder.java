@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Incremental RESP request decoder. Bytes are consumed straight from the caller's
+// ByteBuffer; when a command is split across reads the decoder remembers where it
+// stopped (including half-read length headers) and resumes on the next call.
+// Bulk payloads are copied by length, so they may contain any bytes, \r\n included.
+class RespDecoder {
+    private static final int MAX_MULTIBULK_LENGTH = 1024 * 1024;
+    private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+
+    private static final int STATE_ARRAY_HEADER = 0;
+    private static final int STATE_BULK_HEADER = 1;
+    private static final int STATE_BULK_PAYLOAD = 2;
+    private static final int STATE_BULK_CRLF = 3;
+    private static final int STATE_SKIP_LINE = 4;
+
+    private int state = STATE_ARRAY_HEADER;
+    private int argsRemaining;
+    private int bulkRemaining;
+
+    // Partially parsed "*<n>\r\n" or "$<n>\r\n" header
+    private boolean headerStarted;
+    private boolean headerNegative;
+    private boolean headerSawCR;
+    private long headerValue;
+    private int headerDigits;
+
+    // Decodes at most one command into request. Returns true when a full command is
+    // available, false when more input is needed (everything in `in` was consumed).
+    public boolean decode(ByteBuffer in, RespRequest request) throws IOException {
+        while (in.hasRemaining()) {
+            switch (state) {
+                case STATE_ARRAY_HEADER: {
+                    if (!headerStarted) {
+                        byte b = in.get();
+                        if (b == '\r' || b == '\n') continue; // stray line endings between commands
+                        if (b != '*') {
+                            // Inline commands aren't supported; drop the line like before
+                            state = STATE_SKIP_LINE;
+                            continue;
+                        }
+                        headerStarted = true;
+                        request.reset();
+                    }
+                    if (!readHeader(in)) return false;
+                    long count = takeHeader();
+                    if (count > MAX_MULTIBULK_LENGTH) throw new IOException("Protocol error: invalid multibulk length");
+                    if (count <= 0) continue; // empty or null array, nothing to run
+                    argsRemaining = (int) count;
+                    state = STATE_BULK_HEADER;
+                    break;
+                }
+                case STATE_BULK_HEADER: {
+                    if (!headerStarted) {
+                        byte b = in.get();
+                        if (b != '$') throw new IOException("Protocol error: expected '$', got '" + (char) b + "'");
+                        headerStarted = true;
+                    }
+                    if (!readHeader(in)) return false;
+                    long length = takeHeader();
+                    if (length < 0 || length > MAX_BULK_LENGTH) throw new IOException("Protocol error: invalid bulk length");
+                    bulkRemaining = (int) length;
+                    request.beginArg(bulkRemaining);
+                    state = STATE_BULK_PAYLOAD;
+                    break;
+                }
+                case STATE_BULK_PAYLOAD: {
+                    int n = Math.min(bulkRemaining, in.remaining());
+                    request.append(in, n);
+                    bulkRemaining -= n;
+                    if (bulkRemaining == 0) {
+                        state = STATE_BULK_CRLF;
+                        bulkRemaining = 2;
+                    }
+                    break;
+                }
+                case STATE_BULK_CRLF: {
+                    byte b = in.get();
+                    if (b != (bulkRemaining == 2 ? '\r' : '\n')) throw new IOException("Protocol error: bulk string not terminated");
+                    if (--bulkRemaining > 0) break;
+                    if (--argsRemaining > 0) {
+                        state = STATE_BULK_HEADER;
+                        break;
+                    }
+                    state = STATE_ARRAY_HEADER;
+                    return true;
+                }
+                case STATE_SKIP_LINE: {
+                    if (in.get() == '\n') state = STATE_ARRAY_HEADER;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown decoder state " + state);
+            }
+        }
+        return false;
+    }
+
+    // Accumulates the digits of a length header; true once its \r\n has been read
+    private boolean readHeader(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (headerSawCR) {
+                if (b != '\n') throw new IOException("Protocol error: expected '\\n' after '\\r'");
+                return true;
+            }
+            if (b == '\r') {
+                if (headerDigits == 0) throw new IOException("Protocol error: empty length");
+                headerSawCR = true;
+            } else if (b == '-' && headerDigits == 0 && !headerNegative) {
+                headerNegative = true;
+            } else if (b >= '0' && b <= '9' && headerDigits < 18) {
+                headerValue = headerValue * 10 + (b - '0');
+                headerDigits++;
+            } else {
+                throw new IOException("Protocol error: invalid length");
+            }
+        }
+        return false;
+    }
+
+    private long takeHeader() {
+        long value = headerNegative ? -headerValue : headerValue;
+        headerStarted = false;
+        headerNegative = false;
+        headerSawCR = false;
+        headerValue = 0;
+        headerDigits = 0;
+        return value;
+    }
+}
@@ -63,8 +63,39 @@ class RespParser {
             case ':':  // Integer type (not typically used in replication but can be useful)
 //            	return parseIntegerResponse();
                 String integerValue = parseSimpleStringValue();
-                return new RespCommand(integerValue);
-                
+                return new RespCommand(type, integerValue);
+
+            // RESP3. Scalars keep their text, with the type telling how to read it:
+            // t or f for a boolean, a decimal, inf or nan for a double
+            case '_':  // Null
+                parseLine();
+                return new RespCommand(type, (String) null);
+
+            case '#':  // Boolean
+            case ',':  // Double
+            case '(':  // Big number
+                return new RespCommand(type, parseSimpleStringValue());
+
+            case '=':  // Verbatim string: a bulk string starting with its format, e.g. txt:
+                RespCommand verbatim = parseBulkStringResponse();
+                String text = verbatim.getValue();
+                return new RespCommand(type, text != null && text.length() >= 4 ? text.substring(4) : text);
+
+            case '!':  // Bulk error
+                throw new IOException("RESP Error: " + parseBulkStringResponse().getValue());
+
+            // Aggregates are arrays of their elements, a map's keys and values alternately
+            case '%':  // Map
+                return new RespCommand(type, parseElements(parseLength() * 2));
+
+            case '~':  // Set
+            case '>':  // Push
+                return new RespCommand(type, parseElements(parseLength()));
+
+            case '|':  // Attributes describe the reply after them, which is all we return
+                parseElements(parseLength() * 2);
+                return next();
+
             default:
                 throw new IOException("Unsupported RESP type: " + (char) type);
         }
@@ -78,18 +109,18 @@ class RespParser {
     private RespCommand parseBulkStringResponse() throws IOException {
         int length = parseLength();
         if (length == -1) {
-            return new RespCommand((String) null);
+            return new RespCommand((byte) '$', (String) null);
         }
         if (pos + length + 2 > data.length) {
             throw new IOException("Invalid or incomplete bulk string");
         }
-        String value = new String(data, pos, length);
+        byte[] value = Arrays.copyOfRange(data, pos, pos + length);
         pos += length;
         if (data[pos] != '\r' || data[pos + 1] != '\n') {
             throw new IOException("Bulk string not terminated correctly");
         }
         pos += 2;
-        return new RespCommand(value);
+        return new RespCommand((byte) '$', value);
     }
 
     private RespCommand parseArrayResponse() throws IOException {
@@ -97,6 +128,10 @@ class RespParser {
         if (length == -1) {
             return new RespCommand(new RespCommand[0]); // Null array treated as empty array
         }
+        return new RespCommand(parseElements(length));
+    }
+
+    private RespCommand[] parseElements(int length) throws IOException {
         RespCommand[] elements = new RespCommand[length];
         for (int i = 0; i < length; i++) {
             elements[i] = next();
@@ -104,7 +139,7 @@ class RespParser {
                 throw new IOException("Null element in array");
             }
         }
-        return new RespCommand(elements);
+        return elements;
     }
     
     
@@ -205,13 +240,12 @@ class RespParser {
                 if (parts.length >= 3) {
                     String replicationId = parts[1];
                     long offset = Long.parseLong(parts[2]);
-                    System.out.println("Received FULLRESYNC command");
-                    System.out.println("ReplicationId: " + replicationId + ", offset: " + offset);
+                    Log.info("Received FULLRESYNC: replicationId=" + replicationId + ", offset=" + offset);
                 } else {
                     throw new IOException("Invalid FULLRESYNC simple string format");
                 }
             } else {
-                System.out.println("Received simple command: " + val);
+                if (Log.isDebugEnabled()) Log.debug("Received simple command: " + val);
             }
         } else {
             String[] parts = command.getArray(); // Uses the array of sub-RespCommands' values
@@ -221,16 +255,15 @@ class RespParser {
                     if (parts.length >= 3) {
                         String replicationId = parts[1];
                         long offset = Long.parseLong(parts[2]);
-                        System.out.println("Received FULLRESYNC command");
-                        System.out.println("ReplicationId: " + replicationId + ", offset: " + offset);
+                        Log.info("Received FULLRESYNC: replicationId=" + replicationId + ", offset=" + offset);
                     } else {
                         throw new IOException("FULLRESYNC command missing parameters");
                     }
                 } else {
-                    System.out.println("Unhandled replication command: " + cmdName);
+                    Log.warn("Unhandled replication command: " + cmdName);
                 }
             } else {
-                System.out.println("Received array command with no elements");
+                Log.warn("Received array command with no elements");
             }
         }
     }
@@ -0,0 +1,194 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// One decoded client command. Arguments are slices of a single backing array that
+// is reused from one command to the next, so decoding does not allocate per argument.
+// Handlers that need a String (or a copy) ask for it explicitly.
+class RespRequest {
+    private static final int INITIAL_DATA_SIZE = 64;
+    private static final int INITIAL_ARGS = 8;
+    // Backing arrays above these sizes are dropped on reset so one large command
+    // doesn't pin memory on an otherwise idle connection
+    private static final int RETAINED_DATA_SIZE = 64 * 1024;
+    private static final int RETAINED_ARGS = 1024;
+
+    private byte[] data = new byte[INITIAL_DATA_SIZE];
+    private int dataLength;
+    private int[] offsets = new int[INITIAL_ARGS];
+    private int[] lengths = new int[INITIAL_ARGS];
+    private int argc;
+    // For WATCH and EXEC, the connection's transaction (see Transaction.attach)
+    Transaction transaction;
+    // Whose reads of keys CLIENT TRACKING remembers, if anyone's
+    Tracking.Client tracking;
+
+    // Builds a request from already split strings, e.g. commands read from the master link
+    public static RespRequest of(String... parts) {
+        RespRequest request = new RespRequest();
+        for (String part : parts) {
+            byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+            request.beginArg(bytes.length);
+            request.append(bytes, 0, bytes.length);
+        }
+        return request;
+    }
+
+    // Builds a request from a parsed array, e.g. a command from the master link, with
+    // each argument's bytes as they came
+    public static RespRequest of(RespCommand command) {
+        RespRequest request = new RespRequest();
+        for (RespCommand element : command.getElements()) {
+            byte[] bytes = element.getBytes();
+            if (bytes == null) bytes = new byte[0];
+            request.beginArg(bytes.length);
+            request.append(bytes, 0, bytes.length);
+        }
+        return request;
+    }
+
+    public int size() {
+        return argc;
+    }
+
+    public byte[] array() {
+        return data;
+    }
+
+    public int offset(int i) {
+        return offsets[i];
+    }
+
+    public int length(int i) {
+        return lengths[i];
+    }
+
+    public String getString(int i) {
+        return new String(data, offsets[i], lengths[i], StandardCharsets.UTF_8);
+    }
+
+    public byte[] getBytes(int i) {
+        byte[] copy = new byte[lengths[i]];
+        System.arraycopy(data, offsets[i], copy, 0, lengths[i]);
+        return copy;
+    }
+
+    // Copies the argument out as a keyspace key
+    public ByteKey getKey(int i) {
+        return new ByteKey(getBytes(i));
+    }
+
+    // ASCII-only comparison, meant for command names and options such as "PX"
+    public boolean equalsIgnoreCase(int i, String ascii) {
+        int len = lengths[i];
+        if (len != ascii.length()) return false;
+        int off = offsets[i];
+        for (int j = 0; j < len; j++) {
+            int a = data[off + j];
+            int b = ascii.charAt(j);
+            if (a == b) continue;
+            int lower = a | 0x20;
+            if (lower != (b | 0x20) || lower < 'a' || lower > 'z') return false;
+        }
+        return true;
+    }
+
+    public long getLong(int i) {
+        return KeyValue.parseLong(data, offsets[i], lengths[i]);
+    }
+
+    // Resolves the command name without allocating for commands the server knows about
+    public String commandName() {
+        if (argc == 0) return "";
+        for (String name : KNOWN_COMMANDS) {
+            if (equalsIgnoreCase(0, name)) return name;
+        }
+        return getString(0).toUpperCase();
+    }
+
+    static boolean isKnownCommand(String command) {
+        for (String name : KNOWN_COMMANDS) {
+            if (name.equals(command)) return true;
+        }
+        return false;
+    }
+
+    private static final String[] KNOWN_COMMANDS = {
+        "GET", "SET", "MGET", "MSET", "MSETNX", "DEL", "UNLINK", "EXISTS", "PING", "ECHO", "KEYS", "INFO", "CONFIG", "REPLCONF", "PSYNC",
+        "EXPIRE", "PEXPIRE", "PEXPIREAT", "TTL", "PTTL", "PERSIST", "MEMORY",
+        "INCR", "DECR", "INCRBY", "DECRBY", "INCRBYFLOAT",
+        "LPUSH", "RPUSH", "LPOP", "RPOP", "LRANGE", "LLEN", "LINDEX", "LTRIM", "BLPOP", "BRPOP",
+        "HSET", "HGET", "HMGET", "HDEL", "HGETALL", "HLEN", "HINCRBY",
+        "ZADD", "ZINCRBY", "ZREM", "ZSCORE", "ZCARD", "ZRANK", "ZREVRANK", "ZCOUNT", "ZRANGE",
+        "SADD", "SREM", "SISMEMBER", "SMEMBERS", "SCARD", "SINTER", "SUNION", "SDIFF",
+        "SINTERSTORE", "SUNIONSTORE", "SDIFFSTORE",
+        "SCAN", "HSCAN", "SSCAN", "ZSCAN",
+        "MULTI", "EXEC", "DISCARD", "WATCH", "UNWATCH",
+        "SUBSCRIBE", "UNSUBSCRIBE", "PSUBSCRIBE", "PUNSUBSCRIBE", "PUBLISH", "PUBSUB",
+        "HELLO", "CLIENT"
+    };
+
+    // Detached copy that stays valid after the decoder reuses this request
+    public RespRequest copy() {
+        RespRequest copy = new RespRequest();
+        copy.data = Arrays.copyOf(data, dataLength);
+        copy.dataLength = dataLength;
+        copy.offsets = Arrays.copyOf(offsets, Math.max(argc, 1));
+        copy.lengths = Arrays.copyOf(lengths, Math.max(argc, 1));
+        copy.argc = argc;
+        copy.transaction = transaction;
+        copy.tracking = tracking;
+        return copy;
+    }
+
+    // --- used by RespDecoder while filling the request ---
+
+    void reset() {
+        if (data.length > RETAINED_DATA_SIZE) data = new byte[INITIAL_DATA_SIZE];
+        if (offsets.length > RETAINED_ARGS) {
+            offsets = new int[INITIAL_ARGS];
+            lengths = new int[INITIAL_ARGS];
+        }
+        dataLength = 0;
+        argc = 0;
+        transaction = null;
+        tracking = null;
+    }
+
+    void beginArg(int length) {
+        if (argc == offsets.length) {
+            offsets = Arrays.copyOf(offsets, argc * 2);
+            lengths = Arrays.copyOf(lengths, argc * 2);
+        }
+        ensureCapacity(dataLength + length);
+        offsets[argc] = dataLength;
+        lengths[argc] = length;
+        argc++;
+    }
+
+    void append(byte[] src, int off, int len) {
+        System.arraycopy(src, off, data, dataLength, len);
+        dataLength += len;
+    }
+
+    void append(ByteBuffer src, int len) {
+        src.get(data, dataLength, len);
+        dataLength += len;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("RespRequest[");
+        for (int i = 0; i < argc; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(getString(i));
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,384 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Encodes RESP replies straight into a reusable byte buffer. Constant replies and
+// small length headers are encoded once up front; numbers are written digit by digit,
+// so building a reply never goes through an intermediate String.
+//
+// A writer with a sink is a connection's reply buffer: flush() hands everything
+// gathered so far to the sink in one write. A writer without a sink is used to
+// encode a message once and copy it out with toByteArray().
+//
+// Replies are RESP2 unless HELLO 3 switched the connection to RESP3: the typed
+// headers below (map, set, push, double, boolean, null) then write their RESP3 form,
+// and fall back to the RESP2 shape a RESP2 client expects otherwise. Attributes are
+// never sent.
+class RespWriter {
+    static final byte[] OK = ascii("+OK\r\n");
+    static final byte[] PONG = ascii("+PONG\r\n");
+    static final byte[] NULL_BULK = ascii("$-1\r\n");
+    static final byte[] NULL_ARRAY = ascii("*-1\r\n");
+    static final byte[] EMPTY_ARRAY = ascii("*0\r\n");
+    static final byte[] NULL = ascii("_\r\n");
+    static final byte[] TRUE = ascii("#t\r\n");
+    static final byte[] FALSE = ascii("#f\r\n");
+    static final byte[] CRLF = ascii("\r\n");
+    static final byte[] ERR_UNKNOWN_COMMAND = ascii("-ERR unknown command\r\n");
+    static final byte[] ERR_SYNTAX = ascii("-ERR syntax error\r\n");
+    static final byte[] ERR_NOT_INTEGER = ascii("-ERR value is not an integer or out of range\r\n");
+    static final byte[] ERR_WRONGTYPE = ascii("-WRONGTYPE Operation against a key holding the wrong kind of value\r\n");
+    static final byte[] ERR_OOM = ascii("-OOM command not allowed when used memory > 'maxmemory'.\r\n");
+
+    private static final int SHARED_HEADERS = 512;
+    private static final byte[][] BULK_HEADERS = new byte[SHARED_HEADERS][];
+    private static final byte[][] ARRAY_HEADERS = new byte[SHARED_HEADERS][];
+    private static final byte[][] INTEGERS = new byte[SHARED_HEADERS][];
+    // Small numbers as bulk strings, the common case for GET on a counter
+    private static final int SHARED_BULK_NUMBERS = 10000;
+    private static final byte[][] BULK_NUMBERS = new byte[SHARED_BULK_NUMBERS][];
+
+    static {
+        for (int i = 0; i < SHARED_HEADERS; i++) {
+            BULK_HEADERS[i] = ascii("$" + i + "\r\n");
+            ARRAY_HEADERS[i] = ascii("*" + i + "\r\n");
+            INTEGERS[i] = ascii(":" + i + "\r\n");
+        }
+        for (int i = 0; i < SHARED_BULK_NUMBERS; i++) {
+            String digits = Integer.toString(i);
+            BULK_NUMBERS[i] = ascii("$" + digits.length() + "\r\n" + digits + "\r\n");
+        }
+    }
+
+    private static final int INITIAL_SIZE = 512;
+    // With a sink attached, replies beyond this are flushed early rather than buffered
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+
+    private final OutputStream sink;
+    private byte[] buf = new byte[INITIAL_SIZE];
+    private int count;
+    private boolean resp3;
+
+    RespWriter() {
+        this(null);
+    }
+
+    RespWriter(OutputStream sink) {
+        this.sink = sink;
+    }
+
+    public OutputStream sink() {
+        return sink;
+    }
+
+    boolean isResp3() {
+        return resp3;
+    }
+
+    void setProtocol(int protocol) {
+        resp3 = protocol == 3;
+    }
+
+    int protocol() {
+        return resp3 ? 3 : 2;
+    }
+
+    // A writer without a sink that encodes the way this one does, for a reply built
+    // off-connection and copied in with writeTo()
+    RespWriter scratch() {
+        RespWriter scratch = new RespWriter();
+        scratch.resp3 = resp3;
+        return scratch;
+    }
+
+    public void writeRaw(byte[] bytes) throws IOException {
+        writeRaw(bytes, 0, bytes.length);
+    }
+
+    public void writeRaw(byte[] bytes, int off, int len) throws IOException {
+        ensureCapacity(len);
+        System.arraycopy(bytes, off, buf, count, len);
+        count += len;
+        maybeFlush();
+    }
+
+    public void writeOk() throws IOException {
+        writeRaw(OK);
+    }
+
+    public void writeNullBulk() throws IOException {
+        writeRaw(resp3 ? NULL : NULL_BULK);
+    }
+
+    public void writeNullArray() throws IOException {
+        writeRaw(resp3 ? NULL : NULL_ARRAY);
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+        if (resp3) {
+            writeRaw(value ? TRUE : FALSE);
+        } else {
+            writeInteger(value ? 1 : 0);
+        }
+    }
+
+    // `text` is the number as Redis prints it (see ZSetValue.formatScore); a RESP2
+    // client gets it as a bulk string
+    public void writeDouble(String text) throws IOException {
+        if (!resp3) {
+            writeBulkString(text);
+            return;
+        }
+        ensureCapacity(text.length() + 3);
+        buf[count++] = ',';
+        writeAsciiChars(text);
+        writeCrlf();
+        maybeFlush();
+    }
+
+    // Followed by `pairs` keys and values; a flat array of both in RESP2
+    public void writeMapHeader(int pairs) throws IOException {
+        if (resp3) {
+            writePrefixedNumber((byte) '%', pairs);
+        } else {
+            writeArrayHeader(pairs * 2);
+        }
+    }
+
+    public void writeSetHeader(int length) throws IOException {
+        if (resp3) {
+            writePrefixedNumber((byte) '~', length);
+        } else {
+            writeArrayHeader(length);
+        }
+    }
+
+    // An out-of-band message such as a published one; a plain array in RESP2
+    public void writePushHeader(int length) throws IOException {
+        if (resp3) {
+            writePrefixedNumber((byte) '>', length);
+        } else {
+            writeArrayHeader(length);
+        }
+    }
+
+    // `s` must not contain \r or \n; only ASCII is expected for status replies
+    public void writeSimpleString(String s) throws IOException {
+        writeLine((byte) '+', s);
+    }
+
+    public void writeError(String message) throws IOException {
+        writeLine((byte) '-', message);
+    }
+
+    // Client text ends up in these lines, so CR and LF become spaces, as in Redis, and
+    // nothing in it can end the line early; anything beyond ASCII goes out as UTF-8
+    private void writeLine(byte type, String s) {
+        ensureCapacity(s.length() + 3);
+        buf[count++] = type;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                byte[] rest = s.substring(i).replace('\r', ' ').replace('\n', ' ').getBytes(StandardCharsets.UTF_8);
+                ensureCapacity(rest.length + 2);
+                System.arraycopy(rest, 0, buf, count, rest.length);
+                count += rest.length;
+                break;
+            }
+            buf[count++] = c == '\r' || c == '\n' ? (byte) ' ' : (byte) c;
+        }
+        writeCrlf();
+    }
+
+    // A client's argument as error replies quote it: cut to 128 characters, as Redis
+    // does, so one huge argument doesn't come back in full
+    static String quoted(String arg) {
+        return arg.length() <= 128 ? arg : arg.substring(0, 128);
+    }
+
+    public void writeInteger(long value) throws IOException {
+        if (value >= 0 && value < SHARED_HEADERS) {
+            writeRaw(INTEGERS[(int) value]);
+            return;
+        }
+        writePrefixedNumber((byte) ':', value);
+    }
+
+    public void writeArrayHeader(int length) throws IOException {
+        if (length >= 0 && length < SHARED_HEADERS) {
+            writeRaw(ARRAY_HEADERS[length]);
+            return;
+        }
+        writePrefixedNumber((byte) '*', length);
+    }
+
+    public void writeBulkString(byte[] bytes) throws IOException {
+        writeBulkString(bytes, 0, bytes.length);
+    }
+
+    public void writeBulkString(byte[] bytes, int off, int len) throws IOException {
+        writeBulkHeader(len);
+        ensureCapacity(len + 2);
+        System.arraycopy(bytes, off, buf, count, len);
+        count += len;
+        writeCrlf();
+        maybeFlush();
+    }
+
+    // Copies straight out of off-heap memory. Never flushes, so the caller can still
+    // take the reply back with truncate()
+    public void writeBulkString(MemorySegment segment, long offset, int len) throws IOException {
+        writeBulkHeader(len);
+        ensureCapacity(len + 2);
+        MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset, buf, count, len);
+        count += len;
+        writeCrlf();
+    }
+
+    // A number as a bulk string, the way GET returns an integer-encoded value
+    public void writeBulkNumber(long value) throws IOException {
+        if (value >= 0 && value < SHARED_BULK_NUMBERS) {
+            writeRaw(BULK_NUMBERS[(int) value]);
+            return;
+        }
+        writeBulkHeader(decimalLength(value));
+        writeDecimal(value);
+        writeCrlf();
+        maybeFlush();
+    }
+
+    public void writeBulkString(String s) throws IOException {
+        if (s == null) {
+            writeNullBulk();
+            return;
+        }
+        if (!isAscii(s)) {
+            writeBulkString(s.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        writeBulkHeader(s.length());
+        ensureCapacity(s.length() + 2);
+        writeAsciiChars(s);
+        writeCrlf();
+        maybeFlush();
+    }
+
+    // Header alone, for payloads that are not followed by CRLF such as the RDB transfer
+    public void writeBulkHeader(int length) throws IOException {
+        if (length < SHARED_HEADERS) {
+            byte[] header = BULK_HEADERS[length];
+            ensureCapacity(header.length);
+            System.arraycopy(header, 0, buf, count, header.length);
+            count += header.length;
+        } else {
+            writePrefixedNumber((byte) '$', length);
+        }
+    }
+
+    private void writePrefixedNumber(byte prefix, long value) {
+        ensureCapacity(1);
+        buf[count++] = prefix;
+        writeDecimal(value);
+        writeCrlf();
+    }
+
+    // Characters in the decimal form of `value`, minus sign included
+    static int decimalLength(long value) {
+        int length = value < 0 ? 2 : 1;
+        if (value > 0) value = -value;
+        for (long v = value; v <= -10; v /= 10) length++;
+        return length;
+    }
+
+    private void writeDecimal(long value) {
+        ensureCapacity(20);
+        if (value < 0) {
+            buf[count++] = '-';
+        } else {
+            value = -value;
+        }
+        // value is now <= 0; work in negatives so Long.MIN_VALUE needs no special case
+        int digits = 1;
+        for (long v = value; v <= -10; v /= 10) digits++;
+        int end = count + digits;
+        for (int i = end - 1; i >= count; i--) {
+            buf[i] = (byte) ('0' - (value % 10));
+            value /= 10;
+        }
+        count = end;
+    }
+
+    private void writeAsciiChars(String s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            buf[count++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeCrlf() {
+        ensureCapacity(2);
+        buf[count++] = '\r';
+        buf[count++] = '\n';
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // Copies the encoded bytes to `out` without going through an intermediate array
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    // Appends the encoded bytes to another writer, e.g. a reply built off-connection
+    public void writeTo(RespWriter out) throws IOException {
+        out.writeRaw(buf, 0, count);
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    public void reset() {
+        count = 0;
+    }
+
+    // Drops everything written after `size`, as returned by size() earlier
+    public void truncate(int size) {
+        count = size;
+    }
+
+    // Hands all gathered replies to the sink in a single write
+    public void flush() throws IOException {
+        if (sink == null) return;
+        if (count > 0) {
+            sink.write(buf, 0, count);
+            count = 0;
+        }
+        sink.flush();
+        if (buf.length > FLUSH_THRESHOLD) buf = new byte[INITIAL_SIZE];
+    }
+
+    private void maybeFlush() throws IOException {
+        if (sink != null && count >= FLUSH_THRESHOLD) flush();
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(count + extra, buf.length * 2));
+        }
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            if (s.charAt(i) >= 0x80) return false;
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
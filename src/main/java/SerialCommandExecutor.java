@@ -0,0 +1,36 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Every command on one thread: no two commands ever run concurrently, whichever
+// I/O thread they were read on
+class SerialCommandExecutor implements CommandExecutor {
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "command-executor"));
+
+    @Override
+    public void execute(List<RespRequest> batch, RespWriter out, Runnable done) {
+        executor.execute(() -> {
+            try {
+                for (RespRequest command : batch) {
+                    ClientHandler.dispatch(command, out);
+                }
+                out.flush();
+            } catch (IOException e) {
+                Log.warn("IOException running commands: " + e.getMessage());
+            }
+            done.run();
+        });
+    }
+
+    @Override
+    public void executeForKey(ByteKey key, Runnable task) {
+        executor.execute(task);
+    }
+
+    @Override
+    public void executeForKeys(ByteKey[] keys, Runnable task) {
+        executor.execute(task);
+    }
+}
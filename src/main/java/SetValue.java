@@ -0,0 +1,307 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+// The set value. A set of integers is an intset: the values sorted in a primitive
+// int[], or a long[] once one of them needs it, found by binary search. That is 4 or
+// 8 bytes a member where a set of strings costs a table node and an array each. A
+// member that isn't an integer, or growing past Config.setMaxIntsetEntries members,
+// converts the set for good to a BytesMap of members.
+//
+// Only canonical integers count: "12" and "-3", but not "012", "+3" or "-0", which
+// would not print back as they were added.
+//
+// Not thread safe: sets are only changed under the keyspace's per-key lock.
+final class SetValue {
+    private static final int INITIAL_CAPACITY = 4;
+    // Object sizes, as in Keyspace
+    private static final int SET_BYTES = 32;
+
+    // Intset, while table is null: values in ints[0, count), or in longs once widened
+    private int[] ints = new int[INITIAL_CAPACITY];
+    private long[] longs;
+    private int count;
+    private BytesMap<Boolean> table;
+    // Member bytes in the table, value bytes in the intset
+    private long dataBytes;
+
+    int size() {
+        return table != null ? table.size() : count;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    boolean isIntset() {
+        return table == null;
+    }
+
+    long dataBytes() {
+        return dataBytes;
+    }
+
+    long footprint() {
+        if (table != null) return SET_BYTES + table.footprint();
+        return SET_BYTES + (longs != null ? Keyspace.arrayFootprint(longs.length * 8) : Keyspace.arrayFootprint(ints.length * 4));
+    }
+
+    // True if the member is new
+    boolean add(byte[] b, int off, int len) {
+        if (table == null) {
+            if (KeyValue.isCanonicalLong(b, off, len)) return addLong(KeyValue.parseLong(b, off, len));
+            convert();
+        }
+        if (table.put(b, off, len, Boolean.TRUE) != null) return false;
+        dataBytes += len;
+        return true;
+    }
+
+    // Keeps `member` itself if it goes into the table: nobody may change it afterwards
+    boolean add(byte[] member) {
+        if (table == null) return add(member, 0, member.length);
+        if (table.containsKey(member, 0, member.length)) return false;
+        table.putNew(member, Boolean.TRUE);
+        dataBytes += member.length;
+        return true;
+    }
+
+    boolean addLong(long value) {
+        if (table != null) return add(format(value));
+        int i = search(value);
+        if (i >= 0) return false;
+        if (count + 1 > Config.setMaxIntsetEntries) {
+            convert();
+            return add(format(value));
+        }
+        if (longs == null && (int) value != value) widen();
+        insertAt(-i - 1, value);
+        return true;
+    }
+
+    // True if it was a member
+    boolean remove(byte[] b, int off, int len) {
+        if (table != null) {
+            if (table.remove(b, off, len) == null) return false;
+            dataBytes -= len;
+            return true;
+        }
+        if (!KeyValue.isCanonicalLong(b, off, len)) return false;
+        int i = search(KeyValue.parseLong(b, off, len));
+        if (i < 0) return false;
+        if (longs != null) {
+            System.arraycopy(longs, i + 1, longs, i, count - i - 1);
+        } else {
+            System.arraycopy(ints, i + 1, ints, i, count - i - 1);
+        }
+        count--;
+        dataBytes -= width();
+        return true;
+    }
+
+    boolean contains(byte[] b, int off, int len) {
+        if (table != null) return table.containsKey(b, off, len);
+        return KeyValue.isCanonicalLong(b, off, len) && search(KeyValue.parseLong(b, off, len)) >= 0;
+    }
+
+    boolean containsLong(long value) {
+        if (table != null) {
+            byte[] member = format(value);
+            return table.containsKey(member, 0, member.length);
+        }
+        return search(value) >= 0;
+    }
+
+    // All members as a set reply, an array in RESP2; an intset's come out in ascending order
+    void writeMembers(RespWriter out) throws IOException {
+        out.writeSetHeader(size());
+        if (table == null) {
+            for (int i = 0; i < count; i++) out.writeBulkNumber(valueAt(i));
+            return;
+        }
+        try {
+            table.forEach((member, present) -> {
+                try {
+                    out.writeBulkString(member);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Members of the table as they are, those of an intset as fresh decimal strings
+    void forEach(Consumer<byte[]> action) {
+        if (table == null) {
+            for (int i = 0; i < count; i++) action.accept(format(valueAt(i)));
+        } else {
+            table.forEach((member, present) -> action.accept(member));
+        }
+    }
+
+    // One SSCAN step (see BytesMap.scan). An intset goes in one step.
+    long scan(long cursor, int count, Consumer<byte[]> action) {
+        if (table != null) return table.scan(cursor, count, (member, present) -> action.accept(member));
+        forEach(action);
+        return 0;
+    }
+
+    // --- set algebra, for SINTER, SUNION and SDIFF ---
+
+    // A copy to build a result from. Members are immutable, so a table copy shares them.
+    SetValue copy() {
+        SetValue copy = new SetValue();
+        if (table == null) {
+            copy.ints = ints != null ? Arrays.copyOf(ints, count) : null;
+            copy.longs = longs != null ? Arrays.copyOf(longs, count) : null;
+            copy.count = count;
+        } else {
+            copy.table = new BytesMap<>();
+            table.forEach((member, present) -> copy.table.putNew(member, Boolean.TRUE));
+        }
+        copy.dataBytes = dataBytes;
+        return copy;
+    }
+
+    // Keeps only the members `other` has, probing it once for each of ours
+    void retainAll(SetValue other) {
+        if (table == null) {
+            filterIntset(other, true);
+        } else {
+            table.removeIf(member -> {
+                boolean drop = !other.contains(member, 0, member.length);
+                if (drop) dataBytes -= member.length;
+                return drop;
+            });
+        }
+    }
+
+    // Drops the members `other` has, walking whichever of the two sets is smaller
+    void removeAll(SetValue other) {
+        if (table == null) {
+            filterIntset(other, false);
+        } else if (other.size() < size()) {
+            other.forEach(member -> remove(member, 0, member.length));
+        } else {
+            table.removeIf(member -> {
+                boolean drop = other.contains(member, 0, member.length);
+                if (drop) dataBytes -= member.length;
+                return drop;
+            });
+        }
+    }
+
+    void addAll(SetValue other) {
+        if (table == null && other.table == null) {
+            mergeIntset(other);
+        } else {
+            other.forEach(this::add);
+        }
+    }
+
+    // --- intset ---
+
+    private long valueAt(int i) {
+        return longs != null ? longs[i] : ints[i];
+    }
+
+    private int width() {
+        return longs != null ? 8 : 4;
+    }
+
+    // Index of the value, or -(insertion point) - 1
+    private int search(long value) {
+        if (longs != null) return Arrays.binarySearch(longs, 0, count, value);
+        if ((int) value != value) return value < 0 ? -1 : -count - 1;
+        return Arrays.binarySearch(ints, 0, count, (int) value);
+    }
+
+    private void insertAt(int i, long value) {
+        if (longs != null) {
+            if (count == longs.length) longs = Arrays.copyOf(longs, Math.max(count * 2, INITIAL_CAPACITY));
+            System.arraycopy(longs, i, longs, i + 1, count - i);
+            longs[i] = value;
+        } else {
+            if (count == ints.length) ints = Arrays.copyOf(ints, Math.max(count * 2, INITIAL_CAPACITY));
+            System.arraycopy(ints, i, ints, i + 1, count - i);
+            ints[i] = (int) value;
+        }
+        count++;
+        dataBytes += width();
+    }
+
+    private void widen() {
+        longs = new long[Math.max(ints.length, INITIAL_CAPACITY)];
+        for (int i = 0; i < count; i++) longs[i] = ints[i];
+        ints = null;
+        dataBytes = (long) count * 8;
+    }
+
+    // Keeps the values that `other` has (keep) or hasn't (!keep), in place
+    private void filterIntset(SetValue other, boolean keep) {
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            long value = valueAt(i);
+            if (other.containsLong(value) != keep) continue;
+            if (longs != null) {
+                longs[kept++] = value;
+            } else {
+                ints[kept++] = (int) value;
+            }
+        }
+        count = kept;
+        dataBytes = (long) count * width();
+    }
+
+    // Union of two intsets as one linear merge of the sorted arrays
+    private void mergeIntset(SetValue other) {
+        boolean wide = longs != null || other.longs != null;
+        long[] merged = new long[count + other.count];
+        int i = 0, j = 0, n = 0;
+        while (i < count || j < other.count) {
+            long a = i < count ? valueAt(i) : Long.MAX_VALUE;
+            long b = j < other.count ? other.valueAt(j) : Long.MAX_VALUE;
+            if (i < count && (j == other.count || a <= b)) {
+                merged[n++] = a;
+                i++;
+                if (j < other.count && a == b) j++;
+            } else {
+                merged[n++] = b;
+                j++;
+            }
+        }
+        if (wide) {
+            longs = merged;
+            ints = null;
+        } else {
+            ints = new int[Math.max(n, INITIAL_CAPACITY)];
+            for (int k = 0; k < n; k++) ints[k] = (int) merged[k];
+        }
+        count = n;
+        dataBytes = (long) count * width();
+        if (count > Config.setMaxIntsetEntries) convert();
+    }
+
+    private void convert() {
+        BytesMap<Boolean> converted = new BytesMap<>();
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] member = format(valueAt(i));
+            converted.putNew(member, Boolean.TRUE);
+            bytes += member.length;
+        }
+        table = converted;
+        dataBytes = bytes;
+        ints = null;
+        longs = null;
+        count = 0;
+    }
+
+    private static byte[] format(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+    }
+}
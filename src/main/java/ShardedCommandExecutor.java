@@ -0,0 +1,259 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Shared-nothing execution: the keyspace is split into N shards by key hash and each
+// shard is owned by one thread with a plain HashMap. Single-key commands are sent to
+// the owning shard through its lock-free inbox; keyspace-wide commands such as KEYS
+// run on every shard and the partial results are merged. Keyless commands go to
+// shard 0.
+//
+// Each command of a batch replies into its own buffer; whichever shard finishes the
+// batch last copies the buffers to the connection in request order, running any
+// connection-bound command (PSYNC) at its place in that sequence. Every shard
+// processes its inbox in FIFO order, so commands of one connection that touch the
+// same shard still run in the order they were sent.
+//
+// A command over keys of several shards (SINTER and the like) runs on the lowest of
+// them while the others wait at a barrier, so it can use their keyspaces directly.
+// Its barrier tasks reach all those inboxes under one lock: any two such commands
+// are queued in the same order on every shard and can never wait on each other.
+class ShardedCommandExecutor implements CommandExecutor {
+    private final Shard[] shards;
+
+    ShardedCommandExecutor(int shardCount) {
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+            shards[i].start();
+        }
+    }
+
+    @Override
+    public void execute(List<RespRequest> batch, RespWriter out, Runnable done) {
+        RespWriter[] replies = new RespWriter[batch.size()];
+        int routed = 0;
+        for (RespRequest command : batch) {
+            if (!ClientHandler.isConnectionBound(command.commandName())) routed++;
+        }
+        AtomicInteger pending = new AtomicInteger(routed);
+        Runnable finish = () -> {
+            try {
+                for (int i = 0; i < replies.length; i++) {
+                    if (replies[i] != null) {
+                        replies[i].writeTo(out);
+                    } else {
+                        // Runs here, in order, once everything before it has replied
+                        ClientHandler.dispatch(batch.get(i), out);
+                    }
+                }
+                out.flush();
+            } catch (IOException e) {
+                Log.warn("IOException running commands: " + e.getMessage());
+            }
+            done.run();
+        };
+        Runnable finishOne = () -> {
+            if (pending.decrementAndGet() == 0) finish.run();
+        };
+
+        for (int i = 0; i < replies.length; i++) {
+            RespRequest command = batch.get(i);
+            String name = command.commandName();
+            if (ClientHandler.isConnectionBound(name)) continue;
+            RespWriter reply = replies[i] = out.scratch();
+
+            // A malformed one just gets its error from shard 0 below
+            if (ClientHandler.isKeyspaceWide(name) && command.size() == 2) {
+                fanOutKeys(command, reply, finishOne);
+                continue;
+            }
+
+            ByteKey[] keys = ClientHandler.multiKeys(command);
+            if (keys != null) {
+                executeForKeys(keys, () -> {
+                    try {
+                        ClientHandler.dispatch(command, reply);
+                    } catch (IOException e) {
+                        // replies go to an in-memory buffer
+                    }
+                    finishOne.run();
+                });
+                continue;
+            }
+
+            int keyIndex = ClientHandler.firstKeyIndex(command);
+            Shard shard = keyIndex > 0 && keyIndex < command.size()
+                    ? shards[shardIndex(ByteKey.hash(command.array(), command.offset(keyIndex), command.length(keyIndex)))]
+                    : name.equals("SCAN") ? shards[ClientHandler.scanShard(command, shards.length)]
+                    : shards[0];
+            shard.submit(() -> {
+                try {
+                    ClientHandler.dispatch(command, reply);
+                } catch (IOException e) {
+                    // replies go to an in-memory buffer
+                }
+                finishOne.run();
+            });
+        }
+        if (routed == 0) shards[0].submit(finish);
+    }
+
+    // KEYS: every shard encodes its own matching keys, the last one to finish writes
+    // the header for all of them and appends their parts
+    private void fanOutKeys(RespRequest command, RespWriter reply, Runnable finishOne) {
+        RespWriter[] parts = new RespWriter[shards.length];
+        int[] counts = new int[shards.length];
+        AtomicInteger remaining = new AtomicInteger(shards.length);
+
+        for (int i = 0; i < shards.length; i++) {
+            int index = i;
+            shards[i].submit(() -> {
+                RespWriter part = new RespWriter();
+                counts[index] = ClientHandler.collectKeys(command, part);
+                parts[index] = part;
+                if (remaining.decrementAndGet() != 0) return;
+
+                int total = 0;
+                for (int count : counts) total += count;
+                try {
+                    reply.writeArrayHeader(total);
+                    for (RespWriter p : parts) p.writeTo(reply);
+                } catch (IOException e) {
+                    // replies go to an in-memory buffer
+                }
+                finishOne.run();
+            });
+        }
+    }
+
+    @Override
+    public void executeForKey(ByteKey key, Runnable task) {
+        shards[shardIndex(key.hashCode())].submit(task);
+    }
+
+    @Override
+    public void executeForKeys(ByteKey[] keys, Runnable task) {
+        boolean[] involved = new boolean[shards.length];
+        int count = 0;
+        int lowest = shards.length;
+        for (ByteKey key : keys) {
+            int i = shardIndex(key.hashCode());
+            if (involved[i]) continue;
+            involved[i] = true;
+            count++;
+            lowest = Math.min(lowest, i);
+        }
+        if (count <= 1) {
+            shards[count == 0 ? 0 : lowest].submit(task);
+            return;
+        }
+
+        CountDownLatch arrived = new CountDownLatch(count - 1);
+        CountDownLatch finished = new CountDownLatch(1);
+        synchronized (this) {
+            for (int i = 0; i < shards.length; i++) {
+                if (!involved[i]) continue;
+                if (i == lowest) {
+                    shards[i].submit(() -> {
+                        awaitUninterruptibly(arrived);
+                        try {
+                            task.run();
+                        } finally {
+                            finished.countDown();
+                        }
+                    });
+                } else {
+                    shards[i].submit(() -> {
+                        arrived.countDown();
+                        awaitUninterruptibly(finished);
+                    });
+                }
+            }
+        }
+    }
+
+    int shardCount() {
+        return shards.length;
+    }
+
+    // The keyspace of the shard owning `key`
+    Keyspace keyspaceFor(ByteKey key) {
+        return shards[shardIndex(key.hashCode())].keyspace;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private int shardIndex(int hash) {
+        return (hash & 0x7fffffff) % shards.length;
+    }
+
+    static class Shard extends Thread {
+        final Keyspace keyspace = new Keyspace(new HashMap<>());
+        // The keyspace commands on this thread use: its own, except while a transaction
+        // running here runs a command for a key of another shard, waiting meanwhile
+        Keyspace current = keyspace;
+        // Multi-producer (every I/O thread), single-consumer (this shard)
+        private final Queue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+        private volatile boolean sleeping;
+
+        Shard(int index) {
+            super("shard-" + index);
+            setDaemon(true);
+        }
+
+        void submit(Runnable task) {
+            inbox.add(task);
+            if (sleeping) LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            // The shard expires its own keys between tasks, as no other thread may touch them
+            long nextExpireCycle = System.nanoTime() + Keyspace.ACTIVE_EXPIRE_PERIOD_NANOS;
+            while (true) {
+                long now = System.nanoTime();
+                if (now - nextExpireCycle >= 0) {
+                    try {
+                        keyspace.activeExpireCycle();
+                    } catch (RuntimeException e) {
+                        Log.error("Error in " + getName(), e);
+                    }
+                    nextExpireCycle = now + Keyspace.ACTIVE_EXPIRE_PERIOD_NANOS;
+                }
+
+                Runnable task = inbox.poll();
+                if (task != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Log.error("Error in " + getName(), e);
+                    }
+                    continue;
+                }
+                // Announce we're about to sleep, then re-check so a concurrent submit
+                // either sees the flag and unparks us or is picked up by the re-check
+                sleeping = true;
+                if (inbox.isEmpty()) LockSupport.parkNanos(this, nextExpireCycle - System.nanoTime());
+                sleeping = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+// The ordered half of a large sorted set, after Redis' zskiplist: members sorted by
+// score, then by their bytes, with each forward link remembering how many elements it
+// jumps over. Summing those spans along a search path gives an element's rank, and
+// following them finds the element at a rank, both in O(log n).
+//
+// Three nodes in four only have level 0, whose links always span one element, so a
+// node keeps that link in a field and only allocates arrays for the levels above it.
+//
+// Not thread safe: sorted sets are only changed under the keyspace's per-key lock.
+final class SkipList {
+    private static final int MAX_LEVEL = 32;
+    // Object sizes, as in Keyspace
+    private static final int LIST_BYTES = 40;
+    private static final int NODE_BYTES = 40;
+
+    static final class Node {
+        // Shared with the member index, which accounts for it
+        final byte[] member;
+        double score;
+        Node backward;
+        Node next;
+        // Levels 1 and up: the next node at level i + 1, and how many elements that
+        // link moves ahead by. Null for a node of level 1.
+        final Node[] upper;
+        final int[] span;
+
+        Node(int level, double score, byte[] member) {
+            this.member = member;
+            this.score = score;
+            this.upper = level > 1 ? new Node[level - 1] : null;
+            this.span = level > 1 ? new int[level - 1] : null;
+        }
+
+        int level() {
+            return upper == null ? 1 : upper.length + 1;
+        }
+
+        Node forward(int i) {
+            return i == 0 ? next : upper[i - 1];
+        }
+
+        int span(int i) {
+            return i == 0 ? 1 : span[i - 1];
+        }
+
+        void setForward(int i, Node node) {
+            if (i == 0) {
+                next = node;
+            } else {
+                upper[i - 1] = node;
+            }
+        }
+
+        void setSpan(int i, int span) {
+            if (i > 0) this.span[i - 1] = span;
+        }
+
+        Node next() {
+            return next;
+        }
+
+        Node previous() {
+            return backward;
+        }
+    }
+
+    private final Node header = new Node(MAX_LEVEL, 0, null);
+    private int level = 1;
+    private int size;
+    private long footprint = LIST_BYTES + nodeFootprint(MAX_LEVEL) + 2 * Keyspace.arrayFootprint(MAX_LEVEL * 4);
+    // Search paths, reused by every insert and delete
+    private final Node[] update = new Node[MAX_LEVEL];
+    private final int[] rank = new int[MAX_LEVEL];
+
+    int size() {
+        return size;
+    }
+
+    // Heap taken by the list and its nodes, not counting the members
+    long footprint() {
+        return footprint;
+    }
+
+    Node insert(double score, byte[] member) {
+        Node node = new Node(randomLevel(), score, member);
+        footprint += nodeFootprint(node.level());
+        link(node);
+        return node;
+    }
+
+    // Moves a node to its new score, in place when that keeps the order
+    void updateScore(Node node, double score) {
+        if ((node.backward == null || precedes(node.backward, score, node.member))
+                && (node.next == null || !precedes(node.next, score, node.member))) {
+            node.score = score;
+            return;
+        }
+        unlink(node);
+        node.score = score;
+        link(node);
+    }
+
+    void delete(Node node) {
+        unlink(node);
+        footprint -= nodeFootprint(node.level());
+    }
+
+    // 0-based rank of a node in the list
+    int rankOf(Node node) {
+        Node x = header;
+        int traversed = 0;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward(i) != null && !precedes(node, x.forward(i).score, x.forward(i).member)) {
+                traversed += x.span(i);
+                x = x.forward(i);
+            }
+            if (x == node) return traversed - 1;
+        }
+        throw new IllegalStateException("node is not in the list");
+    }
+
+    // Elements scoring below `score`, or at most `score` when inclusive
+    int countBelow(double score, boolean inclusive) {
+        Node x = header;
+        int traversed = 0;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward(i) != null && (inclusive ? x.forward(i).score <= score : x.forward(i).score < score)) {
+                traversed += x.span(i);
+                x = x.forward(i);
+            }
+        }
+        return traversed;
+    }
+
+    // Elements whose member sorts below `member`, or at most `member` when inclusive.
+    // Only meaningful when all scores are equal, as for ZRANGE BYLEX.
+    int countBelowLex(byte[] member, boolean inclusive) {
+        Node x = header;
+        int traversed = 0;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward(i) != null) {
+                int cmp = Arrays.compareUnsigned(x.forward(i).member, member);
+                if (inclusive ? cmp > 0 : cmp >= 0) break;
+                traversed += x.span(i);
+                x = x.forward(i);
+            }
+        }
+        return traversed;
+    }
+
+    // 0 <= index < size
+    Node nodeAt(int index) {
+        Node x = header;
+        int traversed = 0;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward(i) != null && traversed + x.span(i) <= index + 1) {
+                traversed += x.span(i);
+                x = x.forward(i);
+            }
+            if (traversed == index + 1) return x;
+        }
+        throw new IndexOutOfBoundsException(index);
+    }
+
+    private void link(Node node) {
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            rank[i] = i == level - 1 ? 0 : rank[i + 1];
+            while (x.forward(i) != null && precedes(x.forward(i), node.score, node.member)) {
+                rank[i] += x.span(i);
+                x = x.forward(i);
+            }
+            update[i] = x;
+        }
+        int nodeLevel = node.level();
+        if (nodeLevel > level) {
+            for (int i = level; i < nodeLevel; i++) {
+                rank[i] = 0;
+                update[i] = header;
+                header.setSpan(i, size);
+            }
+            level = nodeLevel;
+        }
+        for (int i = 0; i < nodeLevel; i++) {
+            node.setForward(i, update[i].forward(i));
+            update[i].setForward(i, node);
+            node.setSpan(i, update[i].span(i) - (rank[0] - rank[i]));
+            update[i].setSpan(i, rank[0] - rank[i] + 1);
+        }
+        for (int i = nodeLevel; i < level; i++) update[i].setSpan(i, update[i].span(i) + 1);
+
+        node.backward = update[0] == header ? null : update[0];
+        if (node.next != null) node.next.backward = node;
+        size++;
+    }
+
+    private void unlink(Node node) {
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward(i) != null && precedes(x.forward(i), node.score, node.member)) {
+                x = x.forward(i);
+            }
+            update[i] = x;
+        }
+        for (int i = 0; i < level; i++) {
+            if (update[i].forward(i) == node) {
+                update[i].setSpan(i, update[i].span(i) + node.span(i) - 1);
+                update[i].setForward(i, node.forward(i));
+            } else {
+                update[i].setSpan(i, update[i].span(i) - 1);
+            }
+        }
+        if (node.next != null) node.next.backward = node.backward;
+        while (level > 1 && header.forward(level - 1) == null) level--;
+        size--;
+    }
+
+    // Whether `node` sorts before the element (score, member)
+    private static boolean precedes(Node node, double score, byte[] member) {
+        return node.score < score || (node.score == score && Arrays.compareUnsigned(node.member, member) < 0);
+    }
+
+    // Level n with probability 3/4^n: each pair of trailing zero bits is one more
+    private static int randomLevel() {
+        return Math.min(MAX_LEVEL, Integer.numberOfTrailingZeros(ThreadLocalRandom.current().nextInt()) / 2 + 1);
+    }
+
+    private static long nodeFootprint(int level) {
+        return NODE_BYTES + (level > 1 ? 2 * Keyspace.arrayFootprint((level - 1) * 4) : 0);
+    }
+}
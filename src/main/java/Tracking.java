@@ -0,0 +1,469 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// CLIENT TRACKING, server-assisted client-side caching. A client with tracking on may
+// keep what it reads, and is sent an invalidation naming a key once the key changes:
+// written, deleted, expired or evicted. That is a RESP3 push frame, or for a RESP2
+// client a pub/sub message on __redis__:invalidate to the connection it redirects
+// invalidations to, which goes out through that connection's PubSub.Subscriber.
+//
+// In the default mode the server remembers who read what, in a table from a 64-bit
+// hash of the key to the ids of the clients that read it. A change sends the key to
+// them and forgets the entry until they read the key again. Hashes keep the table
+// small and free of key copies; two keys sharing one only cost a needless
+// invalidation. The table has a memory cap of its own (Config.trackingTableMaxMemory):
+// once over it, it is emptied and every default-mode client is told to drop its whole
+// cache with a null invalidation.
+//
+// In BCAST mode nothing is remembered per read: a client names key prefixes, the
+// empty one for all keys, and hears of every change to a key starting with one. The
+// prefixes are indexed by length, like PubSub's patterns.
+//
+// Keyspace reports every change through keyChanged(), on the thread making it; while
+// no client has tracking on, that is one volatile read.
+final class Tracking {
+    private static final byte[] INVALIDATE = bytes("invalidate");
+    private static final byte[] MESSAGE = bytes("message");
+    private static final byte[] CHANNEL = bytes("__redis__:invalidate");
+
+    // A connection's tracking options, replaced whole by another CLIENT TRACKING ON
+    static final class Client {
+        final PubSub.Subscriber subscriber;
+        // Who gets the invalidations: this connection, or the one with this id
+        final long redirect;
+        final boolean bcast;
+        final ByteKey[] prefixes;
+
+        private Client(PubSub.Subscriber subscriber, long redirect, boolean bcast, ByteKey[] prefixes) {
+            this.subscriber = subscriber;
+            this.redirect = redirect;
+            this.bcast = bcast;
+            this.prefixes = prefixes;
+        }
+    }
+
+    // Power of two; a stripe is picked by the top bits of the hash, a slot by the low ones
+    private static final int STRIPES = 64;
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Open addressing with linear probing; hash 0 marks a free slot. Each entry's ids
+    // are an array of their own, usually of one.
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        long[] hashes = new long[INITIAL_CAPACITY];
+        long[][] ids = new long[INITIAL_CAPACITY][];
+        int count;
+        long bytes = tableBytes(INITIAL_CAPACITY);
+    }
+
+    private static final Stripe[] stripes = new Stripe[STRIPES];
+    private static final AtomicLong tableBytes = new AtomicLong();
+    private static final ReentrantLock flushLock = new ReentrantLock();
+
+    // Tracking clients by id; enabled counts them so keyChanged() can return early
+    private static final Map<Long, Client> clients = new ConcurrentHashMap<>();
+    private static final AtomicInteger enabled = new AtomicInteger();
+
+    // BCAST clients by prefix, and the distinct prefix lengths, ascending; the counts
+    // per length are only used under prefixLock
+    private static final ReentrantLock prefixLock = new ReentrantLock();
+    private static final Map<ByteKey, Set<Client>> byPrefix = new ConcurrentHashMap<>();
+    private static volatile int[] prefixLengths = new int[0];
+    private static final TreeMap<Integer, Integer> prefixLengthCounts = new TreeMap<>();
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+            tableBytes.addAndGet(stripes[i].bytes);
+        }
+    }
+
+    private Tracking() {}
+
+    // --- on the connection's thread ---
+
+    // CLIENT ID and CLIENT TRACKING ON|OFF [REDIRECT id] [BCAST] [PREFIX prefix ...]
+    static void handleClient(PubSub.Subscriber subscriber, RespRequest args, RespWriter out) throws IOException {
+        String subcommand = args.size() >= 2 ? args.getString(1).toUpperCase() : "";
+        switch (subcommand) {
+            case "ID":
+                out.writeInteger(subscriber.id);
+                return;
+            case "TRACKING":
+                break;
+            default:
+                if (args.size() < 2) {
+                    out.writeError("ERR wrong number of arguments for 'client' command");
+                } else {
+                    out.writeError("ERR unknown subcommand '" + RespWriter.quoted(args.getString(1)) + "'");
+                }
+                return;
+        }
+        if (args.size() < 3) {
+            out.writeError("ERR wrong number of arguments for 'client|tracking' command");
+            return;
+        }
+        boolean on = args.equalsIgnoreCase(2, "ON");
+        if (!on && !args.equalsIgnoreCase(2, "OFF")) {
+            out.writeRaw(RespWriter.ERR_SYNTAX);
+            return;
+        }
+        long redirect = 0;
+        boolean bcast = false;
+        ByteKey[] prefixes = new ByteKey[0];
+        for (int i = 3; i < args.size(); i++) {
+            if (args.equalsIgnoreCase(i, "BCAST")) {
+                bcast = true;
+            } else if (args.equalsIgnoreCase(i, "REDIRECT") && i + 1 < args.size()) {
+                try {
+                    redirect = args.getLong(++i);
+                } catch (NumberFormatException e) {
+                    out.writeRaw(RespWriter.ERR_NOT_INTEGER);
+                    return;
+                }
+            } else if (args.equalsIgnoreCase(i, "PREFIX") && i + 1 < args.size()) {
+                prefixes = Arrays.copyOf(prefixes, prefixes.length + 1);
+                prefixes[prefixes.length - 1] = args.getKey(++i);
+            } else {
+                out.writeRaw(RespWriter.ERR_SYNTAX);
+                return;
+            }
+        }
+
+        if (!on) {
+            off(subscriber);
+            out.writeOk();
+            return;
+        }
+        if (prefixes.length > 0 && !bcast) {
+            out.writeError("ERR PREFIX option requires BCAST mode to be enabled");
+            return;
+        }
+        if (redirect != 0 && redirect != subscriber.id && PubSub.byId(redirect) == null) {
+            out.writeError("ERR The client ID you want redirect to does not exist");
+            return;
+        }
+        if (bcast && prefixes.length == 0) prefixes = new ByteKey[] {new ByteKey(new byte[0])};
+
+        off(subscriber);
+        subscriber.setResp3(out.isResp3());
+        Client client = new Client(subscriber, redirect == subscriber.id ? 0 : redirect, bcast, prefixes);
+        clients.put(subscriber.id, client);
+        enabled.incrementAndGet();
+        if (bcast) {
+            for (ByteKey prefix : prefixes) addPrefix(prefix, client);
+        }
+        subscriber.tracking = client;
+        out.writeOk();
+    }
+
+    // Turns the connection's tracking off, if it was on. What the table still holds for
+    // it is skipped when the keys change.
+    static void off(PubSub.Subscriber subscriber) {
+        Client client = subscriber.tracking;
+        if (client == null) return;
+        subscriber.tracking = null;
+        clients.remove(subscriber.id, client);
+        enabled.decrementAndGet();
+        if (client.bcast) {
+            for (ByteKey prefix : client.prefixes) removePrefix(prefix, client);
+        }
+    }
+
+    // The client whose reads are to be remembered, if the connection tracks in the
+    // default mode, for RespRequest.tracking
+    static Client readsTracked(PubSub.Subscriber subscriber) {
+        if (subscriber == null) return null;
+        Client client = subscriber.tracking;
+        return client == null || client.bcast ? null : client;
+    }
+
+    private static void addPrefix(ByteKey prefix, Client client) {
+        prefixLock.lock();
+        try {
+            Set<Client> group = byPrefix.get(prefix);
+            if (group == null) {
+                group = ConcurrentHashMap.newKeySet();
+                byPrefix.put(prefix, group);
+                prefixLengthCounts.merge(prefix.length(), 1, Integer::sum);
+                updatePrefixLengths();
+            }
+            group.add(client);
+        } finally {
+            prefixLock.unlock();
+        }
+    }
+
+    private static void removePrefix(ByteKey prefix, Client client) {
+        prefixLock.lock();
+        try {
+            Set<Client> group = byPrefix.get(prefix);
+            if (group == null || !group.remove(client) || !group.isEmpty()) return;
+            byPrefix.remove(prefix);
+            if (prefixLengthCounts.merge(prefix.length(), -1, Integer::sum) == 0) {
+                prefixLengthCounts.remove(prefix.length());
+            }
+            updatePrefixLengths();
+        } finally {
+            prefixLock.unlock();
+        }
+    }
+
+    private static void updatePrefixLengths() {
+        int[] lengths = new int[prefixLengthCounts.size()];
+        int i = 0;
+        for (int length : prefixLengthCounts.keySet()) lengths[i++] = length;
+        prefixLengths = lengths;
+    }
+
+    // --- on the thread running the command ---
+
+    // Before a tracked read of `key`, so that a change made while it reads is sent
+    // too: at worst the client drops a value it just got
+    static void remember(ByteKey key, Client client) {
+        long hash = hash(key);
+        Stripe stripe = stripes[(int) (hash >>> 58)];
+        long id = client.subscriber.id;
+        long grown;
+        stripe.lock.lock();
+        try {
+            long before = stripe.bytes;
+            int mask = stripe.hashes.length - 1;
+            int slot = (int) hash & mask;
+            while (stripe.hashes[slot] != 0 && stripe.hashes[slot] != hash) slot = (slot + 1) & mask;
+            if (stripe.hashes[slot] == hash) {
+                long[] ids = stripe.ids[slot];
+                for (long existing : ids) {
+                    if (existing == id) return;
+                }
+                long[] added = Arrays.copyOf(ids, ids.length + 1);
+                added[ids.length] = id;
+                stripe.ids[slot] = added;
+                stripe.bytes += idsBytes(added.length) - idsBytes(ids.length);
+            } else {
+                stripe.hashes[slot] = hash;
+                stripe.ids[slot] = new long[] {id};
+                stripe.bytes += idsBytes(1);
+                if (++stripe.count * 4 > stripe.hashes.length * 3) grow(stripe);
+            }
+            grown = stripe.bytes - before;
+        } finally {
+            stripe.lock.unlock();
+        }
+        long max = Config.trackingTableMaxMemory;
+        if (tableBytes.addAndGet(grown) > max && max > 0) flush();
+    }
+
+    private static void grow(Stripe stripe) {
+        long[] hashes = stripe.hashes;
+        long[][] ids = stripe.ids;
+        int capacity = hashes.length * 2;
+        int mask = capacity - 1;
+        stripe.hashes = new long[capacity];
+        stripe.ids = new long[capacity][];
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] == 0) continue;
+            int slot = (int) hashes[i] & mask;
+            while (stripe.hashes[slot] != 0) slot = (slot + 1) & mask;
+            stripe.hashes[slot] = hashes[i];
+            stripe.ids[slot] = ids[i];
+        }
+        stripe.bytes += tableBytes(capacity) - tableBytes(hashes.length);
+    }
+
+    // The ids that read the key since it last changed, taken out of the table
+    private static long[] take(long hash) {
+        Stripe stripe = stripes[(int) (hash >>> 58)];
+        long shrunk;
+        long[] taken;
+        stripe.lock.lock();
+        try {
+            int mask = stripe.hashes.length - 1;
+            int slot = (int) hash & mask;
+            while (stripe.hashes[slot] != hash) {
+                if (stripe.hashes[slot] == 0) return null;
+                slot = (slot + 1) & mask;
+            }
+            taken = stripe.ids[slot];
+            shrunk = idsBytes(taken.length);
+            stripe.bytes -= shrunk;
+            stripe.count--;
+            // Backward shift: pull later entries of the run into the gap, so probing
+            // never needs tombstones
+            int gap = slot;
+            for (int next = (gap + 1) & mask; stripe.hashes[next] != 0; next = (next + 1) & mask) {
+                int home = (int) stripe.hashes[next] & mask;
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    stripe.hashes[gap] = stripe.hashes[next];
+                    stripe.ids[gap] = stripe.ids[next];
+                    gap = next;
+                }
+            }
+            stripe.hashes[gap] = 0;
+            stripe.ids[gap] = null;
+        } finally {
+            stripe.lock.unlock();
+        }
+        tableBytes.addAndGet(-shrunk);
+        return taken;
+    }
+
+    // Empties the table and tells every default-mode client to drop all it cached
+    private static void flush() {
+        if (!flushLock.tryLock()) return;
+        try {
+            long max = Config.trackingTableMaxMemory;
+            if (max <= 0 || tableBytes.get() <= max) return;
+            for (Stripe stripe : stripes) {
+                long freed;
+                stripe.lock.lock();
+                try {
+                    freed = stripe.bytes - tableBytes(INITIAL_CAPACITY);
+                    stripe.hashes = new long[INITIAL_CAPACITY];
+                    stripe.ids = new long[INITIAL_CAPACITY][];
+                    stripe.count = 0;
+                    stripe.bytes = tableBytes(INITIAL_CAPACITY);
+                } finally {
+                    stripe.lock.unlock();
+                }
+                tableBytes.addAndGet(-freed);
+            }
+            Log.warn("Tracking table over " + max + " bytes, flushed");
+            Messages all = new Messages(null);
+            for (Client client : clients.values()) {
+                if (!client.bcast) all.send(client);
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    // --- any thread ---
+
+    // After `key` was written, deleted, expired or evicted
+    static void keyChanged(ByteKey key) {
+        if (enabled.get() == 0) return;
+        Messages messages = new Messages(key.bytes());
+        long[] ids = take(hash(key));
+        if (ids != null) {
+            for (long id : ids) {
+                Client client = clients.get(id);
+                if (client != null && !client.bcast) messages.send(client);
+            }
+        }
+        byte[] name = key.bytes();
+        for (int length : prefixLengths) {
+            if (length > name.length) break;
+            Set<Client> group = byPrefix.get(length == name.length ? key : new ByteKey(Arrays.copyOf(name, length)));
+            if (group == null) continue;
+            for (Client client : group) messages.send(client);
+        }
+    }
+
+    // INFO
+    static int clientCount() {
+        return clients.size();
+    }
+
+    static long tableBytes() {
+        return tableBytes.get();
+    }
+
+    static long trackedKeys() {
+        long keys = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                keys += stripe.count;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return keys;
+    }
+
+    // One invalidation, encoded at most once per form it is sent in: a push for a
+    // RESP3 client, a pub/sub message for a RESP2 one. A null key invalidates all.
+    private static final class Messages {
+        private final byte[] key;
+        private byte[] push;
+        private byte[] message;
+
+        Messages(byte[] key) {
+            this.key = key;
+        }
+
+        void send(Client client) {
+            PubSub.Subscriber target = client.redirect == 0 ? client.subscriber : PubSub.byId(client.redirect);
+            if (target == null) return;
+            if (target.isResp3()) {
+                if (push == null) push = encode(true);
+                target.send(push);
+            } else if (target.isSubscribed()) {
+                if (message == null) message = encode(false);
+                target.send(message);
+            }
+        }
+
+        private byte[] encode(boolean resp3) {
+            RespWriter encoded = new RespWriter();
+            encoded.setProtocol(resp3 ? 3 : 2);
+            try {
+                if (resp3) {
+                    encoded.writePushHeader(2);
+                    encoded.writeBulkString(INVALIDATE);
+                } else {
+                    encoded.writeArrayHeader(3);
+                    encoded.writeBulkString(MESSAGE);
+                    encoded.writeBulkString(CHANNEL);
+                }
+                if (key == null) {
+                    encoded.writeNullArray();
+                } else {
+                    encoded.writeArrayHeader(1);
+                    encoded.writeBulkString(key);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Encoding into a memory buffer cannot fail", e);
+            }
+            return encoded.toByteArray();
+        }
+    }
+
+    // FNV-1a, then MurmurHash3's finalizer so the top bits are as good as the low ones.
+    // Never 0, which marks a free slot.
+    static long hash(ByteKey key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.bytes()) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    // A stripe's two arrays, and an entry's ids with its share of them
+    private static long tableBytes(int capacity) {
+        return Keyspace.arrayFootprint(capacity * 8) + Keyspace.arrayFootprint(capacity * 4);
+    }
+
+    private static long idsBytes(int count) {
+        return Keyspace.arrayFootprint(count * 8);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
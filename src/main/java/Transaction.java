@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// MULTI, EXEC, DISCARD, WATCH and UNWATCH state of one connection.
+//
+// Between MULTI and EXEC the connection answers every command itself: it keeps the
+// parsed request, as it is, and replies QUEUED. EXEC then hands the queued requests
+// over, attached to the EXEC request, which the keyspace runs like a command over
+// several keys (see ClientHandler.handleExec): holding the stripes of every key they
+// name, or in sharded mode alone on every shard involved, so that nothing else reads
+// or writes any of those keys until the last of them has run.
+//
+// WATCH is optimistic. It notes the entry each key has and that entry's version (see
+// KeyValue.version), and EXEC runs nothing if any of them is no longer the same: one
+// lookup per watched key at EXEC, and no work at all for writes.
+//
+// The connection's thread owns this. WATCH records into it from the thread running
+// the command, maybe several shards at once, while the connection waits for the reply.
+final class Transaction {
+    private static final byte[] QUEUED = "+QUEUED\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EXECABORT =
+            "-EXECABORT Transaction discarded because of previous errors.\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final class Watch {
+        final ByteKey key;
+        // Null if the key was missing
+        final KeyValue entry;
+        final int version;
+
+        Watch(ByteKey key, KeyValue entry) {
+            this.key = key;
+            this.entry = entry;
+            this.version = entry == null ? 0 : entry.version;
+        }
+    }
+
+    // Between MULTI and EXEC or DISCARD
+    private boolean active;
+    // A command was refused while queueing, so EXEC discards the transaction
+    private boolean aborted;
+    private List<RespRequest> queued = new ArrayList<>();
+    private List<Watch> watches = new ArrayList<>();
+    // Every key EXEC has to hold, worked out once
+    private ByteKey[] keys;
+
+    // --- on the connection's thread ---
+
+    // Whether the connection answers this command itself instead of running it: MULTI,
+    // DISCARD, UNWATCH and a stray EXEC, and anything but EXEC after MULTI
+    boolean handlesLocally(String command) {
+        if (active) return !command.equals("EXEC");
+        switch (command) {
+            case "MULTI":
+            case "EXEC":
+            case "DISCARD":
+            case "UNWATCH":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // For a command handlesLocally() took; replies straight away, so only once the
+    // replies of the connection's earlier commands are all written
+    void handleLocally(RespRequest args, RespWriter out) throws IOException {
+        String command = args.commandName();
+        if (!active) {
+            switch (command) {
+                case "MULTI":
+                    active = true;
+                    out.writeOk();
+                    break;
+                case "EXEC":
+                    out.writeError("ERR EXEC without MULTI");
+                    break;
+                case "DISCARD":
+                    out.writeError("ERR DISCARD without MULTI");
+                    break;
+                default:
+                    watches = new ArrayList<>();
+                    out.writeOk();
+                    break;
+            }
+            return;
+        }
+
+        switch (command) {
+            case "MULTI":
+                out.writeError("ERR MULTI calls can not be nested");
+                return;
+            case "WATCH":
+                out.writeError("ERR WATCH inside MULTI is not allowed");
+                return;
+            case "DISCARD":
+                active = false;
+                aborted = false;
+                queued = new ArrayList<>();
+                watches = new ArrayList<>();
+                out.writeOk();
+                return;
+        }
+        if (!RespRequest.isKnownCommand(command)) {
+            aborted = true;
+            out.writeRaw(RespWriter.ERR_UNKNOWN_COMMAND);
+            return;
+        }
+        if (!ClientHandler.isAllowedInTransaction(command)) {
+            aborted = true;
+            out.writeError("ERR Command not allowed inside a transaction");
+            return;
+        }
+        queue(args.copy());
+        out.writeRaw(QUEUED);
+    }
+
+    // Before a command the connection doesn't handle itself is run: WATCH gets this
+    // transaction to record into, and EXEC takes over what is queued and watched,
+    // leaving this one empty for the next MULTI
+    void attach(RespRequest args) {
+        String command = args.commandName();
+        if (command.equals("WATCH")) {
+            args.transaction = this;
+        } else if (command.equals("EXEC")) {
+            Transaction exec = new Transaction();
+            exec.aborted = aborted;
+            exec.queued = queued;
+            exec.watches = watches;
+            args.transaction = exec;
+            active = false;
+            aborted = false;
+            queued = new ArrayList<>();
+            watches = new ArrayList<>();
+        }
+    }
+
+    // A detached request, e.g. a write of a MULTI/EXEC block from our master
+    void queue(RespRequest command) {
+        queued.add(command);
+    }
+
+    // --- on the thread running WATCH or EXEC ---
+
+    synchronized void watch(ByteKey key, KeyValue entry) {
+        watches.add(new Watch(key, entry));
+    }
+
+    boolean isAborted() {
+        return aborted;
+    }
+
+    List<RespRequest> commands() {
+        return queued;
+    }
+
+    // The keys of all queued commands and the watched keys
+    ByteKey[] keys() {
+        if (keys != null) return keys;
+        List<ByteKey> all = new ArrayList<>();
+        for (Watch watch : watches) all.add(watch.key);
+        for (RespRequest command : queued) {
+            ByteKey[] multi = ClientHandler.multiKeys(command);
+            if (multi != null) {
+                for (ByteKey key : multi) all.add(key);
+                continue;
+            }
+            if (BlockedClient.isBlocking(command.commandName())) {
+                for (int i = 1; i < command.size() - 1; i++) all.add(command.getKey(i));
+                continue;
+            }
+            int keyIndex = ClientHandler.firstKeyIndex(command);
+            if (keyIndex > 0 && keyIndex < command.size()) all.add(command.getKey(keyIndex));
+        }
+        return keys = all.toArray(new ByteKey[0]);
+    }
+
+    // False if a watched key now has another entry, or none, or its entry has changed.
+    // Run with the keys held, like the commands after it.
+    boolean watchesHold() {
+        for (Watch watch : watches) {
+            KeyValue current = ClientHandler.keyspace(watch.key).read(watch.key, kv -> kv);
+            if (current != watch.entry || (current != null && current.version != watch.version)) return false;
+        }
+        return true;
+    }
+
+    static void writeExecAbort(RespWriter out) throws IOException {
+        out.writeRaw(EXECABORT);
+    }
+}
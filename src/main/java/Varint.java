@@ -0,0 +1,42 @@
+// Unsigned LEB128 lengths, as the listpack-style encodings of lists, hashes and sorted
+// sets prefix their entries with: 7 bits a byte, low bits first, the top bit set on
+// every byte but the last. Lengths under 128 take one byte.
+final class Varint {
+    private Varint() {
+    }
+
+    static int length(int value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) length++;
+        return length;
+    }
+
+    // Returns the position after it
+    static int write(byte[] buf, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    static int read(byte[] buf, int pos) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf[pos++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    // A copy written in reverse, whose last byte is at `last`, read back from its end
+    static int readBackward(byte[] buf, int last) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf[last--];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+// A command met a key holding another type of value than it works on. Thrown from
+// inside keyspace updates, where nothing has been changed yet, and turned into the
+// WRONGTYPE reply by ClientHandler.dispatch. Carries no stack trace: it is a reply,
+// not a bug.
+class WrongTypeException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    static final WrongTypeException INSTANCE = new WrongTypeException();
+
+    private WrongTypeException() {
+        super("WRONGTYPE Operation against a key holding the wrong kind of value", null, false, false);
+    }
+}
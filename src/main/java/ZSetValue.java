@@ -0,0 +1,350 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.ObjDoubleConsumer;
+
+// The sorted set value. A small set is one flat byte array of [8-byte score][varint
+// length][member] entries kept in order, listpack style: for a few dozen members a
+// scan beats chasing pointers. Past Config.zsetMaxListpackEntries members, or once a
+// member is longer than Config.zsetMaxListpackValue bytes, it is converted for good to
+// a SkipList, for ranks and ranges, plus a BytesMap from member to skiplist node, for
+// scores. The two share each member's array.
+//
+// Every range is answered as a rank interval: score and lex bounds are first turned
+// into the ranks they fall at, so a reply knows its length before its first element
+// and is written straight from the entries or nodes.
+//
+// Not thread safe: sorted sets are only changed under the keyspace's per-key lock.
+final class ZSetValue {
+    private static final int INITIAL_BYTES = 64;
+    // Object sizes, as in Keyspace
+    private static final int ZSET_BYTES = 40;
+
+    // Compact encoding, while list is null: entries in buf[0, used)
+    private byte[] buf = new byte[INITIAL_BYTES];
+    private int used;
+    private int count;
+    private SkipList list;
+    private BytesMap<SkipList.Node> index;
+    // Member bytes plus 8 per score
+    private long dataBytes;
+
+    // A ZRANGE or ZCOUNT bound: a score, or a member for BYLEX, possibly exclusive.
+    // Lex bounds "-" and "+" are below and above every member.
+    static final class Bound {
+        final double score;
+        final byte[] member;
+        final boolean exclusive;
+        final int infinity;
+
+        private Bound(double score, byte[] member, boolean exclusive, int infinity) {
+            this.score = score;
+            this.member = member;
+            this.exclusive = exclusive;
+            this.infinity = infinity;
+        }
+
+        // "1.5", "(1.5", "-inf", "+inf"
+        static Bound score(byte[] arg) {
+            boolean exclusive = arg.length > 0 && arg[0] == '(';
+            byte[] number = exclusive ? Arrays.copyOfRange(arg, 1, arg.length) : arg;
+            return new Bound(parseScore(number), null, exclusive, 0);
+        }
+
+        // "-", "+", "[member", "(member"; null if it is none of these
+        static Bound lex(byte[] arg) {
+            if (arg.length == 1 && arg[0] == '-') return new Bound(0, null, false, -1);
+            if (arg.length == 1 && arg[0] == '+') return new Bound(0, null, false, 1);
+            if (arg.length == 0 || (arg[0] != '[' && arg[0] != '(')) return null;
+            return new Bound(0, Arrays.copyOfRange(arg, 1, arg.length), arg[0] == '(', 0);
+        }
+    }
+
+    int size() {
+        return list != null ? list.size() : count;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    boolean isCompact() {
+        return list == null;
+    }
+
+    long dataBytes() {
+        return dataBytes;
+    }
+
+    long footprint() {
+        if (list == null) return ZSET_BYTES + Keyspace.arrayFootprint(buf.length);
+        return ZSET_BYTES + list.footprint() + index.footprint();
+    }
+
+    // NaN if it isn't a member: scores never are
+    double score(byte[] b, int off, int len) {
+        if (list != null) {
+            SkipList.Node node = index.get(b, off, len);
+            return node == null ? Double.NaN : node.score;
+        }
+        int pos = findCompact(b, off, len);
+        return pos < 0 ? Double.NaN : scoreAt(pos);
+    }
+
+    // Adds a member or moves it to a new score. True if it is new.
+    boolean put(byte[] b, int off, int len, double score) {
+        score += 0.0; // -0.0 becomes 0.0, which sorts and prints the same
+        if (list == null && len > Config.zsetMaxListpackValue) convert();
+        if (list != null) {
+            SkipList.Node node = index.get(b, off, len);
+            if (node != null) {
+                if (node.score != score) list.updateScore(node, score);
+                return false;
+            }
+            byte[] member = Arrays.copyOfRange(b, off, off + len);
+            index.putNew(member, list.insert(score, member));
+            dataBytes += len + 8;
+            return true;
+        }
+
+        int pos = findCompact(b, off, len);
+        if (pos >= 0) {
+            if (scoreAt(pos) != score) {
+                removeAt(pos);
+                insertCompact(b, off, len, score);
+            }
+            return false;
+        }
+        if (count + 1 > Config.zsetMaxListpackEntries) {
+            convert();
+            return put(b, off, len, score);
+        }
+        insertCompact(b, off, len, score);
+        dataBytes += len + 8;
+        return true;
+    }
+
+    void put(byte[] member, double score) {
+        put(member, 0, member.length, score);
+    }
+
+    // True if it was a member
+    boolean remove(byte[] b, int off, int len) {
+        if (list != null) {
+            SkipList.Node node = index.remove(b, off, len);
+            if (node == null) return false;
+            list.delete(node);
+        } else {
+            int pos = findCompact(b, off, len);
+            if (pos < 0) return false;
+            removeAt(pos);
+        }
+        dataBytes -= len + 8;
+        return true;
+    }
+
+    // 0-based rank from the lowest score, -1 if it isn't a member
+    long rank(byte[] b, int off, int len) {
+        if (list != null) {
+            SkipList.Node node = index.get(b, off, len);
+            return node == null ? -1 : list.rankOf(node);
+        }
+        int rank = 0;
+        for (int pos = 0; pos < used; pos = next(pos), rank++) {
+            int mlen = Varint.read(buf, pos + 8);
+            int data = pos + 8 + Varint.length(mlen);
+            if (mlen == len && Arrays.equals(buf, data, data + mlen, b, off, off + len)) return rank;
+        }
+        return -1;
+    }
+
+    // The rank a bound falls at: the number of members below the range it starts, or,
+    // as an upper bound, the number up to the end of the range it closes
+    long rankAt(Bound bound, boolean upper) {
+        boolean inclusive = upper != bound.exclusive;
+        if (bound.member == null && bound.infinity == 0) {
+            if (list != null) return list.countBelow(bound.score, inclusive);
+            int n = 0;
+            for (int pos = 0; pos < used; pos = next(pos), n++) {
+                double score = scoreAt(pos);
+                if (inclusive ? score > bound.score : score >= bound.score) break;
+            }
+            return n;
+        }
+        if (bound.infinity != 0) return bound.infinity < 0 ? 0 : size();
+        if (list != null) return list.countBelowLex(bound.member, inclusive);
+        int n = 0;
+        for (int pos = 0; pos < used; pos = next(pos), n++) {
+            int mlen = Varint.read(buf, pos + 8);
+            int data = pos + 8 + Varint.length(mlen);
+            int cmp = Arrays.compareUnsigned(buf, data, data + mlen, bound.member, 0, bound.member.length);
+            if (inclusive ? cmp > 0 : cmp >= 0) break;
+        }
+        return n;
+    }
+
+    // Writes the members ranked [from, to) as bulk strings, from the highest rank down
+    // when reversed, each followed by its score if asked; in RESP3 each member and its
+    // score are a pair of their own. The caller writes the header.
+    void writeRange(long from, long to, boolean reverse, boolean withScores, RespWriter out) throws IOException {
+        if (from >= to) return;
+        if (list != null) {
+            SkipList.Node node = list.nodeAt((int) (reverse ? to - 1 : from));
+            for (long i = from; i < to; i++) {
+                if (withScores && out.isResp3()) out.writeArrayHeader(2);
+                out.writeBulkString(node.member);
+                if (withScores) writeScore(node.score, out);
+                node = reverse ? node.previous() : node.next();
+            }
+            return;
+        }
+        // Entries only link forwards: note where each one starts
+        int[] positions = new int[(int) (to - from)];
+        int pos = 0;
+        for (long i = 0; i < from; i++) pos = next(pos);
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = pos;
+            pos = next(pos);
+        }
+        for (int i = 0; i < positions.length; i++) {
+            int entry = positions[reverse ? positions.length - 1 - i : i];
+            int mlen = Varint.read(buf, entry + 8);
+            if (withScores && out.isResp3()) out.writeArrayHeader(2);
+            out.writeBulkString(buf, entry + 8 + Varint.length(mlen), mlen);
+            if (withScores) writeScore(scoreAt(entry), out);
+        }
+    }
+
+    // One ZSCAN step over members and their scores, in the member index's order (see
+    // BytesMap.scan). A compact set goes in one step.
+    long scan(long cursor, int count, ObjDoubleConsumer<byte[]> action) {
+        if (index != null) return index.scan(cursor, count, (member, node) -> action.accept(member, node.score));
+        for (int pos = 0; pos < used; pos = next(pos)) {
+            int mlen = Varint.read(buf, pos + 8);
+            int data = pos + 8 + Varint.length(mlen);
+            action.accept(Arrays.copyOfRange(buf, data, data + mlen), scoreAt(pos));
+        }
+        return 0;
+    }
+
+    // A double in RESP3, a bulk string in RESP2
+    static void writeScore(double score, RespWriter out) throws IOException {
+        if (out.isResp3()) {
+            out.writeDouble(formatScore(score));
+        } else if (score == Math.rint(score) && Math.abs(score) < 1e17) {
+            out.writeBulkNumber((long) score);
+        } else {
+            out.writeBulkString(formatScore(score));
+        }
+    }
+
+    // The shortest text that reads back as the same double, laid out as printf's %.17g
+    // would: 3, 0.1, 1.5e+20, inf
+    static String formatScore(double score) {
+        if (score == Double.POSITIVE_INFINITY) return "inf";
+        if (score == Double.NEGATIVE_INFINITY) return "-inf";
+        if (score == Math.rint(score) && Math.abs(score) < 1e17) return Long.toString((long) score);
+        BigDecimal decimal = new BigDecimal(Double.toString(score)).stripTrailingZeros();
+        int exponent = decimal.precision() - decimal.scale() - 1;
+        if (exponent >= -4 && exponent < 17) return decimal.toPlainString();
+        String digits = decimal.unscaledValue().abs().toString();
+        StringBuilder text = new StringBuilder();
+        if (score < 0) text.append('-');
+        text.append(digits.charAt(0));
+        if (digits.length() > 1) text.append('.').append(digits, 1, digits.length());
+        text.append(exponent < 0 ? "e-" : "e+");
+        if (Math.abs(exponent) < 10) text.append('0');
+        return text.append(Math.abs(exponent)).toString();
+    }
+
+    // A decimal number, or inf, +inf or -inf in any case. Never NaN.
+    static double parseScore(byte[] b) {
+        String text = new String(b, StandardCharsets.US_ASCII);
+        switch (text.toLowerCase()) {
+            case "inf":
+            case "+inf":
+                return Double.POSITIVE_INFINITY;
+            case "-inf":
+                return Double.NEGATIVE_INFINITY;
+        }
+        // Double.parseDouble would also take NaN, Infinity, hex and a trailing d or f
+        if (b.length == 0) throw new NumberFormatException("empty score");
+        for (byte c : b) {
+            if ((c < '0' || c > '9') && c != '.' && c != '-' && c != '+' && c != 'e' && c != 'E') {
+                throw new NumberFormatException("not a score: " + text);
+            }
+        }
+        return Double.parseDouble(text);
+    }
+
+    // --- compact encoding ---
+
+    private double scoreAt(int pos) {
+        long bits = 0;
+        for (int i = 0; i < 8; i++) bits = (bits << 8) | (buf[pos + i] & 0xFF);
+        return Double.longBitsToDouble(bits);
+    }
+
+    // Position of the entry after the one at `pos`
+    private int next(int pos) {
+        int len = Varint.read(buf, pos + 8);
+        return pos + 8 + Varint.length(len) + len;
+    }
+
+    // Position of the member's entry, -1 if it isn't there
+    private int findCompact(byte[] b, int off, int len) {
+        for (int pos = 0; pos < used; pos = next(pos)) {
+            int mlen = Varint.read(buf, pos + 8);
+            int data = pos + 8 + Varint.length(mlen);
+            if (mlen == len && Arrays.equals(buf, data, data + mlen, b, off, off + len)) return pos;
+        }
+        return -1;
+    }
+
+    // Inserts an entry in front of the first one that sorts after it
+    private void insertCompact(byte[] b, int off, int len, double score) {
+        int pos = 0;
+        for (; pos < used; pos = next(pos)) {
+            double s = scoreAt(pos);
+            if (s > score) break;
+            if (s == score) {
+                int mlen = Varint.read(buf, pos + 8);
+                int data = pos + 8 + Varint.length(mlen);
+                if (Arrays.compareUnsigned(buf, data, data + mlen, b, off, off + len) > 0) break;
+            }
+        }
+        int need = 8 + Varint.length(len) + len;
+        if (used + need > buf.length) buf = Arrays.copyOf(buf, Math.max(used + need, buf.length * 2));
+        System.arraycopy(buf, pos, buf, pos + need, used - pos);
+        long bits = Double.doubleToRawLongBits(score);
+        for (int i = 7; i >= 0; i--, bits >>>= 8) buf[pos + i] = (byte) bits;
+        int data = Varint.write(buf, pos + 8, len);
+        System.arraycopy(b, off, buf, data, len);
+        used += need;
+        count++;
+    }
+
+    private void removeAt(int pos) {
+        int end = next(pos);
+        System.arraycopy(buf, end, buf, pos, used - end);
+        used -= end - pos;
+        count--;
+    }
+
+    private void convert() {
+        SkipList converted = new SkipList();
+        BytesMap<SkipList.Node> members = new BytesMap<>();
+        for (int pos = 0; pos < used; pos = next(pos)) {
+            int mlen = Varint.read(buf, pos + 8);
+            int data = pos + 8 + Varint.length(mlen);
+            byte[] member = Arrays.copyOfRange(buf, data, data + mlen);
+            members.putNew(member, converted.insert(scoreAt(pos), member));
+        }
+        list = converted;
+        index = members;
+        buf = null;
+        used = 0;
+        count = 0;
+    }
+}
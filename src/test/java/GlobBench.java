@@ -0,0 +1,174 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+// Checks the compiled Glob against the recursive matcher it replaced, on random
+// pattern/key pairs drawn from an alphabet that is mostly metacharacters, then times
+// both on KEYS-like workloads. Run from the repository root after mvn compile:
+//
+//   javac --enable-preview --release 21 -cp target/classes -d target/test-classes src/test/java/GlobBench.java
+//   java --enable-preview -cp target/classes:target/test-classes GlobBench [pairs] [seed]
+//
+// pairs defaults to 12M; any mismatch is printed with its pattern and key and fails the run.
+final class GlobBench {
+    private static final byte[] PATTERN_BYTES = "ab*?[]^-\\".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] KEY_BYTES = "ab]^-\\\u00e9".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int KEYS = 1_000_000;
+    private static final int ROUNDS = 5;
+
+    private GlobBench() {}
+
+    public static void main(String[] args) {
+        long pairs = args.length > 0 ? Long.parseLong(args[0]) : 12_000_000L;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+        if (!differential(pairs, seed)) System.exit(1);
+        benchmark(seed);
+    }
+
+    private static boolean differential(long pairs, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        long matched = 0;
+        for (long n = 0; n < pairs; n++) {
+            byte[] pattern = randomBytes(random, PATTERN_BYTES, 10);
+            byte[] key = randomBytes(random, KEY_BYTES, 12);
+            boolean expected = Naive.matches(pattern, key);
+            if (Glob.compile(pattern).matches(key) != expected) {
+                System.out.println("mismatch: pattern " + show(pattern) + " key " + show(key)
+                        + " naive " + expected);
+                return false;
+            }
+            if (expected) matched++;
+        }
+        System.out.printf("differential: %,d pairs, %,d matched, no mismatches%n", pairs, matched);
+        return true;
+    }
+
+    private static void benchmark(long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        String[] suffixes = {"cart", "session", "profile"};
+        byte[][] keys = new byte[KEYS][];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = ("user:" + (1_000_000 + random.nextInt(9_000_000)) + ":"
+                    + suffixes[random.nextInt(suffixes.length)]).getBytes(StandardCharsets.US_ASCII);
+        }
+        String[] patterns = {"user:1*", "*:session", "user:*:cart", "*4242*", "user:[0-4]?9*:c*t", "*s*i*o*n"};
+        System.out.printf("%-20s %12s %12s %10s%n", "pattern", "naive ns/key", "glob ns/key", "matches");
+        for (String p : patterns) {
+            byte[] pattern = p.getBytes(StandardCharsets.US_ASCII);
+            time(p, pattern, keys);
+        }
+
+        byte[] as = new byte[30];
+        Arrays.fill(as, (byte) 'a');
+        byte[][] pathological = new byte[1000][];
+        Arrays.fill(pathological, as);
+        time("*a*a*a*b vs a{30}", "*a*a*a*b".getBytes(StandardCharsets.US_ASCII), pathological);
+    }
+
+    private static void time(String name, byte[] pattern, byte[][] keys) {
+        long naive = Long.MAX_VALUE;
+        long compiled = Long.MAX_VALUE;
+        int naiveCount = 0;
+        int count = 0;
+        // Best of several rounds, each matcher warmed up by the rounds before it
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            naiveCount = 0;
+            for (byte[] key : keys) {
+                if (Naive.matches(pattern, key)) naiveCount++;
+            }
+            naive = Math.min(naive, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            Glob glob = Glob.compile(pattern);
+            count = 0;
+            for (byte[] key : keys) {
+                if (glob.matches(key)) count++;
+            }
+            compiled = Math.min(compiled, System.nanoTime() - start);
+        }
+        if (count != naiveCount) throw new AssertionError(name + ": " + count + " != " + naiveCount);
+        System.out.printf("%-20s %12.1f %12.1f %10d%n", name,
+                (double) naive / keys.length, (double) compiled / keys.length, count);
+    }
+
+    private static byte[] randomBytes(SplittableRandom random, byte[] alphabet, int maxLength) {
+        byte[] b = new byte[random.nextInt(maxLength + 1)];
+        for (int i = 0; i < b.length; i++) b[i] = alphabet[random.nextInt(alphabet.length)];
+        return b;
+    }
+
+    private static String show(byte[] b) {
+        return '"' + new String(b, StandardCharsets.ISO_8859_1) + '"';
+    }
+
+    // The recursive matcher Glob replaced, kept verbatim as the reference
+    private static final class Naive {
+        static boolean matches(byte[] pattern, byte[] s) {
+            return match(pattern, 0, pattern.length, s, 0, s.length);
+        }
+
+        @SuppressWarnings("fallthrough")
+        private static boolean match(byte[] pattern, int p, int pend, byte[] s, int i, int send) {
+            while (p < pend && i < send) {
+                switch (pattern[p]) {
+                    case '*':
+                        while (p + 1 < pend && pattern[p + 1] == '*') p++;
+                        if (p + 1 == pend) return true;
+                        for (; i < send; i++) {
+                            if (match(pattern, p + 1, pend, s, i, send)) return true;
+                        }
+                        return false;
+                    case '?':
+                        i++;
+                        break;
+                    case '[': {
+                        p++;
+                        boolean negated = p < pend && pattern[p] == '^';
+                        if (negated) p++;
+                        int c = s[i] & 0xFF;
+                        boolean found = false;
+                        while (true) {
+                            if (p == pend) {
+                                p--;
+                                break;
+                            }
+                            if (pattern[p] == '\\' && pend - p >= 2) {
+                                p++;
+                                if ((pattern[p] & 0xFF) == c) found = true;
+                            } else if (pattern[p] == ']') {
+                                break;
+                            } else if (pend - p >= 3 && pattern[p + 1] == '-') {
+                                int from = pattern[p] & 0xFF;
+                                int to = pattern[p + 2] & 0xFF;
+                                if (from > to) {
+                                    int swap = from;
+                                    from = to;
+                                    to = swap;
+                                }
+                                p += 2;
+                                if (c >= from && c <= to) found = true;
+                            } else if ((pattern[p] & 0xFF) == c) {
+                                found = true;
+                            }
+                            p++;
+                        }
+                        if (found == negated) return false;
+                        i++;
+                        break;
+                    }
+                    case '\\':
+                        if (pend - p >= 2) p++;
+                        // fall through
+                    default:
+                        if (pattern[p] != s[i]) return false;
+                        i++;
+                        break;
+                }
+                p++;
+            }
+            while (p < pend && pattern[p] == '*') p++;
+            return p == pend && i == send;
+        }
+    }
+}
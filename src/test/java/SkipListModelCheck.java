@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeSet;
+
+// Randomized model check of SkipList and ZSetValue against a TreeSet of (score,
+// member). Scores come from a small range so ties are common and members break them;
+// after every operation the whole structure is compared with the model: rank and
+// element-at-rank both ways, backward links, counts below score and lex bounds, and
+// for ZSetValue the scores, ranks and written ranges of both encodings. Run from the
+// repository root after mvn compile:
+//
+//   javac --enable-preview --release 21 -cp target/classes -d target/test-classes src/test/java/SkipListModelCheck.java
+//   java --enable-preview -cp target/classes:target/test-classes SkipListModelCheck [rounds] [seed]
+final class SkipListModelCheck {
+    private static final Comparator<Entry> ORDER = Comparator.<Entry>comparingDouble(e -> e.score)
+            .thenComparing((a, b) -> Arrays.compareUnsigned(a.member, b.member));
+
+    private record Entry(byte[] member, double score) {}
+
+    private SkipListModelCheck() {}
+
+    public static void main(String[] args) throws IOException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+        SplittableRandom random = new SplittableRandom(seed);
+        long ops = 0;
+        for (int round = 0; round < rounds; round++) {
+            ops += checkSkipList(random, 1 + random.nextInt(300), round % 4 == 0);
+            ops += checkZSet(random, 1 + random.nextInt(300));
+        }
+        System.out.printf("%,d rounds, %,d operations, model matched%n", rounds, ops);
+    }
+
+    // One list taken through random inserts, rescores and deletes. With sameScore all
+    // scores are 0, as for ZRANGE BYLEX, so countBelowLex is checked too.
+    private static int checkSkipList(SplittableRandom random, int maxSize, boolean sameScore) {
+        SkipList list = new SkipList();
+        TreeSet<Entry> model = new TreeSet<>(ORDER);
+        Map<String, SkipList.Node> nodes = new HashMap<>();
+        int ops = maxSize * 4;
+        for (int op = 0; op < ops; op++) {
+            byte[] member = member(random, maxSize);
+            String name = new String(member, StandardCharsets.ISO_8859_1);
+            SkipList.Node node = nodes.get(name);
+            double score = sameScore ? 0 : score(random);
+            if (node == null) {
+                nodes.put(name, list.insert(score, member));
+                model.add(new Entry(member, score));
+            } else if (random.nextBoolean()) {
+                model.remove(new Entry(node.member, node.score));
+                list.updateScore(node, score);
+                model.add(new Entry(node.member, score));
+            } else {
+                model.remove(new Entry(node.member, node.score));
+                list.delete(node);
+                nodes.remove(name);
+            }
+            verify(list, model, random, sameScore);
+        }
+        return ops;
+    }
+
+    private static void verify(SkipList list, TreeSet<Entry> model, SplittableRandom random, boolean sameScore) {
+        List<Entry> expected = new ArrayList<>(model);
+        check(list.size() == expected.size(), "size " + list.size() + ", model " + expected.size());
+        SkipList.Node previous = null;
+        SkipList.Node node = expected.isEmpty() ? null : list.nodeAt(0);
+        for (int i = 0; i < expected.size(); i++) {
+            Entry e = expected.get(i);
+            check(node != null && Arrays.equals(node.member, e.member) && node.score == e.score,
+                    "walk differs at " + i);
+            check(list.nodeAt(i) == node, "nodeAt(" + i + ")");
+            check(list.rankOf(node) == i, "rankOf at " + i + " is " + list.rankOf(node));
+            check(node.previous() == previous, "backward link at " + i);
+            previous = node;
+            node = node.next();
+        }
+        check(node == null, "list runs past the model");
+
+        for (int n = 0; n < 4; n++) {
+            double score = score(random);
+            for (boolean inclusive : new boolean[] {false, true}) {
+                int count = 0;
+                for (Entry e : expected) {
+                    if (inclusive ? e.score <= score : e.score < score) count++;
+                }
+                check(list.countBelow(score, inclusive) == count, "countBelow(" + score + ", " + inclusive + ")");
+                if (!sameScore) continue;
+                byte[] member = member(random, 2 * expected.size() + 1);
+                count = 0;
+                for (Entry e : expected) {
+                    int cmp = Arrays.compareUnsigned(e.member, member);
+                    if (inclusive ? cmp <= 0 : cmp < 0) count++;
+                }
+                check(list.countBelowLex(member, inclusive) == count, "countBelowLex");
+            }
+        }
+    }
+
+    // One sorted set taken through ZADD and ZREM, with a conversion threshold low
+    // enough that most rounds cross it and go on in the skiplist encoding
+    private static int checkZSet(SplittableRandom random, int maxSize) throws IOException {
+        int savedEntries = Config.zsetMaxListpackEntries;
+        Config.zsetMaxListpackEntries = 1 + random.nextInt(64);
+        try {
+            ZSetValue zset = new ZSetValue();
+            TreeSet<Entry> model = new TreeSet<>(ORDER);
+            Map<String, Double> scores = new HashMap<>();
+            int ops = maxSize * 4;
+            for (int op = 0; op < ops; op++) {
+                byte[] member = member(random, maxSize);
+                String name = new String(member, StandardCharsets.ISO_8859_1);
+                Double old = scores.get(name);
+                if (old != null) model.remove(new Entry(member, old));
+                if (old != null && random.nextInt(3) == 0) {
+                    check(zset.remove(member, 0, member.length), "remove of a member");
+                    scores.remove(name);
+                } else {
+                    double score = score(random);
+                    check(zset.put(member, 0, member.length, score) == (old == null), "put's new flag");
+                    model.add(new Entry(member, score));
+                    scores.put(name, score);
+                }
+                verify(zset, model, random);
+            }
+            return ops;
+        } finally {
+            Config.zsetMaxListpackEntries = savedEntries;
+        }
+    }
+
+    private static void verify(ZSetValue zset, TreeSet<Entry> model, SplittableRandom random) throws IOException {
+        List<Entry> expected = new ArrayList<>(model);
+        check(zset.size() == expected.size(), "zset size");
+        check(expected.size() <= Config.zsetMaxListpackEntries || !zset.isCompact(), "compact past the threshold");
+        for (int i = 0; i < expected.size(); i++) {
+            Entry e = expected.get(i);
+            check(zset.score(e.member, 0, e.member.length) == e.score, "score");
+            check(zset.rank(e.member, 0, e.member.length) == i, "rank");
+        }
+        byte[] absent = {'-'};
+        check(Double.isNaN(zset.score(absent, 0, 1)) && zset.rank(absent, 0, 1) == -1, "absent member");
+
+        double score = score(random);
+        String text = ZSetValue.formatScore(score);
+        for (String prefix : new String[] {"", "("}) {
+            ZSetValue.Bound bound = ZSetValue.Bound.score((prefix + text).getBytes(StandardCharsets.US_ASCII));
+            int below = 0;
+            int upTo = 0;
+            for (Entry e : expected) {
+                if (prefix.isEmpty() ? e.score < score : e.score <= score) below++;
+                if (prefix.isEmpty() ? e.score <= score : e.score < score) upTo++;
+            }
+            check(zset.rankAt(bound, false) == below, "rankAt lower " + prefix + text);
+            check(zset.rankAt(bound, true) == upTo, "rankAt upper " + prefix + text);
+        }
+
+        int from = random.nextInt(expected.size() + 1);
+        int to = from + random.nextInt(expected.size() - from + 1);
+        boolean reverse = random.nextBoolean();
+        RespWriter actual = new RespWriter();
+        RespWriter wanted = new RespWriter();
+        zset.writeRange(from, to, reverse, true, actual);
+        for (int i = from; i < to; i++) {
+            Entry e = expected.get(reverse ? to - 1 - (i - from) : i);
+            wanted.writeBulkString(e.member);
+            ZSetValue.writeScore(e.score, wanted);
+        }
+        check(Arrays.equals(actual.toByteArray(), wanted.toByteArray()), "writeRange(" + from + ", " + to + ")");
+    }
+
+    // Members from a pool about the size of the set, so the same member comes back often
+    private static byte[] member(SplittableRandom random, int maxSize) {
+        return ("m" + random.nextInt(maxSize)).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static double score(SplittableRandom random) {
+        return (random.nextInt(21) - 10) / 2.0;
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+
+// Times the sorted set operations behind ZADD, ZRANGE and ZRANK on one ZSetValue of
+// 1M members with random scores, well past the compact encoding, so every operation
+// goes through the skiplist and its member index. Run from the repository root after
+// mvn compile:
+//
+//   javac --enable-preview --release 21 -cp target/classes -d target/test-classes src/test/java/ZSetBench.java
+//   java --enable-preview -Xmx2g -cp target/classes:target/test-classes ZSetBench [members] [seed]
+final class ZSetBench {
+    private static final int ROUNDS = 3;
+
+    private ZSetBench() {}
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+        SplittableRandom random = new SplittableRandom(seed);
+        byte[][] members = new byte[size][];
+        for (int i = 0; i < size; i++) members[i] = ("member:" + i).getBytes(StandardCharsets.US_ASCII);
+        // Operations visit members in a shuffled order, as clients would
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            int j = random.nextInt(i + 1);
+            order[i] = order[j];
+            order[j] = i;
+        }
+
+        System.out.printf("%-22s %10s%n", "", "ns/op");
+        ZSetValue zset = null;
+        long best = Long.MAX_VALUE;
+        // A fresh set each round, so every put adds a new member
+        for (int round = 0; round < ROUNDS; round++) {
+            ZSetValue fresh = new ZSetValue();
+            long start = System.nanoTime();
+            for (int i : order) fresh.put(members[i], 0, members[i].length, random.nextDouble());
+            best = Math.min(best, System.nanoTime() - start);
+            zset = fresh;
+        }
+        report("ZADD new member", best, size);
+
+        ZSetValue set = zset;
+        report("ZADD rescore", time(() -> {
+            for (int i : order) set.put(members[i], 0, members[i].length, random.nextDouble());
+        }), size);
+
+        RespWriter out = new RespWriter();
+        int[] starts = new int[size];
+        for (int i = 0; i < size; i++) starts[i] = random.nextInt(size - 10);
+        report("ZRANGE 10 WITHSCORES", time(() -> {
+            for (int start : starts) {
+                out.reset();
+                set.writeRange(start, start + 10, false, true, out);
+            }
+        }), size);
+
+        long[] sink = new long[1];
+        report("ZRANK", time(() -> {
+            for (int i : order) sink[0] += set.rank(members[i], 0, members[i].length);
+        }), size);
+
+        System.out.printf("%,d members, footprint %,d MB, rank sum %d%n",
+                set.size(), set.footprint() >> 20, sink[0]);
+    }
+
+    private interface Run {
+        void run() throws IOException;
+    }
+
+    // Best of several passes
+    private static long time(Run run) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            run.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static void report(String name, long nanos, int ops) {
+        System.out.printf("%-22s %10.0f%n", name, (double) nanos / ops);
+    }
+}